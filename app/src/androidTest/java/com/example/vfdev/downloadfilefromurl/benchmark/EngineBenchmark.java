@@ -0,0 +1,243 @@
+package com.example.vfdev.downloadfilefromurl.benchmark;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs downloads of one engine against LocalHttpServer and measures for a payload size :
+ * 1) Throughput : payload size divided by the median latency
+ * 2) Time to first byte : from the start of the download until the server sends the first
+ *    body byte, so engines which do not report progress are measured the same way
+ * 3) Total latency : from the start until the engine reports the file
+ * 4) Allocations per MB : Debug global allocation counter (all threads of the process)
+ * 5) Peak Java heap above the heap used before the run
+ * Warm-up runs are not measured. Downloads are started on the main thread, as in the app
+ */
+class EngineBenchmark {
+
+    private static final long TIMEOUT_SECONDS = 120;
+    private static final long SAMPLE_MILLIS = 10;
+    private static final double MB = 1024 * 1024;
+
+    private final LocalHttpServer mServer;
+    private final Engine mEngine;
+    private final int mWarmupRuns;
+    private final int mRuns;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private int mRunId = 0;
+
+    EngineBenchmark(LocalHttpServer server, Engine engine, int warmupRuns, int runs) {
+        mServer = server;
+        mEngine = engine;
+        mWarmupRuns = warmupRuns;
+        mRuns = runs;
+    }
+
+    Result run(long size) throws InterruptedException {
+        for (int i = 0; i < mWarmupRuns; i++) {
+            runOnce(size, null);
+        }
+        Result result = new Result(mEngine.name(), size, mRuns);
+        for (int i = 0; i < mRuns; i++) {
+            runOnce(size, result);
+        }
+        return result;
+    }
+
+    // ----- Private methods
+
+    /**
+     * @param result measures are added to it, null for a warm-up run
+     */
+    private void runOnce(long size, Result result) throws InterruptedException {
+        final int index = result != null ? result.measured : -1;
+        final String output = "benchmark_" + mEngine.name() + "_" + size + ".bin";
+        final String url = mServer.url(size, mEngine.name() + "-" + (mRunId++));
+        File target = mEngine.target(output);
+        if (target != null) {
+            target.delete();
+        }
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean[] ok = new boolean[1];
+        final String[] message = new String[1];
+        _HeapSampler sampler = new _HeapSampler();
+
+        System.gc();
+        sampler.start();
+        Debug.resetGlobalAllocSize();
+        Debug.startAllocCounting();
+        final long start = System.nanoTime();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mEngine.download(url, output, new Listener() {
+                    @Override
+                    public void onFinished(boolean success, String msg) {
+                        // Only the first report of the download counts
+                        if (done.getCount() == 0) return;
+                        ok[0] = success;
+                        message[0] = msg;
+                        done.countDown();
+                    }
+                });
+            }
+        });
+        boolean finished = done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        long end = System.nanoTime();
+        Debug.stopAllocCounting();
+        long allocated = Debug.getGlobalAllocSize();
+        long peak = sampler.finish();
+
+        target = mEngine.target(output);
+        long length = target != null ? target.length() : -1;
+        if (target != null) {
+            target.delete();
+        }
+        if (result == null) return;
+
+        if (!finished || !ok[0] || length != size) {
+            result.failures++;
+            result.lastError = !finished ? "Timeout" : !ok[0] ? message[0]
+                    : "Downloaded " + length + " bytes instead of " + size;
+            return;
+        }
+        long firstByte = mServer.firstByteNanos(url);
+        result.latencies[index] = (end - start) / 1000;
+        result.firstBytes[index] = firstByte > 0 ? (firstByte - start) / 1000 : -1;
+        result.allocated += allocated;
+        result.peakHeap = Math.max(result.peakHeap, peak);
+        result.measured++;
+    }
+
+    private static long median(long[] values, int count) {
+        if (count == 0) return -1;
+        long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        return sorted[count / 2];
+    }
+
+    // ------ Engine under test
+
+    interface Engine {
+        String name();
+
+        /**
+         * Start the download, it is called on the main thread.
+         * Listener must be called once when the download is finished or failed
+         */
+        void download(String url, String output, Listener listener);
+
+        /**
+         * @return file which the engine writes for the output name
+         */
+        File target(String output);
+    }
+
+    interface Listener {
+        void onFinished(boolean success, String msg);
+    }
+
+    // ------ Measures of one engine and size
+
+    static class Result {
+        final String engine;
+        final long size;
+        final long[] latencies;
+        final long[] firstBytes;
+        int measured = 0;
+        int failures = 0;
+        String lastError;
+        long allocated = 0;
+        long peakHeap = 0;
+
+        Result(String engine, long size, int runs) {
+            this.engine = engine;
+            this.size = size;
+            latencies = new long[runs];
+            firstBytes = new long[runs];
+        }
+
+        /**
+         * @return median latency in microseconds
+         */
+        long latency() {
+            return median(latencies, measured);
+        }
+
+        long firstByte() {
+            return median(firstBytes, measured);
+        }
+
+        /**
+         * @return MB per second from the median latency
+         */
+        double throughput() {
+            long latency = latency();
+            return latency > 0 ? size / MB / (latency / 1e6) : 0;
+        }
+
+        long allocatedPerMb() {
+            return measured > 0 ? (long) (allocated / (size * (double) measured / MB)) : -1;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-14s %10d B : %8.2f MB/s, ttfb %7.1f ms, "
+                            + "latency %8.1f ms, %9d B allocated/MB, peak heap %8d KB, "
+                            + "%d/%d runs ok%s",
+                    engine, size, throughput(), firstByte() / 1000.0, latency() / 1000.0,
+                    allocatedPerMb(), peakHeap / 1024, measured, measured + failures,
+                    failures > 0 ? " (" + lastError + ")" : "");
+        }
+    }
+
+    // ------ Heap usage sampler
+
+    private static class _HeapSampler extends Thread {
+
+        private final Runtime mRuntime = Runtime.getRuntime();
+        private final long mBaseline = used();
+        private volatile boolean mRunning = true;
+        private volatile long mPeak = 0;
+
+        _HeapSampler() {
+            super("HeapSampler");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (mRunning) {
+                mPeak = Math.max(mPeak, used() - mBaseline);
+                try {
+                    Thread.sleep(SAMPLE_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return peak heap above the baseline in bytes
+         */
+        long finish() throws InterruptedException {
+            mRunning = false;
+            interrupt();
+            join();
+            return Math.max(mPeak, used() - mBaseline);
+        }
+
+        private long used() {
+            return mRuntime.totalMemory() - mRuntime.freeMemory();
+        }
+    }
+
+}
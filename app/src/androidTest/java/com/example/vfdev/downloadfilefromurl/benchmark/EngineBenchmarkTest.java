@@ -0,0 +1,253 @@
+package com.example.vfdev.downloadfilefromurl.benchmark;
+
+import android.app.Activity;
+import android.net.Uri;
+import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+
+import com.example.vfdev.downloadfilefromurl.MainActivity2;
+import com.example.vfdev.downloadfilefromurl.core.Downloader;
+import com.example.vfdev.downloadfilefromurl.core.FileDownloaderAQ;
+import com.example.vfdev.downloadfilefromurl.core.FileDownloaderIon;
+import com.example.vfdev.downloadfilefromurl.core.FileDownloaderNio;
+
+import java.io.File;
+
+/**
+ * Benchmark of the download engines against LocalHttpServer, one test per engine.
+ * Results of every payload size are written to the log with tag 'EngineBenchmark' :
+ *   adb shell am instrument -w -e class \
+ *     com.example.vfdev.downloadfilefromurl.benchmark.EngineBenchmarkTest \
+ *     com.example.vfdev.downloadfilefromurl.test/android.test.InstrumentationTestRunner
+ *   adb logcat -s EngineBenchmark
+ */
+public class EngineBenchmarkTest extends ActivityInstrumentationTestCase2<MainActivity2> {
+
+    private static final String TAG = "EngineBenchmark";
+
+    // Payload mix : small, medium and large files
+    private static final long[] SIZES = {64 * 1024, 1024 * 1024, 16 * 1024 * 1024};
+    private static final int WARMUP_RUNS = 1;
+    private static final int RUNS = 5;
+
+    private LocalHttpServer mServer;
+
+    public EngineBenchmarkTest() {
+        super(MainActivity2.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalHttpServer();
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.stop();
+        super.tearDown();
+    }
+
+    public void testIon() throws Exception {
+        benchmark(new _Ion(getActivity(), 1));
+    }
+
+    public void testIonSegmented() throws Exception {
+        benchmark(new _Ion(getActivity(), 4));
+    }
+
+    public void testIonAdaptive() throws Exception {
+        benchmark(new _Ion(getActivity(), FileDownloaderIon.SEGMENTS_ADAPTIVE));
+    }
+
+    public void testNio() throws Exception {
+        benchmark(new _Nio(getActivity()));
+    }
+
+    public void testAQ() throws Exception {
+        benchmark(new _AQ(getActivity()));
+    }
+
+    /**
+     * DownloadManager runs in another process, it connects to the loopback server as well
+     */
+    public void testDownloader() throws Exception {
+        benchmark(new _Downloader(getActivity()));
+    }
+
+    // ----- Private methods
+
+    private void benchmark(EngineBenchmark.Engine engine) throws Exception {
+        EngineBenchmark b = new EngineBenchmark(mServer, engine, WARMUP_RUNS, RUNS);
+        for (long size : SIZES) {
+            EngineBenchmark.Result r = b.run(size);
+            Log.i(TAG, r.toString());
+            assertEquals(r.toString(), 0, r.failures);
+        }
+    }
+
+    // ------ Engines
+
+    private static class _Ion implements EngineBenchmark.Engine {
+
+        private final Activity mActivity;
+        private final int mSegments;
+        private FileDownloaderIon mSession;
+
+        _Ion(Activity activity, int segments) {
+            mActivity = activity;
+            mSegments = segments;
+        }
+
+        @Override
+        public String name() {
+            if (mSegments == FileDownloaderIon.SEGMENTS_ADAPTIVE) return "Ion adaptive";
+            return mSegments > 1 ? "Ion x" + mSegments : "Ion";
+        }
+
+        @Override
+        public void download(String url, String output, final EngineBenchmark.Listener listener) {
+            if (mSession == null) {
+                mSession = FileDownloaderIon.newSession(mActivity)
+                        .where(FileDownloaderIon.INTERNAL_APP);
+            }
+            mSession.setOnReportListener(new FileDownloaderIon.OnReportListener() {
+                @Override
+                public void onReport(int code, String msg) {
+                    listener.onFinished(code == FileDownloaderIon.DOWNLOAD_OK, msg);
+                }
+            }).setOnErrorListener(new FileDownloaderIon.OnErrorListener() {
+                @Override
+                public void onError(int code, String errorMessage) {
+                    listener.onFinished(false, errorMessage);
+                }
+            });
+            mSession.download(url, output, mSegments);
+        }
+
+        @Override
+        public File target(String output) {
+            return new File(mActivity.getFilesDir(), output);
+        }
+    }
+
+    private static class _Nio implements EngineBenchmark.Engine {
+
+        private final Activity mActivity;
+        private FileDownloaderNio mSession;
+
+        _Nio(Activity activity) {
+            mActivity = activity;
+        }
+
+        @Override
+        public String name() {
+            return "Nio";
+        }
+
+        @Override
+        public void download(String url, String output, final EngineBenchmark.Listener listener) {
+            if (mSession == null) {
+                mSession = FileDownloaderNio.newSession(mActivity)
+                        .where(FileDownloaderNio.INTERNAL_APP);
+            }
+            mSession.setOnReportListener(new FileDownloaderNio.OnReportListener() {
+                @Override
+                public void onReport(int code, String msg) {
+                    listener.onFinished(code == FileDownloaderNio.DOWNLOAD_OK, msg);
+                }
+            }).setOnErrorListener(new FileDownloaderNio.OnErrorListener() {
+                @Override
+                public void onError(int code, String errorMessage) {
+                    listener.onFinished(false, errorMessage);
+                }
+            });
+            mSession.download(url, output);
+        }
+
+        @Override
+        public File target(String output) {
+            return new File(mActivity.getFilesDir(), output);
+        }
+    }
+
+    private static class _AQ implements EngineBenchmark.Engine {
+
+        private final Activity mActivity;
+        private FileDownloaderAQ mSession;
+
+        _AQ(Activity activity) {
+            mActivity = activity;
+        }
+
+        @Override
+        public String name() {
+            return "AQ";
+        }
+
+        @Override
+        public void download(String url, String output, final EngineBenchmark.Listener listener) {
+            if (mSession == null) {
+                mSession = FileDownloaderAQ.newSession(mActivity)
+                        .where(FileDownloaderAQ.INTERNAL_APP);
+            }
+            mSession.setOnReportListener(new FileDownloaderAQ.OnReportListener() {
+                @Override
+                public void onReport(int code, String msg) {
+                    listener.onFinished(code == FileDownloaderAQ.DOWNLOAD_OK, msg);
+                }
+            }).setOnErrorListener(new FileDownloaderAQ.OnErrorListener() {
+                @Override
+                public void onError(int code, String errorMessage) {
+                    listener.onFinished(false, errorMessage);
+                }
+            });
+            mSession.download(url, output);
+        }
+
+        @Override
+        public File target(String output) {
+            return new File(mActivity.getFilesDir(), output);
+        }
+    }
+
+    private static class _Downloader implements EngineBenchmark.Engine {
+
+        private final Activity mActivity;
+
+        _Downloader(Activity activity) {
+            mActivity = activity;
+            Downloader.getInstance().init(activity.getApplicationContext())
+                    .where(Downloader.EXTERNAL_APP);
+        }
+
+        @Override
+        public String name() {
+            return "DownloadManager";
+        }
+
+        @Override
+        public void download(String url, String output, final EngineBenchmark.Listener listener) {
+            Downloader.getInstance().download(Uri.parse(url), output,
+                    new Downloader.OnReportListener() {
+                        @Override
+                        public void onReport(int code, String msg) {
+                            listener.onFinished(code == Downloader.DOWNLOAD_OK, msg);
+                        }
+                    }, new Downloader.OnErrorListener() {
+                        @Override
+                        public void onError(int code, String errorMessage) {
+                            listener.onFinished(false, errorMessage);
+                        }
+                    });
+        }
+
+        @Override
+        public File target(String output) {
+            File dir = mActivity.getExternalFilesDir(null);
+            return dir != null ? new File(dir, output) : null;
+        }
+    }
+
+}
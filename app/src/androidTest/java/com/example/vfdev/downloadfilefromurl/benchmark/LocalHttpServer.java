@@ -0,0 +1,202 @@
+package com.example.vfdev.downloadfilefromurl.benchmark;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Minimal HTTP/1.1 server on the loopback interface for benchmarks.
+ * GET and HEAD of '/bytes/<size>' return a deterministic payload of the given size :
+ * one block of seeded random bytes repeated, so responses are cheap to produce and every
+ * run downloads the same content. Byte ranges are supported, connections are closed after
+ * each response. No validators are sent, so downloads are never served from a cache.
+ * Time of the first body byte is recorded for each request target
+ */
+class LocalHttpServer {
+
+    private static final String TAG = "LocalHttpServer";
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final long SEED = 0x5eedL;
+
+    private final byte[] mBlock = new byte[BLOCK_SIZE];
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    // Request target -> System.nanoTime() of its first body byte
+    private final ConcurrentHashMap<String, Long> mFirstByte = new ConcurrentHashMap<String, Long>();
+    private ServerSocket mSocket;
+    private volatile boolean mRunning = false;
+
+    LocalHttpServer() {
+        new Random(SEED).nextBytes(mBlock);
+    }
+
+    void start() throws IOException {
+        mSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mRunning = true;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (mRunning) {
+                    try {
+                        final Socket s = mSocket.accept();
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                handle(s);
+                            }
+                        });
+                    } catch (IOException e) {
+                        if (mRunning) {
+                            Log.e(TAG, "Accept failed : " + e.getMessage());
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    void stop() {
+        mRunning = false;
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * @param tag makes the url unique, so runs do not share state in the engines
+     */
+    String url(long size, String tag) {
+        return "http://127.0.0.1:" + mSocket.getLocalPort() + "/bytes/" + size + "?run=" + tag;
+    }
+
+    /**
+     * @return System.nanoTime() when the first body byte of the url was sent, -1 if it was not
+     */
+    long firstByteNanos(String url) {
+        int i = url.indexOf("/bytes/");
+        Long t = i >= 0 ? mFirstByte.get(url.substring(i)) : null;
+        return t != null ? t : -1;
+    }
+
+    // ----- Private methods
+
+    private void handle(Socket s) {
+        try {
+            InputStream in = s.getInputStream();
+            OutputStream out = new BufferedOutputStream(s.getOutputStream(), BLOCK_SIZE);
+
+            String[] request = readLine(in).split(" ");
+            String range = null;
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                    range = line.substring(colon + 1).trim();
+                }
+            }
+            if (request.length < 2) {
+                writeHead(out, "400 Bad Request", 0, null);
+                return;
+            }
+            String method = request[0];
+            String target = request[1];
+            long size = parseSize(target);
+            if (size < 0) {
+                writeHead(out, "404 Not Found", 0, null);
+                return;
+            }
+
+            long start = 0;
+            long end = size - 1;
+            String status = "200 OK";
+            String contentRange = null;
+            if (range != null && range.startsWith("bytes=")) {
+                String[] bounds = range.substring(6).split("-", -1);
+                start = Long.parseLong(bounds[0].trim());
+                if (bounds.length > 1 && !bounds[1].trim().isEmpty()) {
+                    end = Math.min(end, Long.parseLong(bounds[1].trim()));
+                }
+                if (start > end) {
+                    writeHead(out, "416 Range Not Satisfiable", 0, "bytes */" + size);
+                    return;
+                }
+                status = "206 Partial Content";
+                contentRange = "bytes " + start + "-" + end + "/" + size;
+            }
+            writeHead(out, status, end - start + 1, contentRange);
+            if (!method.equals("HEAD")) {
+                writeBody(out, target, start, end + 1);
+            }
+        } catch (IOException e) {
+            // client has closed the connection
+        } finally {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    private void writeHead(OutputStream out, String status, long length, String contentRange)
+            throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 ").append(status).append("\r\n");
+        sb.append("Content-Type: application/octet-stream\r\n");
+        sb.append("Content-Length: ").append(length).append("\r\n");
+        sb.append("Accept-Ranges: bytes\r\n");
+        if (contentRange != null) {
+            sb.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        sb.append("Connection: close\r\n\r\n");
+        out.write(sb.toString().getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    private void writeBody(OutputStream out, String target, long from, long to) throws IOException {
+        mFirstByte.putIfAbsent(target, System.nanoTime());
+        long position = from;
+        while (position < to) {
+            int offset = (int) (position % BLOCK_SIZE);
+            int count = (int) Math.min(BLOCK_SIZE - offset, to - position);
+            out.write(mBlock, offset, count);
+            position += count;
+        }
+        out.flush();
+    }
+
+    private static long parseSize(String target) {
+        if (!target.startsWith("/bytes/")) return -1;
+        int query = target.indexOf('?');
+        String value = target.substring(7, query >= 0 ? query : target.length());
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            if (c != '\r') sb.append((char) c);
+        }
+        if (c < 0 && sb.length() == 0) throw new IOException("Connection closed");
+        return sb.toString();
+    }
+
+}
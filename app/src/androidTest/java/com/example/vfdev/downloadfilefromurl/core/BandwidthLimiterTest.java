@@ -0,0 +1,121 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+
+/**
+ * BandwidthLimiter : water-filling of the global limit, token bucket debt and idle throttles
+ */
+public class BandwidthLimiterTest extends AndroidTestCase {
+
+    private static final long GLOBAL = 300000;
+
+    private BandwidthLimiter mLimiter;
+    private final ArrayList<BandwidthLimiter.Throttle> mThrottles =
+            new ArrayList<BandwidthLimiter.Throttle>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLimiter = BandwidthLimiter.getInstance();
+        mLimiter.setGlobalLimit(BandwidthLimiter.UNLIMITED);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (BandwidthLimiter.Throttle t : mThrottles) {
+            t.close();
+        }
+        mThrottles.clear();
+        mLimiter.setGlobalLimit(BandwidthLimiter.UNLIMITED);
+        super.tearDown();
+    }
+
+    public void testOwnLimitWithoutGlobalLimit() {
+        BandwidthLimiter.Throttle limited = open(50000, 1);
+        BandwidthLimiter.Throttle free = open(BandwidthLimiter.UNLIMITED, 1);
+        assertEquals(50000, limited.getRate());
+        assertEquals(BandwidthLimiter.UNLIMITED, free.getRate());
+        assertEquals(0, free.consume(10 * 1024 * 1024));
+    }
+
+    public void testWaterFilling() {
+        mLimiter.setGlobalLimit(GLOBAL);
+        BandwidthLimiter.Throttle a = open(50000, 1);
+        BandwidthLimiter.Throttle b = open(BandwidthLimiter.UNLIMITED, 1);
+        BandwidthLimiter.Throttle c = open(BandwidthLimiter.UNLIMITED, 2);
+        // Limit of a is below its share, the rest is shared by weight
+        assertEquals(50000, a.getRate());
+        assertEquals(83333, b.getRate());
+        assertEquals(166666, c.getRate());
+
+        // Limit above the weighted share is not reached
+        a.setLimit(200000);
+        assertEquals(75000, a.getRate());
+        assertEquals(75000, b.getRate());
+        assertEquals(150000, c.getRate());
+
+        c.close();
+        assertEquals(150000, a.getRate());
+        assertEquals(150000, b.getRate());
+        assertEquals(2, mLimiter.active());
+    }
+
+    public void testBucketDebt() {
+        // Capacity of the bucket is MIN_BURST at this rate
+        BandwidthLimiter.Throttle t = open(64000, 1);
+        assertEquals(0, t.consume(16 * 1024));
+        long delay = t.consume(64000);
+        // Debt of 64000 bytes is paid in one second, minus the refill since the first call
+        assertTrue("delay " + delay, delay > 900 && delay <= 1000);
+        long more = t.consume(32000);
+        assertTrue("delay " + more, more > delay + 400 && more <= 1500);
+    }
+
+    public void testGlobalBucketDebt() {
+        mLimiter.setGlobalLimit(64000);
+        BandwidthLimiter.Throttle a = open(BandwidthLimiter.UNLIMITED, 1);
+        BandwidthLimiter.Throttle b = open(BandwidthLimiter.UNLIMITED, 1);
+        assertEquals(0, a.consume(16 * 1024));
+        // Bucket of b is full, its bytes are paid from the global bucket emptied by a
+        long delay = b.consume(1000);
+        assertTrue("delay " + delay, delay > 0 && delay <= 16);
+    }
+
+    public void testClosedThrottle() {
+        BandwidthLimiter.Throttle t = open(1000, 1);
+        t.close();
+        t.close();
+        assertEquals(0, mLimiter.active());
+        assertEquals(0, t.consume(1024 * 1024));
+    }
+
+    public void testIdleThrottleGivesShare() throws InterruptedException {
+        mLimiter.setGlobalLimit(GLOBAL);
+        BandwidthLimiter.Throttle a = open(BandwidthLimiter.UNLIMITED, 1);
+        BandwidthLimiter.Throttle b = open(BandwidthLimiter.UNLIMITED, 1);
+        BandwidthLimiter.Throttle c = open(50000, 1);
+        assertEquals(125000, a.getRate());
+
+        Thread.sleep(BandwidthLimiter.IDLE_MILLIS + 50);
+        a.consume(1);
+        assertEquals(GLOBAL, a.getRate());
+        // Idle throttles get the share they would have as the only other active one
+        assertEquals(150000, b.getRate());
+        assertEquals(50000, c.getRate());
+
+        b.consume(1);
+        assertEquals(150000, a.getRate());
+        assertEquals(150000, b.getRate());
+    }
+
+    // ----- Private methods
+
+    private BandwidthLimiter.Throttle open(long bytesPerSecond, int weight) {
+        BandwidthLimiter.Throttle t = mLimiter.open(bytesPerSecond, weight);
+        mThrottles.add(t);
+        return t;
+    }
+
+}
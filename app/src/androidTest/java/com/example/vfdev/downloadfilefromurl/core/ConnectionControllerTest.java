@@ -0,0 +1,101 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import android.test.AndroidTestCase;
+
+/**
+ * ConnectionController : hill climbing of the number of connections and its backoff
+ */
+public class ConnectionControllerTest extends AndroidTestCase {
+
+    private static final long MILLIS = 1000;
+
+    public void testLevelIsClamped() {
+        assertEquals(4, new ConnectionController(10, 4).level());
+        assertEquals(ConnectionController.MIN_LEVEL, new ConnectionController(0, 4).level());
+        assertEquals(ConnectionController.MIN_LEVEL, new ConnectionController(2, 0).level());
+    }
+
+    public void testRampUp() {
+        ConnectionController c = new ConnectionController(2, 8);
+        // First interval is skipped while connections start
+        assertFalse(sample(c, 1000));
+        assertTrue(sample(c, 1000));
+        assertEquals(3, c.level());
+        assertEquals(ConnectionController.REASON_RAMP_UP, c.reason());
+
+        assertFalse(sample(c, 5000));
+        assertTrue(sample(c, 1200));
+        assertEquals(4, c.level());
+    }
+
+    public void testPlateauRemovesConnectionAndProbes() {
+        ConnectionController c = new ConnectionController(2, 8);
+        sample(c, 1000);
+        sample(c, 1000);
+        assertEquals(3, c.level());
+        sample(c, 1000);
+        // Gain below GAIN : the last connection did not help
+        assertTrue(sample(c, 1050));
+        assertEquals(2, c.level());
+        assertEquals(ConnectionController.REASON_PLATEAU, c.reason());
+
+        sample(c, 1000);
+        for (int i = 1; i < ConnectionController.PROBE_INTERVALS; i++) {
+            assertFalse(sample(c, 2000));
+        }
+        assertTrue(sample(c, 1000));
+        assertEquals(3, c.level());
+        assertEquals(ConnectionController.REASON_PROBE, c.reason());
+    }
+
+    public void testThroughputDrop() {
+        ConnectionController c = new ConnectionController(2, 8);
+        sample(c, 1000);
+        sample(c, 1000);
+        sample(c, 1000);
+        assertTrue(sample(c, 800));
+        assertEquals(2, c.level());
+        assertEquals(ConnectionController.REASON_THROUGHPUT_DROP, c.reason());
+    }
+
+    public void testErrorsBackOff() {
+        ConnectionController c = new ConnectionController(3, 8);
+        // Errors are not skipped while settling
+        assertTrue(c.onSample(1000, MILLIS, 1));
+        assertEquals(2, c.level());
+        assertEquals(ConnectionController.REASON_ERRORS, c.reason());
+        assertTrue(c.onSample(1000, MILLIS, 2));
+        assertEquals(1, c.level());
+        assertFalse(c.onSample(1000, MILLIS, 1));
+        assertEquals(ConnectionController.MIN_LEVEL, c.level());
+
+        // No ramp up until the next probe
+        sample(c, 1000);
+        assertFalse(sample(c, 5000));
+        assertEquals(ConnectionController.MIN_LEVEL, c.level());
+    }
+
+    public void testMaxLevel() {
+        ConnectionController c = new ConnectionController(2, 3);
+        sample(c, 1000);
+        assertTrue(sample(c, 1000));
+        sample(c, 1000);
+        assertFalse(sample(c, 2000));
+        assertEquals(3, c.level());
+        assertEquals(ConnectionController.REASON_PLATEAU, c.reason());
+    }
+
+    public void testEmptyInterval() {
+        ConnectionController c = new ConnectionController(2, 8);
+        assertFalse(c.onSample(1000, 0, 3));
+        assertEquals(2, c.level());
+        assertEquals(ConnectionController.REASON_START, c.reason());
+    }
+
+    // ----- Private methods
+
+    private static boolean sample(ConnectionController c, long bytes) {
+        return c.onSample(bytes, MILLIS, 0);
+    }
+
+}
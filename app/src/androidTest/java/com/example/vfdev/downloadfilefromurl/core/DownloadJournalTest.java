@@ -0,0 +1,203 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Recovery of DownloadJournal : torn tail, missing END marker and compaction.
+ * Every phase uses a new journal on the same file, as after a process restart
+ */
+public class DownloadJournalTest extends AndroidTestCase {
+
+    private static final String URL_A = "http://example.com/a.bin";
+    private static final String URL_B = "http://example.com/b.bin";
+    private static final String URL_C = "http://example.com/c.bin";
+    private static final String URL_D = "http://example.com/d.bin";
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "test.journal");
+        mFile.delete();
+        new File(mFile.getAbsolutePath() + ".tmp").delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testLoadAfterClose() {
+        DownloadJournal journal = new DownloadJournal(mFile);
+        journal.load();
+        journal.enqueued(URL_A, "a.bin", 0, DownloadScheduler.PRIORITY_NORMAL, null, null);
+        journal.enqueued(URL_A, "a-copy.bin", 1, DownloadScheduler.PRIORITY_NORMAL, null, null);
+        journal.enqueued(URL_B, "b.bin", -1, DownloadScheduler.PRIORITY_URGENT, "SHA-256", "00ff");
+        journal.enqueued(URL_C, "c.bin", 0, DownloadScheduler.PRIORITY_BULK, null, null);
+        journal.checkpoint(URL_A, 100, 1000);
+        journal.checkpoint(URL_A, 200, 1000);
+        journal.finished(URL_C);
+        journal.close();
+
+        List<DownloadJournal.Entry> entries = new DownloadJournal(mFile).load();
+        assertEquals(2, entries.size());
+        DownloadJournal.Entry a = entries.get(0);
+        assertEquals(URL_A, a.url);
+        assertEquals("a.bin", a.filename);
+        assertEquals(200, a.downloaded);
+        assertEquals(1000, a.total);
+        assertEquals(1, a.copies.size());
+        assertEquals("a-copy.bin", a.copies.get(0).filename);
+        DownloadJournal.Entry b = entries.get(1);
+        assertEquals(URL_B, b.url);
+        assertEquals(DownloadScheduler.PRIORITY_URGENT, b.priority);
+        assertEquals("SHA-256", b.digestAlgorithm);
+        assertEquals("00ff", b.digest);
+        assertEquals(-1, b.total);
+    }
+
+    public void testTornRecordIsDropped() throws IOException {
+        long intact = writeTwoTasks();
+        long full = appendTask(URL_C);
+        // Cut the last enqueue record in the middle
+        truncate(intact + (full - intact) / 2);
+
+        List<DownloadJournal.Entry> entries = new DownloadJournal(mFile).load();
+        assertUrls(entries, URL_A, URL_B);
+        assertEquals(intact, mFile.length());
+    }
+
+    public void testRecordWithoutEndMarkerIsDropped() throws IOException {
+        long intact = writeTwoTasks();
+        long full = appendTask(URL_C);
+        truncate(full - 1);
+
+        List<DownloadJournal.Entry> entries = new DownloadJournal(mFile).load();
+        assertUrls(entries, URL_A, URL_B);
+        assertEquals(intact, mFile.length());
+    }
+
+    public void testAppendAfterRecovery() throws IOException {
+        long intact = writeTwoTasks();
+        long full = appendTask(URL_C);
+        truncate(full - 3);
+
+        DownloadJournal journal = new DownloadJournal(mFile);
+        journal.load();
+        journal.enqueued(URL_D, "d.bin", 0, DownloadScheduler.PRIORITY_NORMAL, null, null);
+        journal.close();
+
+        assertTrue(mFile.length() > intact);
+        assertUrls(new DownloadJournal(mFile).load(), URL_A, URL_B, URL_D);
+    }
+
+    public void testCompaction() {
+        DownloadJournal journal = new DownloadJournal(mFile);
+        journal.load();
+        journal.enqueued(URL_A, "a.bin", 0, DownloadScheduler.PRIORITY_NORMAL, null, null);
+        // Enough dead records to compact the log on the next flush
+        for (int i = 0; i < 100; i++) {
+            String url = "http://example.com/dead" + i;
+            journal.enqueued(url, "dead" + i, 0, DownloadScheduler.PRIORITY_NORMAL, null, null);
+            journal.finished(url);
+        }
+        journal.checkpoint(URL_A, 500, 1000);
+        journal.close();
+
+        assertFalse(new File(mFile.getAbsolutePath() + ".tmp").exists());
+        // Compacted log holds only the live task : its enqueue and its checkpoint
+        File live = new File(getContext().getCacheDir(), "live.journal");
+        live.delete();
+        DownloadJournal reference = new DownloadJournal(live);
+        reference.load();
+        reference.enqueued(URL_A, "a.bin", 0, DownloadScheduler.PRIORITY_NORMAL, null, null);
+        reference.checkpoint(URL_A, 500, 1000);
+        reference.close();
+        assertEquals(live.length(), mFile.length());
+        live.delete();
+
+        List<DownloadJournal.Entry> entries = new DownloadJournal(mFile).load();
+        assertUrls(entries, URL_A);
+        assertEquals(500, entries.get(0).downloaded);
+        assertEquals(1000, entries.get(0).total);
+    }
+
+    public void testDeferredRequests() {
+        DownloadJournal journal = new DownloadJournal(mFile);
+        journal.load();
+        journal.deferred(URL_A, "request-a", new ArrayList<String>(), new ArrayList<String>());
+        journal.deferred("batch:1", "request-batch", Arrays.asList(URL_B, URL_C),
+                Arrays.asList("b.bin", null));
+        journal.deferred("batch:2", "request-other", new ArrayList<String>(),
+                new ArrayList<String>());
+        journal.undeferred("batch:2");
+        // Replaced by a later request of the same key
+        journal.deferred(URL_A, "request-a2", new ArrayList<String>(), new ArrayList<String>());
+        journal.close();
+
+        journal = new DownloadJournal(mFile);
+        assertEquals(0, journal.load().size());
+        List<DownloadJournal.Deferred> deferred = journal.getDeferred();
+        assertEquals(2, deferred.size());
+        DownloadJournal.Deferred batch = deferred.get(0);
+        assertEquals("batch:1", batch.key);
+        assertEquals("request-batch", batch.request);
+        assertEquals(Arrays.asList(URL_B, URL_C), batch.urls);
+        assertEquals(Arrays.asList("b.bin", null), batch.filenames);
+        assertEquals(URL_A, deferred.get(1).key);
+        assertEquals("request-a2", deferred.get(1).request);
+        assertTrue(deferred.get(1).urls.isEmpty());
+    }
+
+    // ----- Private methods
+
+    /**
+     * @return length of the journal with tasks A and B
+     */
+    private long writeTwoTasks() {
+        DownloadJournal journal = new DownloadJournal(mFile);
+        journal.load();
+        journal.enqueued(URL_A, "a.bin", 0, DownloadScheduler.PRIORITY_NORMAL, null, null);
+        journal.enqueued(URL_B, "b.bin", 0, DownloadScheduler.PRIORITY_NORMAL, null, null);
+        journal.checkpoint(URL_A, 10, 100);
+        journal.close();
+        return mFile.length();
+    }
+
+    /**
+     * @return length of the journal with the new task
+     */
+    private long appendTask(String url) {
+        DownloadJournal journal = new DownloadJournal(mFile);
+        journal.load();
+        journal.enqueued(url, "file.bin", 0, DownloadScheduler.PRIORITY_NORMAL, null, null);
+        journal.close();
+        return mFile.length();
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(mFile, "rw");
+        try {
+            f.setLength(length);
+        } finally {
+            f.close();
+        }
+    }
+
+    private static void assertUrls(List<DownloadJournal.Entry> entries, String... urls) {
+        assertEquals(urls.length, entries.size());
+        for (int i = 0; i < urls.length; i++) {
+            assertEquals(urls[i], entries.get(i).url);
+        }
+    }
+
+}
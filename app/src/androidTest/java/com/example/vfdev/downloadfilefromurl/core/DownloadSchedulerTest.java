@@ -0,0 +1,126 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Order of DownloadScheduler : priorities, per-host cap accounting and preemption victims
+ */
+public class DownloadSchedulerTest extends AndroidTestCase {
+
+    private DownloadScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScheduler = new DownloadScheduler();
+    }
+
+    public void testPriorityOrder() {
+        DownloadTask bulk = add("http://a.com/1", DownloadScheduler.PRIORITY_BULK);
+        DownloadTask normal1 = add("http://b.com/1", DownloadScheduler.PRIORITY_NORMAL);
+        DownloadTask urgent = add("http://c.com/1", DownloadScheduler.PRIORITY_URGENT);
+        DownloadTask normal2 = add("http://d.com/1", DownloadScheduler.PRIORITY_NORMAL);
+
+        assertEquals(4, mScheduler.size());
+        assertSame(urgent, mScheduler.next());
+        assertSame(normal1, mScheduler.next());
+        assertSame(normal2, mScheduler.next());
+        assertSame(bulk, mScheduler.next());
+        assertNull(mScheduler.next());
+        assertTrue(mScheduler.isEmpty());
+    }
+
+    public void testHostCap() {
+        mScheduler.setMaxPerHost(2);
+        DownloadTask a1 = add("http://a.com/1", DownloadScheduler.PRIORITY_NORMAL);
+        DownloadTask a2 = add("http://a.com/2", DownloadScheduler.PRIORITY_NORMAL);
+        DownloadTask a3 = add("http://a.com/3", DownloadScheduler.PRIORITY_NORMAL);
+        DownloadTask b1 = add("http://b.com/1", DownloadScheduler.PRIORITY_BULK);
+
+        assertSame(a1, mScheduler.next());
+        assertSame(a2, mScheduler.next());
+        // Saturated host is skipped, lower priority of another host runs
+        assertSame(b1, mScheduler.next());
+        assertNull(mScheduler.next());
+
+        mScheduler.finished(a1);
+        // Finishing twice must not free a second connection
+        mScheduler.finished(a1);
+        assertSame(a3, mScheduler.next());
+        assertNull(mScheduler.next());
+    }
+
+    public void testRemovedTaskDoesNotHoldConnection() {
+        mScheduler.setMaxPerHost(1);
+        DownloadTask a1 = add("http://a.com/1", DownloadScheduler.PRIORITY_NORMAL);
+        DownloadTask a2 = add("http://a.com/2", DownloadScheduler.PRIORITY_NORMAL);
+        assertTrue(mScheduler.remove(a1));
+        assertFalse(mScheduler.remove(a1));
+        // Pending task was never accounted, finishing it changes nothing
+        mScheduler.finished(a1);
+        assertSame(a2, mScheduler.next());
+        assertNull(mScheduler.next());
+    }
+
+    public void testRequeueGoesFirst() {
+        DownloadTask a = add("http://a.com/1", DownloadScheduler.PRIORITY_NORMAL);
+        DownloadTask b = add("http://b.com/1", DownloadScheduler.PRIORITY_NORMAL);
+        assertSame(a, mScheduler.next());
+        mScheduler.finished(a);
+        mScheduler.requeue(a);
+        assertSame(a, mScheduler.next());
+        assertSame(b, mScheduler.next());
+    }
+
+    public void testVictimHasLowestPriority() {
+        DownloadTask normal = add("http://a.com/1", DownloadScheduler.PRIORITY_NORMAL);
+        DownloadTask bulk = add("http://b.com/1", DownloadScheduler.PRIORITY_BULK);
+        mScheduler.next();
+        mScheduler.next();
+        add("http://c.com/1", DownloadScheduler.PRIORITY_URGENT);
+
+        // Free worker and free host : urgent task starts without preemption
+        assertNull(mScheduler.preemptionVictim(true));
+        assertSame(bulk, mScheduler.preemptionVictim(false));
+        mScheduler.finished(bulk);
+        assertSame(normal, mScheduler.preemptionVictim(false));
+    }
+
+    public void testVictimOnSaturatedHost() {
+        mScheduler.setMaxPerHost(1);
+        DownloadTask sameHost = add("http://a.com/1", DownloadScheduler.PRIORITY_NORMAL);
+        add("http://b.com/1", DownloadScheduler.PRIORITY_BULK);
+        mScheduler.next();
+        mScheduler.next();
+        add("http://a.com/2", DownloadScheduler.PRIORITY_URGENT);
+
+        // Only a task of the blocked host frees a connection for the urgent task
+        assertSame(sameHost, mScheduler.preemptionVictim(true));
+        assertSame(sameHost, mScheduler.preemptionVictim(false));
+    }
+
+    public void testUrgentTaskIsNotPreempted() {
+        mScheduler.setMaxPerHost(1);
+        add("http://a.com/1", DownloadScheduler.PRIORITY_URGENT);
+        mScheduler.next();
+        add("http://a.com/2", DownloadScheduler.PRIORITY_URGENT);
+        assertNull(mScheduler.preemptionVictim(true));
+        assertNull(mScheduler.preemptionVictim(false));
+    }
+
+    public void testOnlyUrgentTasksPreempt() {
+        add("http://a.com/1", DownloadScheduler.PRIORITY_BULK);
+        mScheduler.next();
+        add("http://b.com/1", DownloadScheduler.PRIORITY_NORMAL);
+        assertNull(mScheduler.preemptionVictim(false));
+    }
+
+    // ----- Private methods
+
+    private DownloadTask add(String url, int priority) {
+        DownloadTask task = new DownloadTask(url, "file", 0, priority);
+        mScheduler.add(task);
+        return task;
+    }
+
+}
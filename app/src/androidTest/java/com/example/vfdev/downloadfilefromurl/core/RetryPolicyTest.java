@@ -0,0 +1,101 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * RetryPolicy : Retry-After parsing, full jitter bounds and classification of errors
+ */
+public class RetryPolicyTest extends AndroidTestCase {
+
+    // Enough draws to reach the upper part of every bound
+    private static final int DRAWS = 500;
+
+    public void testRetryAfterSeconds() {
+        assertEquals(120000, RetryPolicy.parseRetryAfter("120"));
+        assertEquals(5000, RetryPolicy.parseRetryAfter(" 5 "));
+        assertEquals(0, RetryPolicy.parseRetryAfter("-3"));
+    }
+
+    public void testRetryAfterDate() {
+        long future = RetryPolicy.parseRetryAfter(httpDate(System.currentTimeMillis() + 60000));
+        // Date has a precision of one second
+        assertTrue("delay " + future, future > 58000 && future <= 60000);
+        assertEquals(0, RetryPolicy.parseRetryAfter(httpDate(System.currentTimeMillis() - 60000)));
+    }
+
+    public void testRetryAfterInvalid() {
+        assertEquals(-1, RetryPolicy.parseRetryAfter(null));
+        assertEquals(-1, RetryPolicy.parseRetryAfter(""));
+        assertEquals(-1, RetryPolicy.parseRetryAfter("soon"));
+    }
+
+    public void testFullJitterBounds() {
+        RetryPolicy policy = new RetryPolicy(6, 1000, 8000);
+        long[] bounds = {1000, 2000, 4000, 8000, 8000, 8000};
+        for (int retries = 0; retries < bounds.length; retries++) {
+            long max = 0;
+            for (int i = 0; i < DRAWS; i++) {
+                long delay = policy.delay(retries, -1);
+                assertTrue("delay " + delay, delay >= 0 && delay < bounds[retries]);
+                max = Math.max(max, delay);
+            }
+            // Delays are spread over the whole bound, not only its start
+            assertTrue("max " + max, max >= bounds[retries] / 2);
+        }
+    }
+
+    public void testLargeRetryCountIsCapped() {
+        RetryPolicy policy = new RetryPolicy(100, 1000, 8000);
+        for (int i = 0; i < DRAWS; i++) {
+            long delay = policy.delay(70, -1);
+            assertTrue("delay " + delay, delay >= 0 && delay < 8000);
+        }
+    }
+
+    public void testRetriesAreLimited() {
+        RetryPolicy policy = new RetryPolicy(2, 1000, 8000);
+        assertTrue(policy.delay(1, -1) >= 0);
+        assertEquals(-1, policy.delay(2, -1));
+        assertEquals(-1, RetryPolicy.NONE.delay(0, -1));
+    }
+
+    public void testRetryAfterIsHonored() {
+        RetryPolicy policy = new RetryPolicy(3, 1000, 8000);
+        for (int i = 0; i < DRAWS; i++) {
+            assertTrue(policy.delay(0, 5000) >= 5000);
+        }
+        // Server asks for more than the policy may wait
+        assertEquals(-1, policy.delay(0, 9000));
+    }
+
+    public void testTransientErrors() {
+        RetryPolicy policy = RetryPolicy.DEFAULT;
+        assertTrue(policy.isTransient(503, null));
+        assertTrue(policy.isTransient(429, null));
+        assertTrue(policy.isTransient(408, null));
+        assertFalse(policy.isTransient(404, null));
+        assertFalse(policy.isTransient(403, new SocketTimeoutException()));
+        assertTrue(policy.isTransient(-1, new SocketTimeoutException()));
+        assertTrue(policy.isTransient(-1, new IOException(new ConnectException())));
+        assertFalse(policy.isTransient(-1, new IllegalStateException()));
+        assertFalse(policy.isTransient(-1, null));
+        assertEquals(-1, policy.delay(0, 404, null, -1));
+    }
+
+    // ----- Private methods
+
+    private static String httpDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+
+}
@@ -146,6 +146,7 @@ public class MainActivity2 extends Activity {
             i.setData(Uri.parse(mUrl2.getText().toString()));
             i.putExtra("Filename", "track2.mp3");
             i.putExtra("Where", FileDownloadService.INTERNAL_APP);
+            i.putExtra("Priority", FileDownloadService.PRIORITY_URGENT);
             startService(i);
 //            mDownload2.setText("Cancel");
 //        } else {
@@ -0,0 +1,247 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+
+/**
+ * Token bucket bandwidth limiter shared by all downloads :
+ * 1) Global limit : one bucket for all transfers
+ * 2) Per download limit : every transfer opens a Throttle with its own bucket
+ * 3) While the global limit is set, it is shared between active throttles by weighted
+ *    max-min fairness (water-filling) : a throttle whose own limit is below its weighted share
+ *    gets its limit, the rest of the global limit is shared by weight between the others.
+ *    Throttles which have not consumed for IDLE_MILLIS are idle, their share goes to the others
+ * Buckets may go into debt : consume() returns how long the caller should wait before
+ * reading more, so it can be used by blocking and non-blocking transfers.
+ * Limits can be changed at any time, running transfers follow the new rates
+ */
+public class BandwidthLimiter {
+
+    public static final long UNLIMITED = 0;
+    public static final int DEFAULT_WEIGHT = 1;
+
+    // Bucket capacity, short bursts above the rate are allowed
+    private static final long BURST_MILLIS = 250;
+    private static final long MIN_BURST = 16 * 1024;
+    // Throttle without traffic for this long gives its share of the global limit to the others
+    static final long IDLE_MILLIS = 1000;
+
+    private static BandwidthLimiter mInstance;
+
+    private final _Bucket mGlobal = new _Bucket();
+    private final ArrayList<Throttle> mThrottles = new ArrayList<Throttle>();
+    private long mGlobalLimit = UNLIMITED;
+    private long mLastIdleCheck = 0;
+
+    // ----- Public methods
+
+    static public synchronized BandwidthLimiter getInstance() {
+        if (mInstance == null) {
+            mInstance = new BandwidthLimiter();
+        }
+        return mInstance;
+    }
+
+    /**
+     * @param bytesPerSecond limit of all transfers, UNLIMITED to remove it
+     */
+    public synchronized void setGlobalLimit(long bytesPerSecond) {
+        mGlobalLimit = Math.max(UNLIMITED, bytesPerSecond);
+        mGlobal.setRate(mGlobalLimit);
+        rebalance();
+    }
+
+    public synchronized long getGlobalLimit() {
+        return mGlobalLimit;
+    }
+
+    /**
+     * Open a throttle for one transfer, it must be closed when the transfer is finished
+     * @param bytesPerSecond limit of the transfer, UNLIMITED for global limit only
+     * @param weight share of the global limit relative to other transfers
+     */
+    public synchronized Throttle open(long bytesPerSecond, int weight) {
+        Throttle t = new Throttle(bytesPerSecond, weight);
+        mThrottles.add(t);
+        rebalance();
+        return t;
+    }
+
+    /**
+     * @return number of open throttles
+     */
+    public synchronized int active() {
+        return mThrottles.size();
+    }
+
+    // ----- Private methods
+
+    private BandwidthLimiter() {    }
+
+    /**
+     * Recompute rates of open throttles. Global limit is divided between active throttles
+     * by water-filling : throttles limited below their weighted share get their own limit
+     * and are removed, until the remaining limit is shared by weight between the others.
+     * Idle throttles get the share they would have if they were active
+     */
+    private void rebalance() {
+        if (mGlobalLimit <= UNLIMITED) {
+            for (Throttle t : mThrottles) {
+                t.mBucket.setRate(t.mLimit);
+            }
+            return;
+        }
+        ArrayList<Throttle> pending = new ArrayList<Throttle>();
+        long weights = 0;
+        for (Throttle t : mThrottles) {
+            if (!t.mIdle) {
+                pending.add(t);
+                weights += t.mWeight;
+            }
+        }
+        long remaining = mGlobalLimit;
+        boolean capped = true;
+        while (capped && !pending.isEmpty()) {
+            capped = false;
+            for (int i = pending.size() - 1; i >= 0; i--) {
+                Throttle t = pending.get(i);
+                if (t.mLimit > UNLIMITED && t.mLimit * weights <= remaining * t.mWeight) {
+                    t.mBucket.setRate(t.mLimit);
+                    remaining -= t.mLimit;
+                    weights -= t.mWeight;
+                    pending.remove(i);
+                    capped = true;
+                }
+            }
+        }
+        for (Throttle t : pending) {
+            t.mBucket.setRate(Math.max(1, remaining * t.mWeight / weights));
+        }
+        for (Throttle t : mThrottles) {
+            if (t.mIdle) {
+                long share = Math.max(1, remaining * t.mWeight / (weights + t.mWeight));
+                t.mBucket.setRate(t.mLimit > UNLIMITED ? Math.min(t.mLimit, share) : share);
+            }
+        }
+    }
+
+    private synchronized long consume(Throttle t, long bytes) {
+        if (t.mClosed) return 0;
+        long now = SystemClock.elapsedRealtime();
+        t.mLastConsume = now;
+        boolean changed = false;
+        if (t.mIdle) {
+            t.mIdle = false;
+            changed = true;
+        }
+        if (now - mLastIdleCheck >= IDLE_MILLIS / 4) {
+            mLastIdleCheck = now;
+            for (Throttle other : mThrottles) {
+                if (!other.mIdle && now - other.mLastConsume >= IDLE_MILLIS) {
+                    other.mIdle = true;
+                    changed = true;
+                }
+            }
+        }
+        if (changed) {
+            rebalance();
+        }
+        return Math.max(t.mBucket.consume(now, bytes), mGlobal.consume(now, bytes));
+    }
+
+    private synchronized void close(Throttle t) {
+        if (t.mClosed) return;
+        t.mClosed = true;
+        mThrottles.remove(t);
+        rebalance();
+    }
+
+    // ------ Throttle of one transfer
+
+    public class Throttle {
+
+        private final _Bucket mBucket = new _Bucket();
+        private long mLimit;
+        private int mWeight;
+        private boolean mClosed = false;
+        private boolean mIdle = false;
+        private long mLastConsume;
+
+        private Throttle(long bytesPerSecond, int weight) {
+            mLimit = Math.max(UNLIMITED, bytesPerSecond);
+            mWeight = Math.max(1, weight);
+            // New transfer is active until it stays silent for IDLE_MILLIS
+            mLastConsume = SystemClock.elapsedRealtime();
+        }
+
+        /**
+         * Account received bytes
+         * @return delay in milliseconds before the transfer should read more, 0 to go on
+         */
+        public long consume(long bytes) {
+            return BandwidthLimiter.this.consume(this, bytes);
+        }
+
+        public void setLimit(long bytesPerSecond) {
+            synchronized (BandwidthLimiter.this) {
+                mLimit = Math.max(UNLIMITED, bytesPerSecond);
+                rebalance();
+            }
+        }
+
+        public void setWeight(int weight) {
+            synchronized (BandwidthLimiter.this) {
+                mWeight = Math.max(1, weight);
+                rebalance();
+            }
+        }
+
+        /**
+         * @return current rate of the transfer in bytes per second, UNLIMITED if there is no limit
+         */
+        public long getRate() {
+            synchronized (BandwidthLimiter.this) {
+                return mBucket.mRate;
+            }
+        }
+
+        public void close() {
+            BandwidthLimiter.this.close(this);
+        }
+    }
+
+    // ------ Token bucket
+
+    private static class _Bucket {
+
+        private long mRate = UNLIMITED;
+        private long mCapacity;
+        private double mTokens;
+        private long mLastRefill = -1;
+
+        void setRate(long bytesPerSecond) {
+            if (bytesPerSecond == mRate) return;
+            mRate = bytesPerSecond;
+            mCapacity = Math.max(MIN_BURST, mRate * BURST_MILLIS / 1000);
+            mTokens = Math.min(mTokens, mCapacity);
+        }
+
+        long consume(long now, long bytes) {
+            if (mRate <= UNLIMITED) {
+                mLastRefill = -1;
+                return 0;
+            }
+            if (mLastRefill < 0) {
+                mTokens = mCapacity;
+            } else {
+                mTokens = Math.min(mCapacity, mTokens + (now - mLastRefill) * mRate / 1000.0);
+            }
+            mLastRefill = now;
+            mTokens -= bytes;
+            if (mTokens >= 0) return 0;
+            return (long) Math.ceil(-mTokens * 1000 / mRate);
+        }
+    }
+
+}
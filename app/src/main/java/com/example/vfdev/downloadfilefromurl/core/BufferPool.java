@@ -0,0 +1,45 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of reusable direct buffers of the same size.
+ * Buffers are allocated on demand, at most maxPooled buffers are kept for reuse
+ */
+class BufferPool {
+
+    private final int mBufferSize;
+    private final int mMaxPooled;
+    private final ArrayDeque<ByteBuffer> mBuffers = new ArrayDeque<ByteBuffer>();
+
+    BufferPool(int bufferSize, int maxPooled) {
+        mBufferSize = bufferSize;
+        mMaxPooled = maxPooled;
+    }
+
+    synchronized ByteBuffer acquire() {
+        ByteBuffer buffer = mBuffers.pollFirst();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(mBufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    synchronized void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != mBufferSize) return;
+        if (mBuffers.size() < mMaxPooled) {
+            mBuffers.addFirst(buffer);
+        }
+    }
+
+    int bufferSize() {
+        return mBufferSize;
+    }
+
+    synchronized int pooled() {
+        return mBuffers.size();
+    }
+
+}
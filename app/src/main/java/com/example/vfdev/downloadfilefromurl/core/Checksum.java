@@ -0,0 +1,267 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.Locale;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Expected digest of a download. Engines feed the digest with bytes as they are written,
+ * so the file is not read again after the download. Prefix of a resumed file is hashed
+ * from disk. Files which are not written in order (segments) are hashed with a Prefix :
+ * only the bytes which arrived ahead of the hashed prefix are read from disk
+ */
+class Checksum {
+
+    private static final String TAG = "Checksum";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Checksum");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    private static final Executor sCallbackExecutor = new MainThreadExecutor();
+
+    final String algorithm;
+    final String expected;
+
+    private Checksum(String algorithm, String expected) {
+        this.algorithm = algorithm;
+        this.expected = expected.trim().toLowerCase(Locale.US);
+    }
+
+    /**
+     * @param algorithm name of MessageDigest algorithm, e.g. "SHA-256" or "MD5"
+     * @param expected hex string of the digest
+     * @return checksum or null if nothing is expected
+     * @throws IllegalArgumentException if the algorithm is not supported
+     */
+    static Checksum create(String algorithm, String expected) {
+        if (algorithm == null || expected == null || expected.isEmpty()) return null;
+        Checksum c = new Checksum(algorithm, expected);
+        c.newDigest();
+        return c;
+    }
+
+    MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Digest algorithm is not supported : " + algorithm);
+        }
+    }
+
+    /**
+     * Complete the digest and compare it with the expected one
+     * @return null if the digest matches, error message otherwise
+     */
+    String check(MessageDigest digest) {
+        String actual = hex(digest.digest());
+        if (expected.equals(actual)) return null;
+        return algorithm + " mismatch : expected " + expected + ", got " + actual;
+    }
+
+    /**
+     * @param source written ranges of the file while it is downloaded
+     * @return digest which follows the written prefix of the file
+     */
+    Prefix prefix(File file, Source source) {
+        return new Prefix(this, file, newDigest(), 0, source);
+    }
+
+    /**
+     * @param digest digest of the first hashed bytes of the file, which is not written anymore
+     */
+    Prefix prefix(File file, MessageDigest digest, long hashed) {
+        return new Prefix(this, file, digest, hashed, null);
+    }
+
+    /**
+     * Feed digest with the first length bytes of the file
+     */
+    static void update(MessageDigest digest, File file, long length) throws IOException {
+        update(digest, file, 0, length);
+    }
+
+    /**
+     * Feed digest with the bytes of the file from position 'from' to 'to' (exclusive)
+     */
+    static void update(MessageDigest digest, File file, long from, long to) throws IOException {
+        FileChannel in = new FileInputStream(file).getChannel();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = from;
+            while (position < to) {
+                buffer.clear();
+                if (to - position < buffer.capacity()) {
+                    buffer.limit((int) (to - position));
+                }
+                int read = in.read(buffer, position);
+                if (read < 0) break;
+                position += read;
+                buffer.flip();
+                digest.update(buffer);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+        }
+        return sb.toString();
+    }
+
+    // ------ Digest of the prefix of a file
+
+    /**
+     * Digest of a file which is written out of order, e.g. by the segments of SegmentedDownload.
+     * Bytes written at the end of the hashed prefix are hashed from memory by the writer.
+     * When the prefix reaches bytes which were written ahead of it, they are read from disk
+     * on the background thread and the writes are ignored until the prefix catches up
+     */
+    static class Prefix {
+
+        private final Checksum mChecksum;
+        private final File mFile;
+        private final MessageDigest mDigest;
+        private final Source mSource;
+        private long mHashed;
+        private boolean mCatchingUp = false;
+        private String mError;
+
+        private Prefix(Checksum checksum, File file, MessageDigest digest, long hashed,
+                       Source source) {
+            mChecksum = checksum;
+            mFile = file;
+            mDigest = digest;
+            mHashed = hashed;
+            mSource = source;
+        }
+
+        /**
+         * Called by the writers after len bytes are written at the position
+         */
+        synchronized void written(long position, byte[] b, int off, int len) {
+            if (mCatchingUp || position > mHashed || position + len <= mHashed) return;
+            int skip = (int) (mHashed - position);
+            mDigest.update(b, off + skip, len - skip);
+            mHashed = position + len;
+            if (mSource.writtenFrom(mHashed) > mHashed) {
+                // Next range was written ahead of the prefix
+                mCatchingUp = true;
+                sExecutor.execute(mCatchUp);
+            }
+        }
+
+        /**
+         * Hash the rest of the file on the background thread, after the pending reads.
+         * The file must not be written anymore
+         * @param listener is called on the main thread with null if the digest matches,
+         *                 error message otherwise
+         */
+        void verify(final Listener listener) {
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long hashed;
+                    String error;
+                    synchronized (Prefix.this) {
+                        mCatchingUp = true;
+                        hashed = mHashed;
+                        error = mError;
+                    }
+                    if (error == null) {
+                        try {
+                            update(mDigest, mFile, hashed, mFile.length());
+                            error = mChecksum.check(mDigest);
+                        } catch (IOException e) {
+                            error = "Failed to read file : " + e.getMessage();
+                        }
+                    }
+                    if (error != null) {
+                        Log.w(TAG, error);
+                    }
+                    final String result = error;
+                    sCallbackExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onVerified(result);
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * Read the bytes written ahead of the prefix until it reaches the first byte
+         * which is not written
+         */
+        private final Runnable mCatchUp = new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    long from;
+                    long to;
+                    synchronized (Prefix.this) {
+                        from = mHashed;
+                        to = mError == null ? mSource.writtenFrom(from) : from;
+                        if (to <= from) {
+                            // Writes at the end of the prefix are hashed again
+                            mCatchingUp = mError != null;
+                            return;
+                        }
+                    }
+                    // Writers do not touch the digest while the prefix catches up
+                    try {
+                        update(mDigest, mFile, from, to);
+                    } catch (IOException e) {
+                        synchronized (Prefix.this) {
+                            mError = "Failed to read file : " + e.getMessage();
+                        }
+                        return;
+                    }
+                    synchronized (Prefix.this) {
+                        mHashed = to;
+                    }
+                }
+            }
+        };
+    }
+
+    // ------ Listeners
+
+    interface Listener {
+        void onVerified(String error);
+    }
+
+    /**
+     * Written ranges of a file which is downloaded
+     */
+    interface Source {
+        /**
+         * @return end (exclusive) of the bytes written without a gap from the position
+         */
+        long writtenFrom(long position);
+    }
+
+}
@@ -0,0 +1,130 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+/**
+ * Chooses the number of parallel connections of a segmented download from its throughput.
+ * Aggregate throughput is sampled every interval, the first interval after a change is
+ * skipped while new connections ramp up :
+ * 1) Level is raised while throughput improves by more than GAIN of the previous level
+ * 2) Raise which does not improve throughput is a plateau : the last connection is removed,
+ *    a higher level is probed again after PROBE_INTERVALS
+ * 3) Errors of the connections lower the level and stop the ramp up until the next probe
+ */
+public class ConnectionController {
+
+    public static final int REASON_START = 0;
+    public static final int REASON_RAMP_UP = 1;
+    public static final int REASON_PLATEAU = 2;
+    public static final int REASON_THROUGHPUT_DROP = 3;
+    public static final int REASON_ERRORS = 4;
+    public static final int REASON_PROBE = 5;
+
+    public static final int MIN_LEVEL = 1;
+    public static final int DEFAULT_START_LEVEL = 2;
+    public static final int DEFAULT_MAX_LEVEL = 8;
+
+    // Sampling interval of the throughput
+    static final long INTERVAL = 2000;
+    // Relative gain of throughput which is worth one more connection
+    static final double GAIN = 0.1;
+    // Intervals spent on a plateau before a higher level is probed again
+    static final int PROBE_INTERVALS = 10;
+
+    private final int mMaxLevel;
+    private int mLevel;
+    private int mReason = REASON_START;
+    private boolean mSettling = true;
+    private boolean mRaised = false;
+    private int mPlateau = -1;
+    private long mLastThroughput = -1;
+
+    ConnectionController(int startLevel, int maxLevel) {
+        mMaxLevel = Math.max(MIN_LEVEL, maxLevel);
+        mLevel = Math.max(MIN_LEVEL, Math.min(startLevel, mMaxLevel));
+    }
+
+    // ----- Package methods
+
+    int level() {
+        return mLevel;
+    }
+
+    /**
+     * @return REASON_* of the last change of the level
+     */
+    int reason() {
+        return mReason;
+    }
+
+    /**
+     * Called every INTERVAL with bytes received by all connections
+     * @param errors number of failed connections during the interval
+     * @return true if the level has changed
+     */
+    boolean onSample(long bytes, long millis, int errors) {
+        if (millis <= 0) return false;
+        long throughput = bytes * 1000 / millis;
+        if (errors > 0) {
+            mSettling = false;
+            mPlateau = 0;
+            return change(mLevel - 1, REASON_ERRORS);
+        }
+        if (mSettling) {
+            // New connections are still in slow start
+            mSettling = false;
+            return false;
+        }
+        long previous = mLastThroughput;
+        mLastThroughput = throughput;
+        if (mPlateau >= 0) {
+            if (++mPlateau < PROBE_INTERVALS) return false;
+            mPlateau = -1;
+            return change(mLevel + 1, REASON_PROBE);
+        }
+        if (previous < 0 || throughput > previous * (1 + GAIN)) {
+            return change(mLevel + 1, REASON_RAMP_UP);
+        }
+        mPlateau = 0;
+        if (mRaised) {
+            // Last connection did not help
+            return change(mLevel - 1, throughput < previous * (1 - GAIN)
+                    ? REASON_THROUGHPUT_DROP : REASON_PLATEAU);
+        }
+        mReason = REASON_PLATEAU;
+        mRaised = false;
+        return false;
+    }
+
+    static String reasonName(int reason) {
+        switch (reason) {
+            case REASON_START: return "start";
+            case REASON_RAMP_UP: return "throughput improved";
+            case REASON_PLATEAU: return "throughput plateau";
+            case REASON_THROUGHPUT_DROP: return "throughput dropped";
+            case REASON_ERRORS: return "connection errors";
+            case REASON_PROBE: return "probe";
+            default: return "unknown";
+        }
+    }
+
+    // ----- Private methods
+
+    private boolean change(int level, int reason) {
+        level = Math.max(MIN_LEVEL, Math.min(level, mMaxLevel));
+        mReason = reason;
+        if (level == mLevel) {
+            if (reason == REASON_RAMP_UP || reason == REASON_PROBE) {
+                // Maximum level is reached
+                mReason = REASON_PLATEAU;
+                mPlateau = 0;
+            }
+            mRaised = false;
+            return false;
+        }
+        mRaised = level > mLevel;
+        mLevel = level;
+        mSettling = true;
+        // Throughput of the new level is compared with the last one of the previous level
+        return true;
+    }
+
+}
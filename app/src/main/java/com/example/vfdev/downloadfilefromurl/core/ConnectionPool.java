@@ -0,0 +1,233 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import com.androidquery.callback.AjaxCallback;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.http.AsyncHttpClient;
+import com.koushikdutta.async.http.SimpleMiddleware;
+import com.koushikdutta.async.http.spdy.AsyncSpdyConnection;
+import com.koushikdutta.ion.Ion;
+
+import java.util.ArrayList;
+import java.util.WeakHashMap;
+
+/**
+ * Shared connection layer of the download engines :
+ * 1) Keep-alive sockets are pooled per host and reused by the next requests,
+ *    sockets idle for longer than the idle timeout are closed
+ * 2) Requests to a host over the maximum number of connections wait for a pooled socket
+ * 3) HTTP/2 or SPDY is negotiated with ALPN/NPN on TLS connections when multiplexing is on,
+ *    requests to the same host are then streams of one connection
+ * 4) Every request is counted as a new connection, a reused keep-alive connection or
+ *    a multiplexed stream, stats() returns the counters and Stats.since() those of a batch
+ * Ion engine pools its sockets itself, the pool configures it and tracks the reuse.
+ * AQuery shares one pooled HttpClient, it has no per-host limit : maximum number of
+ * connections per host limits its network threads. AQuery requests are not tracked
+ */
+public class ConnectionPool {
+
+    public static final int DEFAULT_MAX_PER_HOST = 6;
+    public static final int DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+
+    private static ConnectionPool mInstance;
+
+    private final ArrayList<AsyncHttpClient> mClients = new ArrayList<AsyncHttpClient>();
+    private int mMaxPerHost = DEFAULT_MAX_PER_HOST;
+    private int mIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private boolean mMultiplexing = true;
+
+    // Connections which already carried a request, they are released with their sockets
+    private final WeakHashMap<Object, Boolean> mConnections = new WeakHashMap<Object, Boolean>();
+    private final Stats mStats = new Stats();
+
+    // ----- Public methods
+
+    static public synchronized ConnectionPool getInstance() {
+        if (mInstance == null) {
+            mInstance = new ConnectionPool();
+        }
+        return mInstance;
+    }
+
+    /**
+     * @param connections maximum number of open connections to one host, at least 1
+     */
+    public synchronized void setMaxPerHost(int connections) {
+        mMaxPerHost = Math.max(1, connections);
+        configure();
+    }
+
+    public synchronized int getMaxPerHost() {
+        return mMaxPerHost;
+    }
+
+    /**
+     * @param millis pooled sockets idle for longer are closed
+     */
+    public synchronized void setIdleTimeout(int millis) {
+        mIdleTimeout = Math.max(0, millis);
+        configure();
+    }
+
+    public synchronized int getIdleTimeout() {
+        return mIdleTimeout;
+    }
+
+    /**
+     * @param enabled true to negotiate HTTP/2 or SPDY on TLS connections of Ion
+     */
+    public synchronized void setMultiplexing(boolean enabled) {
+        mMultiplexing = enabled;
+        configure();
+    }
+
+    public synchronized boolean isMultiplexing() {
+        return mMultiplexing;
+    }
+
+    /**
+     * @return copy of the counters since the process has started
+     */
+    public synchronized Stats stats() {
+        return mStats.copy();
+    }
+
+    // ----- Package methods, used by the engines
+
+    /**
+     * Apply the pool settings to the client of the Ion instance and track its connections
+     */
+    synchronized void install(Ion ion) {
+        AsyncHttpClient client = ion.getHttpClient();
+        if (mClients.contains(client)) return;
+        mClients.add(client);
+        client.insertMiddleware(new _Tracker());
+        configure();
+    }
+
+    /**
+     * Apply the pool settings to the shared HttpClient of AQuery
+     */
+    synchronized void installAQuery() {
+        AjaxCallback.setReuseHttpClient(true);
+        AjaxCallback.setNetworkLimit(mMaxPerHost);
+    }
+
+    // ----- Private methods
+
+    private ConnectionPool() {    }
+
+    private void configure() {
+        for (AsyncHttpClient client : mClients) {
+            client.getSocketMiddleware().setMaxConnectionCount(mMaxPerHost);
+            client.getSocketMiddleware().setIdleTimeoutMs(mIdleTimeout);
+            client.getSSLSocketMiddleware().setMaxConnectionCount(mMaxPerHost);
+            client.getSSLSocketMiddleware().setIdleTimeoutMs(mIdleTimeout);
+            client.getSSLSocketMiddleware().setSpdyEnabled(mMultiplexing);
+        }
+    }
+
+    private synchronized void onExchange(AsyncSocket socket) {
+        mStats.requests++;
+        Object connection = socket;
+        boolean stream = socket instanceof AsyncSpdyConnection.SpdySocket;
+        if (stream) {
+            // Every request is a new stream of the shared connection
+            connection = ((AsyncSpdyConnection.SpdySocket) socket).getConnection();
+        }
+        if (mConnections.put(connection, Boolean.TRUE) == null) {
+            mStats.connections++;
+        } else if (stream) {
+            mStats.multiplexed++;
+        } else {
+            mStats.reused++;
+        }
+    }
+
+    // ------ Request tracker
+
+    private class _Tracker extends SimpleMiddleware {
+
+        @Override
+        public boolean exchangeHeaders(OnExchangeHeaderData data) {
+            if (data.socket != null) {
+                onExchange(data.socket);
+            }
+            // Headers are exchanged by the transport middleware
+            return false;
+        }
+    }
+
+    // ------ Stats
+
+    public static class Stats {
+
+        private long requests;
+        private long connections;
+        private long reused;
+        private long multiplexed;
+
+        private Stats() {    }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        /**
+         * @return number of requests which opened a new connection
+         */
+        public long getConnections() {
+            return connections;
+        }
+
+        /**
+         * @return number of requests sent on a pooled keep-alive connection
+         */
+        public long getReused() {
+            return reused;
+        }
+
+        /**
+         * @return number of requests sent as a stream of an open HTTP/2 or SPDY connection
+         */
+        public long getMultiplexed() {
+            return multiplexed;
+        }
+
+        /**
+         * @return share of requests which did not open a connection, 0 if there is no request
+         */
+        public double getReuseRatio() {
+            return requests > 0 ? (double) (reused + multiplexed) / requests : 0;
+        }
+
+        /**
+         * @param start counters at the start of the batch
+         * @return counters of the requests made after start
+         */
+        public Stats since(Stats start) {
+            Stats s = copy();
+            s.requests -= start.requests;
+            s.connections -= start.connections;
+            s.reused -= start.reused;
+            s.multiplexed -= start.multiplexed;
+            return s;
+        }
+
+        private Stats copy() {
+            Stats s = new Stats();
+            s.requests = requests;
+            s.connections = connections;
+            s.reused = reused;
+            s.multiplexed = multiplexed;
+            return s;
+        }
+
+        @Override
+        public String toString() {
+            return requests + " requests, " + connections + " connections, " + reused
+                    + " reused, " + multiplexed + " multiplexed ("
+                    + Math.round(getReuseRatio() * 100) + "% reuse)";
+        }
+    }
+
+}
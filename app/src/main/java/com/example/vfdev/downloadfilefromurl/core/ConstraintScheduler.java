@@ -0,0 +1,215 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Deferred jobs which are run when the device meets their DownloadConstraints :
+ * 1) State of the device is followed with broadcasts : connectivity (metered network),
+ *    power connected/disconnected (charging), screen on/off (idle)
+ * 2) Jobs are checked in order on every change, those whose constraints are met are run
+ * 3) An alarm is set at the start of the nearest time window of the waiting jobs. It is
+ *    received by WindowAlarmReceiver, registered in the manifest, so it also starts the
+ *    service after its process was killed. The service calls refresh()
+ * All jobs also wait for a network connection.
+ * Jobs are kept in memory only, the service records them in its DownloadJournal and
+ * schedules them again when it is recreated.
+ * Methods should be called from the main thread, where the broadcasts are received
+ */
+public class ConstraintScheduler {
+
+    private static final String TAG = "ConstraintScheduler";
+    static final String ACTION_WINDOW = "com.example.vfdev.downloadfilefromurl.CONSTRAINTS_WINDOW";
+
+    private final Context mContext;
+    private final LinkedHashMap<String, _Job> mJobs = new LinkedHashMap<String, _Job>();
+    private final _StateReceiver mReceiver = new _StateReceiver();
+    private final PendingIntent mAlarm;
+    private int mNextKey = 0;
+
+    private boolean mConnected = false;
+    private boolean mUnmetered = false;
+    private boolean mCharging = false;
+    private boolean mIdle = false;
+
+    public ConstraintScheduler(Context context) {
+        mContext = context;
+        Intent window = new Intent(ACTION_WINDOW);
+        window.setClass(context, WindowAlarmReceiver.class);
+        mAlarm = PendingIntent.getBroadcast(context, 0, window, PendingIntent.FLAG_UPDATE_CURRENT);
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        mContext.registerReceiver(mReceiver, filter);
+        refreshState();
+    }
+
+    // ----- Public methods
+
+    /**
+     * Run the job at once if its constraints are met, otherwise when they are met
+     * @param key key to cancel the job, null if it is not canceled. Job of the same key is replaced
+     * @return true if the job is deferred
+     */
+    public boolean schedule(String key, DownloadConstraints constraints, Runnable job) {
+        if (satisfied(constraints)) {
+            job.run();
+            return false;
+        }
+        if (key == null) {
+            key = "#" + (++mNextKey);
+        }
+        Log.d(TAG, "Defer job " + key + " : " + constraints);
+        mJobs.put(key, new _Job(constraints, job));
+        updateAlarm();
+        return true;
+    }
+
+    /**
+     * @return false if there is no waiting job with the key
+     */
+    public boolean cancel(String key) {
+        if (mJobs.remove(key) == null) return false;
+        updateAlarm();
+        return true;
+    }
+
+    public boolean isDeferred(String key) {
+        return mJobs.containsKey(key);
+    }
+
+    /**
+     * @return number of waiting jobs
+     */
+    public int pending() {
+        return mJobs.size();
+    }
+
+    /**
+     * Run the jobs whose constraints are met now, e.g. when a time window opens
+     */
+    public void refresh() {
+        refreshState();
+        if (!mJobs.isEmpty()) {
+            check();
+        }
+    }
+
+    /**
+     * Forget waiting jobs and stop following the device state
+     */
+    public void release() {
+        mJobs.clear();
+        updateAlarm();
+        mContext.unregisterReceiver(mReceiver);
+    }
+
+    // ----- Private methods
+
+    private void refreshState() {
+        ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = cm.getActiveNetworkInfo();
+        mConnected = network != null && network.isConnected();
+        mUnmetered = mConnected && !cm.isActiveNetworkMetered();
+        // Battery state is a sticky broadcast
+        Intent battery = mContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        mCharging = battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        mIdle = !pm.isScreenOn();
+    }
+
+    private boolean satisfied(DownloadConstraints c) {
+        if (c.isNone()) return true;
+        return mConnected
+                && (!c.requiresUnmetered() || mUnmetered)
+                && (!c.requiresCharging() || mCharging)
+                && (!c.requiresIdle() || mIdle)
+                && c.inWindow(Calendar.getInstance());
+    }
+
+    /**
+     * Run the jobs whose constraints are met, in order of scheduling
+     */
+    private void check() {
+        ArrayList<Runnable> ready = new ArrayList<Runnable>();
+        Iterator<Map.Entry<String, _Job>> it = mJobs.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, _Job> e = it.next();
+            if (satisfied(e.getValue().constraints)) {
+                Log.d(TAG, "Run deferred job " + e.getKey());
+                ready.add(e.getValue().job);
+                it.remove();
+            }
+        }
+        updateAlarm();
+        // Jobs may schedule other jobs
+        for (Runnable job : ready) {
+            job.run();
+        }
+    }
+
+    /**
+     * Set the alarm at the nearest opening of the windows of the waiting jobs
+     */
+    private void updateAlarm() {
+        AlarmManager am = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        Calendar now = Calendar.getInstance();
+        long delay = -1;
+        for (_Job job : mJobs.values()) {
+            if (!job.constraints.hasWindow()) continue;
+            long d = job.constraints.untilWindow(now);
+            // Jobs in their window wait for other constraints, their window closes later
+            if (d > 0 && (delay < 0 || d < delay)) {
+                delay = d;
+            }
+        }
+        if (delay < 0) {
+            am.cancel(mAlarm);
+        } else {
+            am.set(AlarmManager.RTC_WAKEUP, now.getTimeInMillis() + delay, mAlarm);
+        }
+    }
+
+    // ------ Deferred job
+
+    private static class _Job {
+        final DownloadConstraints constraints;
+        final Runnable job;
+
+        _Job(DownloadConstraints constraints, Runnable job) {
+            this.constraints = constraints;
+            this.job = job;
+        }
+    }
+
+    // ------ Device state events
+
+    private class _StateReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.d(TAG, "Device event : " + intent.getAction());
+            refresh();
+        }
+    }
+
+}
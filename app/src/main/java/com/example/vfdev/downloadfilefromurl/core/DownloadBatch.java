@@ -0,0 +1,135 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Set of tasks enqueued together with DownloadQueue.enqueueBatch().
+ * Aggregate state (file counts, bytes, throughput) is computed from the states of its tasks
+ * by update(), so a batch can be reported at a fixed rate whatever its number of files.
+ * Tasks of urls which were already queued are shared with the other requests
+ */
+public class DownloadBatch {
+
+    private final int mId;
+    private final ArrayList<DownloadTask> mTasks = new ArrayList<DownloadTask>();
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    private long mFinishTime = -1;
+
+    private int mDone = 0;
+    private int mFailed = 0;
+    private int mCanceled = 0;
+    private long mDownloaded = 0;
+    private long mTotal = 0;
+
+    DownloadBatch(int id) {
+        mId = id;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * @return number of files of the batch
+     */
+    public int size() {
+        return mTasks.size();
+    }
+
+    public List<DownloadTask> getTasks() {
+        return Collections.unmodifiableList(mTasks);
+    }
+
+    /**
+     * Compute the aggregate state from the tasks, should be called on the main thread
+     * @return true if all tasks are finished
+     */
+    public boolean update() {
+        int done = 0, failed = 0, canceled = 0;
+        long downloaded = 0, total = 0;
+        for (DownloadTask t : mTasks) {
+            int state = t.getState();
+            if (state == DownloadTask.STATE_DONE) {
+                done++;
+            } else if (state == DownloadTask.STATE_FAILED) {
+                failed++;
+            } else if (state == DownloadTask.STATE_CANCELED) {
+                canceled++;
+            }
+            downloaded += t.getDownloaded();
+            // Unknown sizes are not counted, total grows as the sizes are known
+            total += Math.max(t.getTotal(), t.getDownloaded());
+        }
+        mDone = done;
+        mFailed = failed;
+        mCanceled = canceled;
+        mDownloaded = downloaded;
+        mTotal = total;
+        if (mFinishTime < 0 && isFinished()) {
+            mFinishTime = SystemClock.elapsedRealtime();
+        }
+        return isFinished();
+    }
+
+    public int getDone() {
+        return mDone;
+    }
+
+    public int getFailed() {
+        return mFailed;
+    }
+
+    public int getCanceled() {
+        return mCanceled;
+    }
+
+    /**
+     * @return number of finished files, whatever their result
+     */
+    public int getFinished() {
+        return mDone + mFailed + mCanceled;
+    }
+
+    public boolean isFinished() {
+        return getFinished() == mTasks.size();
+    }
+
+    /**
+     * @return bytes downloaded by all tasks, including the resumed parts
+     */
+    public long getDownloaded() {
+        return mDownloaded;
+    }
+
+    /**
+     * @return total size of the files whose size is known
+     */
+    public long getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * @return average throughput of the batch in bytes per second
+     */
+    public long getThroughput() {
+        long end = mFinishTime >= 0 ? mFinishTime : SystemClock.elapsedRealtime();
+        long elapsed = end - mStartTime;
+        return elapsed > 0 ? mDownloaded * 1000 / elapsed : 0;
+    }
+
+    void add(DownloadTask task) {
+        mTasks.add(task);
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadBatch{" + mId + ", " + getFinished() + "/" + mTasks.size() + " files, "
+                + mDone + " done, " + mFailed + " failed, " + mCanceled + " canceled, "
+                + mDownloaded + "/" + mTotal + " bytes, " + getThroughput() + " B/s}";
+    }
+
+}
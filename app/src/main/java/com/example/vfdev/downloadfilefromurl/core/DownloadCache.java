@@ -0,0 +1,423 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Content cache of downloaded files, keyed by url :
+ * 1) A copy of each downloaded file is kept with its validators (ETag, Last-Modified)
+ * 2) Engines send conditional requests for cached urls, 304 answer is served
+ *    by copying the cached file to the target
+ * 3) Size of the cache is bounded, least recently used files are evicted first
+ * Files are copied on a background thread, listeners are called on the main thread.
+ * Hit, miss and saved bytes counters are kept since the cache was created
+ */
+public class DownloadCache {
+
+    private static final String TAG = "DownloadCache";
+
+    public static final long DEFAULT_MAX_SIZE = 50 * 1024 * 1024;
+
+    private static final String DIR_NAME = "downloads";
+    private static final String INDEX_NAME = "index";
+
+    private static DownloadCache mInstance;
+
+    // One thread for all copies, so entries are written in order
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DownloadCache");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final File mDir;
+    private final Executor mCallbackExecutor = new MainThreadExecutor();
+    // Access ordered : the first entry is the least recently used
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long mSize = 0;
+    private long mMaxSize = DEFAULT_MAX_SIZE;
+
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mBytesSaved = 0;
+    private long mEvictions = 0;
+
+    // ----- Public methods
+
+    static public synchronized DownloadCache getInstance(Context context) {
+        if (mInstance == null) {
+            mInstance = new DownloadCache(new File(context.getCacheDir(), DIR_NAME));
+        }
+        return mInstance;
+    }
+
+    /**
+     * Set size budget of the cache, files are evicted if it is exceeded. 0 disables the cache
+     */
+    public void setMaxSize(final long bytes) {
+        synchronized (this) {
+            mMaxSize = Math.max(0, bytes);
+        }
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DownloadCache.this) {
+                    trim();
+                    saveIndex();
+                }
+            }
+        });
+    }
+
+    public synchronized long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * @return total size of cached files
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    public synchronized int count() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return number of downloads served from the cache after 304 answer
+     */
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    /**
+     * @return number of downloads which have fetched the whole body
+     */
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * @return number of body bytes that were not downloaded thanks to the cache
+     */
+    public synchronized long getBytesSaved() {
+        return mBytesSaved;
+    }
+
+    public synchronized long getEvictions() {
+        return mEvictions;
+    }
+
+    public void clear() {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DownloadCache.this) {
+                    for (Entry e : mEntries.values()) {
+                        e.file().delete();
+                    }
+                    mEntries.clear();
+                    mSize = 0;
+                    saveIndex();
+                }
+            }
+        });
+    }
+
+    // ----- Package methods, used by the engines
+
+    /**
+     * @return cached entry of url or null. Validators of the entry are used for conditional request
+     */
+    synchronized Entry get(String url) {
+        Entry e = mEntries.get(url);
+        if (e != null && !e.file().exists()) {
+            remove(url);
+            return null;
+        }
+        return e;
+    }
+
+    /**
+     * Copy cached file of url to target after 304 answer
+     * @param listener is called on the main thread with the number of restored bytes, -1 on failure
+     */
+    void restore(String url, File target, Listener listener) {
+        restore(url, target, null, listener);
+    }
+
+    /**
+     * Copy cached file of url to target after 304 answer
+     * @param digest is fed with the restored bytes during the copy, may be null
+     * @param listener is called on the main thread with the number of restored bytes, -1 on failure
+     */
+    void restore(final String url, final File target, final MessageDigest digest,
+                 final Listener listener) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File source;
+                synchronized (DownloadCache.this) {
+                    Entry e = get(url);
+                    source = e != null ? e.file() : null;
+                }
+                long length = -1;
+                if (source != null) {
+                    try {
+                        length = digest != null ? FileCopier.copy(source, target, digest)
+                                : FileCopier.copy(source, target);
+                    } catch (IOException ex) {
+                        Log.e(TAG, "Failed to restore " + url + " : " + ex.getMessage());
+                        target.delete();
+                    }
+                }
+                synchronized (DownloadCache.this) {
+                    if (length >= 0) {
+                        mHits++;
+                        mBytesSaved += length;
+                    } else {
+                        // Cached file is lost, next request fetches the whole body
+                        remove(url);
+                        saveIndex();
+                    }
+                }
+                deliver(listener, length);
+            }
+        });
+    }
+
+    /**
+     * Keep a copy of a downloaded file. Files without validators or larger than the budget
+     * are not cached, every call is counted as a miss
+     */
+    void store(final String url, final File source, final String etag, final String lastModified) {
+        synchronized (this) {
+            mMisses++;
+            // Large file is not copied only to be deleted after the copy
+            if ((etag == null && lastModified == null) || mMaxSize == 0
+                    || source.length() > mMaxSize) {
+                remove(url);
+                return;
+            }
+        }
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Entry e = new Entry(url, etag, lastModified);
+                File tmp = new File(mDir, e.name + ".tmp");
+                try {
+                    mDir.mkdirs();
+                    e.size = FileCopier.copy(source, tmp);
+                } catch (IOException ex) {
+                    Log.e(TAG, "Failed to cache " + url + " : " + ex.getMessage());
+                    tmp.delete();
+                    return;
+                }
+                synchronized (DownloadCache.this) {
+                    remove(url);
+                    if (e.size > mMaxSize || !tmp.renameTo(e.file())) {
+                        tmp.delete();
+                        saveIndex();
+                        return;
+                    }
+                    mEntries.put(url, e);
+                    mSize += e.size;
+                    trim();
+                    saveIndex();
+                }
+            }
+        });
+    }
+
+    /**
+     * Forget cached file of url, e.g. the server has sent a new version
+     */
+    void invalidate(final String url) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DownloadCache.this) {
+                    if (remove(url)) {
+                        saveIndex();
+                    }
+                }
+            }
+        });
+    }
+
+    // ----- Private methods
+
+    private DownloadCache(File dir) {
+        mDir = dir;
+        loadIndex();
+    }
+
+    private boolean remove(String url) {
+        Entry e = mEntries.remove(url);
+        if (e == null) return false;
+        mSize -= e.size;
+        e.file().delete();
+        return true;
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            Entry e = it.next().getValue();
+            it.remove();
+            mSize -= e.size;
+            e.file().delete();
+            mEvictions++;
+            Log.d(TAG, "Evict " + e.url);
+        }
+    }
+
+    private void deliver(final Listener listener, final long length) {
+        if (listener == null) return;
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onRestored(length);
+            }
+        });
+    }
+
+    /**
+     * Index is stored as properties : <name>.url, <name>.etag, ... in the order of use
+     */
+    private void loadIndex() {
+        File f = new File(mDir, INDEX_NAME);
+        if (!f.exists()) return;
+        Properties p = new Properties();
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(f);
+            p.load(in);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read index : " + e.getMessage());
+            return;
+        } finally {
+            close(in);
+        }
+        int count = parseInt(p.getProperty("count"));
+        for (int i = 0; i < count; i++) {
+            String url = p.getProperty(i + ".url");
+            if (url == null) continue;
+            Entry e = new Entry(url, p.getProperty(i + ".etag"), p.getProperty(i + ".lastModified"));
+            e.size = e.file().length();
+            if (e.size == 0 && !e.file().exists()) continue;
+            mEntries.put(url, e);
+            mSize += e.size;
+        }
+        trim();
+    }
+
+    private void saveIndex() {
+        Properties p = new Properties();
+        int i = 0;
+        for (Entry e : new ArrayList<Entry>(mEntries.values())) {
+            p.setProperty(i + ".url", e.url);
+            if (e.etag != null) p.setProperty(i + ".etag", e.etag);
+            if (e.lastModified != null) p.setProperty(i + ".lastModified", e.lastModified);
+            i++;
+        }
+        p.setProperty("count", String.valueOf(i));
+        FileOutputStream out = null;
+        try {
+            mDir.mkdirs();
+            out = new FileOutputStream(new File(mDir, INDEX_NAME));
+            p.store(out, null);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write index : " + e.getMessage());
+        } finally {
+            close(out);
+        }
+    }
+
+    private static int parseInt(String value) {
+        if (value == null) return 0;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void close(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    private static String nameFor(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) {
+                sb.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(url.hashCode());
+        } catch (IOException e) {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+
+    // ------ Cache entry
+
+    class Entry {
+        final String url;
+        final String name;
+        final String etag;
+        final String lastModified;
+        long size;
+
+        Entry(String url, String etag, String lastModified) {
+            this.url = url;
+            this.name = nameFor(url);
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        File file() {
+            return new File(mDir, name);
+        }
+    }
+
+    // ------ Restore listener
+
+    interface Listener {
+        /**
+         * @param length number of restored bytes, -1 if the cached file is lost
+         */
+        void onRestored(long length);
+    }
+
+}
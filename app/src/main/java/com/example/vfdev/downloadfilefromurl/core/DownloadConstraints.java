@@ -0,0 +1,118 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import java.util.Calendar;
+import java.util.Locale;
+
+/**
+ * Conditions of the device required to start a deferred download :
+ * unmetered network, charging, idle (screen off) and a daily time window.
+ * Window is given in minutes after local midnight, it may span midnight (e.g. 22:00 - 06:00)
+ */
+public class DownloadConstraints {
+
+    public static final int NO_WINDOW = -1;
+    public static final int MINUTES_PER_DAY = 24 * 60;
+
+    public static final DownloadConstraints NONE = new DownloadConstraints(false, false, false,
+            NO_WINDOW, NO_WINDOW);
+
+    private final boolean mUnmetered;
+    private final boolean mCharging;
+    private final boolean mIdle;
+    private final int mWindowStart;
+    private final int mWindowEnd;
+
+    /**
+     * @param windowStart first minute of the window after midnight, NO_WINDOW for any time
+     * @param windowEnd minute after midnight when the window closes
+     */
+    public DownloadConstraints(boolean unmetered, boolean charging, boolean idle,
+                               int windowStart, int windowEnd) {
+        mUnmetered = unmetered;
+        mCharging = charging;
+        mIdle = idle;
+        if (windowStart < 0 || windowEnd < 0 || windowStart == windowEnd) {
+            mWindowStart = NO_WINDOW;
+            mWindowEnd = NO_WINDOW;
+        } else {
+            mWindowStart = windowStart % MINUTES_PER_DAY;
+            mWindowEnd = windowEnd % MINUTES_PER_DAY;
+        }
+    }
+
+    public boolean requiresUnmetered() {
+        return mUnmetered;
+    }
+
+    public boolean requiresCharging() {
+        return mCharging;
+    }
+
+    public boolean requiresIdle() {
+        return mIdle;
+    }
+
+    public int getWindowStart() {
+        return mWindowStart;
+    }
+
+    public int getWindowEnd() {
+        return mWindowEnd;
+    }
+
+    public boolean hasWindow() {
+        return mWindowStart != NO_WINDOW;
+    }
+
+    /**
+     * @return true if nothing is required, the download is started at once
+     */
+    public boolean isNone() {
+        return !mUnmetered && !mCharging && !mIdle && !hasWindow();
+    }
+
+    /**
+     * @return true if the time is in the window or if there is no window
+     */
+    public boolean inWindow(Calendar time) {
+        if (!hasWindow()) return true;
+        int minute = minuteOfDay(time);
+        if (mWindowStart < mWindowEnd) {
+            return minute >= mWindowStart && minute < mWindowEnd;
+        }
+        return minute >= mWindowStart || minute < mWindowEnd;
+    }
+
+    /**
+     * @return milliseconds until the next opening of the window, 0 if time is in the window
+     */
+    public long untilWindow(Calendar time) {
+        if (inWindow(time)) return 0;
+        int minutes = mWindowStart - minuteOfDay(time);
+        if (minutes <= 0) {
+            minutes += MINUTES_PER_DAY;
+        }
+        long millis = minutes * 60 * 1000L;
+        // Start of the window is on a minute boundary
+        return millis - time.get(Calendar.SECOND) * 1000L - time.get(Calendar.MILLISECOND);
+    }
+
+    private static int minuteOfDay(Calendar time) {
+        return time.get(Calendar.HOUR_OF_DAY) * 60 + time.get(Calendar.MINUTE);
+    }
+
+    @Override
+    public String toString() {
+        if (isNone()) return "DownloadConstraints{none}";
+        StringBuilder sb = new StringBuilder("DownloadConstraints{");
+        if (mUnmetered) sb.append("unmetered ");
+        if (mCharging) sb.append("charging ");
+        if (mIdle) sb.append("idle ");
+        if (hasWindow()) {
+            sb.append(String.format(Locale.US, "%02d:%02d-%02d:%02d",
+                    mWindowStart / 60, mWindowStart % 60, mWindowEnd / 60, mWindowEnd % 60));
+        }
+        return sb.toString().trim() + "}";
+    }
+
+}
@@ -0,0 +1,541 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only journal of download tasks, used to rebuild the queue after the process is killed.
+ * 1) Records : enqueue, attach (other output of the url), progress checkpoint, finish,
+ *    defer and undefer of the requests waiting for their constraints.
+ *    Each record ends with a marker byte,
+ *    a torn record at the tail is dropped and truncated on load
+ * 2) Writes are batched : records are kept in memory and appended by one background thread
+ *    at most once per FLUSH_DELAY. Only the last checkpoint of a task is written per batch
+ * 3) When the log is mostly made of dead records, it is compacted : live tasks are rewritten
+ *    into a new file which replaces the log
+ * Deferred requests are kept as the request intent in URI form (Intent.toUri), with its
+ * constraint extras, and the url lists of batches which the URI form does not hold
+ */
+class DownloadJournal {
+
+    private static final String TAG = "DownloadJournal";
+
+    static final long FLUSH_DELAY = 2000;
+    // Compact when the log has more records than this many per live task
+    private static final int COMPACT_RATIO = 4;
+    private static final int COMPACT_MIN_RECORDS = 64;
+
+    private static final int VERSION = 2;
+    private static final byte OP_ENQUEUE = 1;
+    private static final byte OP_CHECKPOINT = 2;
+    private static final byte OP_FINISH = 3;
+    private static final byte OP_ATTACH = 4;
+    private static final byte OP_DEFER = 5;
+    private static final byte OP_UNDEFER = 6;
+    private static final byte END = 0x7f;
+
+    // One writer thread for all journals, writes are small and batched
+    private static final ScheduledExecutorService sWriter = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DownloadJournal");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final File mFile;
+    private final Object mWriteLock = new Object();
+
+    // Live tasks, as they are on disk after the pending records are written
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+    private final LinkedHashMap<String, Deferred> mDeferred = new LinkedHashMap<String, Deferred>();
+    // Records not yet written, checkpoints are coalesced by url
+    private final ArrayList<Record> mPending = new ArrayList<Record>();
+    private final LinkedHashMap<String, Record> mCheckpoints = new LinkedHashMap<String, Record>();
+    private boolean mScheduled = false;
+    private boolean mClosed = false;
+    private int mRecords = 0;
+
+    DownloadJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Read the log and return unfinished tasks in the order of enqueue
+     */
+    synchronized List<Entry> load() {
+        mEntries.clear();
+        mDeferred.clear();
+        mRecords = 0;
+        if (mFile.exists()) {
+            long valid = read();
+            if (valid < mFile.length()) {
+                Log.w(TAG, "Drop torn journal tail at " + valid);
+                truncate(valid);
+            }
+        }
+        return new ArrayList<Entry>(mEntries.values());
+    }
+
+    /**
+     * Record a new task. If the url is already in the journal, the output is attached to it
+     */
+    synchronized void enqueued(String url, String filename, int where, int priority,
+                               String digestAlgorithm, String digest) {
+        Entry existing = mEntries.get(url);
+        if (existing != null) {
+            if (existing.attach(filename, where)) {
+                Record r = new Record(OP_ATTACH, url);
+                r.copy = new DownloadTask.Copy(filename, where);
+                add(r);
+            }
+            return;
+        }
+        Entry e = new Entry(url, filename, where, priority);
+        e.digestAlgorithm = digestAlgorithm;
+        e.digest = digest;
+        mEntries.put(url, e);
+        Record r = new Record(OP_ENQUEUE, url);
+        r.entry = e;
+        add(r);
+    }
+
+    synchronized void checkpoint(String url, long downloaded, long total) {
+        Entry e = mEntries.get(url);
+        if (e == null) return;
+        e.downloaded = downloaded;
+        e.total = total;
+        Record r = new Record(OP_CHECKPOINT, url);
+        r.downloaded = downloaded;
+        r.total = total;
+        mCheckpoints.put(url, r);
+        schedule();
+    }
+
+    synchronized void finished(String url) {
+        if (mEntries.remove(url) == null) return;
+        mCheckpoints.remove(url);
+        add(new Record(OP_FINISH, url));
+    }
+
+    /**
+     * @return requests waiting for their constraints, in the order they were deferred,
+     * as read by load() and recorded since
+     */
+    synchronized List<Deferred> getDeferred() {
+        return new ArrayList<Deferred>(mDeferred.values());
+    }
+
+    /**
+     * Record a request waiting for its constraints, it replaces the request of the same key
+     * @param request request intent in URI form
+     * @param urls urls of a batch, empty if the request does not hold them
+     * @param filenames file names of the batch urls, null for a generated name
+     */
+    synchronized void deferred(String key, String request, List<String> urls,
+                               List<String> filenames) {
+        Deferred d = new Deferred(key, request);
+        d.urls.addAll(urls);
+        d.filenames.addAll(filenames);
+        mDeferred.remove(key);
+        mDeferred.put(key, d);
+        Record r = new Record(OP_DEFER, key);
+        r.deferred = d;
+        add(r);
+    }
+
+    /**
+     * Remove the request when it is started or canceled
+     */
+    synchronized void undeferred(String key) {
+        if (mDeferred.remove(key) == null) return;
+        add(new Record(OP_UNDEFER, key));
+    }
+
+    /**
+     * Write pending records and stop recording. Tasks finished after close stay in the log
+     */
+    void close() {
+        synchronized (this) {
+            mClosed = true;
+        }
+        flush();
+    }
+
+    // ----- Private methods
+
+    private void add(Record r) {
+        mPending.add(r);
+        schedule();
+    }
+
+    private void schedule() {
+        if (mScheduled || mClosed) return;
+        mScheduled = true;
+        sWriter.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called on the writer thread, or on the caller thread by close().
+     * Batches are taken and written under one lock, so they reach the disk in order
+     */
+    private void flush() {
+        synchronized (mWriteLock) {
+            ArrayList<Record> batch;
+            ArrayList<Entry> live = null;
+            ArrayList<Deferred> deferred = null;
+            synchronized (this) {
+                mScheduled = false;
+                batch = new ArrayList<Record>(mPending);
+                batch.addAll(mCheckpoints.values());
+                mPending.clear();
+                mCheckpoints.clear();
+                if (batch.isEmpty()) return;
+                mRecords += batch.size();
+                if (mRecords > COMPACT_MIN_RECORDS
+                        && mRecords > COMPACT_RATIO * (mEntries.size() + mDeferred.size())) {
+                    live = new ArrayList<Entry>();
+                    for (Entry e : mEntries.values()) {
+                        live.add(e.copy());
+                    }
+                    // Deferred requests are not changed after they are recorded
+                    deferred = new ArrayList<Deferred>(mDeferred.values());
+                    mRecords = deferred.size();
+                    for (Entry e : live) {
+                        mRecords += 2 + e.copies.size();
+                    }
+                }
+            }
+            try {
+                if (live != null) {
+                    rewrite(live, deferred);
+                } else {
+                    append(batch);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write journal : " + e.getMessage());
+            }
+        }
+    }
+
+    private void append(List<Record> batch) throws IOException {
+        boolean header = !mFile.exists() || mFile.length() == 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(mFile, true)));
+        try {
+            if (header) {
+                out.writeInt(VERSION);
+            }
+            for (Record r : batch) {
+                r.write(out);
+            }
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void rewrite(List<Entry> live, List<Deferred> deferred) throws IOException {
+        File tmp = new File(mFile.getAbsolutePath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp, false)));
+        try {
+            out.writeInt(VERSION);
+            for (Entry e : live) {
+                Record r = new Record(OP_ENQUEUE, e.url);
+                r.entry = e;
+                r.write(out);
+                for (DownloadTask.Copy c : e.copies) {
+                    r = new Record(OP_ATTACH, e.url);
+                    r.copy = c;
+                    r.write(out);
+                }
+                r = new Record(OP_CHECKPOINT, e.url);
+                r.downloaded = e.downloaded;
+                r.total = e.total;
+                r.write(out);
+            }
+            for (Deferred d : deferred) {
+                Record r = new Record(OP_DEFER, d.key);
+                r.deferred = d;
+                r.write(out);
+            }
+            out.flush();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("Failed to replace journal " + mFile);
+        }
+    }
+
+    /**
+     * @return length of the valid part of the log
+     */
+    private long read() {
+        byte[] data;
+        try {
+            data = readFully(mFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read journal : " + e.getMessage());
+            return 0;
+        }
+        ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+        DataInputStream in = new DataInputStream(bytes);
+        long valid = 0;
+        try {
+            if (in.readInt() != VERSION) {
+                Log.w(TAG, "Unknown journal version, journal is reset");
+                return 0;
+            }
+            valid = data.length - bytes.available();
+            while (true) {
+                Record r = Record.read(in);
+                if (r == null) break;
+                apply(r);
+                mRecords++;
+                valid = data.length - bytes.available();
+            }
+        } catch (IOException e) {
+            // torn record at the tail
+        }
+        return valid;
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int n = 0;
+            while (n < data.length) {
+                int r = in.read(data, n, data.length - n);
+                if (r < 0) break;
+                n += r;
+            }
+            if (n < data.length) {
+                byte[] copy = new byte[n];
+                System.arraycopy(data, 0, copy, 0, n);
+                return copy;
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void apply(Record r) {
+        if (r.op == OP_ENQUEUE) {
+            mEntries.put(r.url, r.entry);
+        } else if (r.op == OP_CHECKPOINT) {
+            Entry e = mEntries.get(r.url);
+            if (e != null) {
+                e.downloaded = r.downloaded;
+                e.total = r.total;
+            }
+        } else if (r.op == OP_ATTACH) {
+            Entry e = mEntries.get(r.url);
+            if (e != null) {
+                e.attach(r.copy.filename, r.copy.where);
+            }
+        } else if (r.op == OP_FINISH) {
+            mEntries.remove(r.url);
+        } else if (r.op == OP_DEFER) {
+            mDeferred.remove(r.url);
+            mDeferred.put(r.url, r.deferred);
+        } else if (r.op == OP_UNDEFER) {
+            mDeferred.remove(r.url);
+        }
+    }
+
+    private void truncate(long length) {
+        synchronized (mWriteLock) {
+            RandomAccessFile f = null;
+            try {
+                f = new RandomAccessFile(mFile, "rw");
+                f.setLength(length);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to truncate journal : " + e.getMessage());
+            } finally {
+                if (f != null) {
+                    try {
+                        f.close();
+                    } catch (IOException e) {
+                        // nothing to do
+                    }
+                }
+            }
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    // ------ Journal entries
+
+    /**
+     * Unfinished task with its last checkpoint
+     */
+    static class Entry {
+        final String url;
+        final String filename;
+        final int where;
+        final int priority;
+        final ArrayList<DownloadTask.Copy> copies = new ArrayList<DownloadTask.Copy>();
+        String digestAlgorithm;
+        String digest;
+        long downloaded = 0;
+        long total = -1;
+
+        Entry(String url, String filename, int where, int priority) {
+            this.url = url;
+            this.filename = filename;
+            this.where = where;
+            this.priority = priority;
+        }
+
+        boolean attach(String filename, int where) {
+            if (filename.equals(this.filename) && where == this.where) return false;
+            for (DownloadTask.Copy c : copies) {
+                if (filename.equals(c.filename) && where == c.where) return false;
+            }
+            copies.add(new DownloadTask.Copy(filename, where));
+            return true;
+        }
+
+        Entry copy() {
+            Entry e = new Entry(url, filename, where, priority);
+            e.copies.addAll(copies);
+            e.digestAlgorithm = digestAlgorithm;
+            e.digest = digest;
+            e.downloaded = downloaded;
+            e.total = total;
+            return e;
+        }
+    }
+
+    /**
+     * Request waiting for its constraints
+     */
+    static class Deferred {
+        final String key;
+        final String request;
+        final ArrayList<String> urls = new ArrayList<String>();
+        final ArrayList<String> filenames = new ArrayList<String>();
+
+        Deferred(String key, String request) {
+            this.key = key;
+            this.request = request;
+        }
+    }
+
+    /**
+     * Record of a task, the url is the key of a deferred request in defer records
+     */
+    private static class Record {
+        final byte op;
+        final String url;
+        Entry entry;
+        Deferred deferred;
+        DownloadTask.Copy copy;
+        long downloaded;
+        long total;
+
+        Record(byte op, String url) {
+            this.op = op;
+            this.url = url;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(op);
+            out.writeUTF(url);
+            if (op == OP_ENQUEUE) {
+                out.writeUTF(entry.filename != null ? entry.filename : "");
+                out.writeInt(entry.where);
+                out.writeInt(entry.priority);
+                out.writeUTF(entry.digestAlgorithm != null ? entry.digestAlgorithm : "");
+                out.writeUTF(entry.digest != null ? entry.digest : "");
+            } else if (op == OP_ATTACH) {
+                out.writeUTF(copy.filename);
+                out.writeInt(copy.where);
+            } else if (op == OP_CHECKPOINT) {
+                out.writeLong(downloaded);
+                out.writeLong(total);
+            } else if (op == OP_DEFER) {
+                out.writeUTF(deferred.request);
+                out.writeInt(deferred.urls.size());
+                for (int i = 0; i < deferred.urls.size(); i++) {
+                    out.writeUTF(deferred.urls.get(i));
+                    String filename = deferred.filenames.get(i);
+                    out.writeUTF(filename != null ? filename : "");
+                }
+            }
+            out.writeByte(END);
+        }
+
+        /**
+         * @return record or null at the end of the log
+         * @throws EOFException if the last record is torn
+         */
+        static Record read(DataInputStream in) throws IOException {
+            int op = in.read();
+            if (op < 0) return null;
+            Record r = new Record((byte) op, in.readUTF());
+            if (op == OP_ENQUEUE) {
+                String filename = in.readUTF();
+                int where = in.readInt();
+                int priority = in.readInt();
+                r.entry = new Entry(r.url, filename, where, priority);
+                r.entry.digestAlgorithm = emptyToNull(in.readUTF());
+                r.entry.digest = emptyToNull(in.readUTF());
+            } else if (op == OP_ATTACH) {
+                String filename = in.readUTF();
+                int where = in.readInt();
+                r.copy = new DownloadTask.Copy(filename, where);
+            } else if (op == OP_CHECKPOINT) {
+                r.downloaded = in.readLong();
+                r.total = in.readLong();
+            } else if (op == OP_DEFER) {
+                r.deferred = new Deferred(r.url, in.readUTF());
+                int count = in.readInt();
+                if (count < 0) throw new EOFException("Invalid url count " + count);
+                for (int i = 0; i < count; i++) {
+                    r.deferred.urls.add(in.readUTF());
+                    r.deferred.filenames.add(emptyToNull(in.readUTF()));
+                }
+            } else if (op != OP_FINISH && op != OP_UNDEFER) {
+                throw new EOFException("Unknown record " + op);
+            }
+            if (in.readByte() != END) {
+                throw new EOFException("Record is not terminated");
+            }
+            return r;
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Performance metrics of one download. Engines record the phases of the transfer as they
+ * happen, the metrics are added to MetricsRegistry when the download is finished.
+ * Phases which an engine can not observe stay UNKNOWN, e.g. DNS lookup of Ion is a part
+ * of its connect time. Times are in milliseconds from the start of the download
+ */
+public class DownloadMetrics {
+
+    public static final long UNKNOWN = -1;
+
+    public static final int RESULT_RUNNING = -1;
+    public static final int RESULT_OK = 0;
+    public static final int RESULT_CANCELED = 1;
+    public static final int RESULT_FAILED = 2;
+
+    // Peak throughput is measured over windows of this length
+    private static final long PEAK_WINDOW = 1000;
+
+    private final String mUrl;
+    private final String mEngine;
+    private final long mStartTime;
+    private final long mStart;
+
+    private long mDns = UNKNOWN;
+    private long mConnect = UNKNOWN;
+    private long mFirstByte = UNKNOWN;
+    private long mTotal = UNKNOWN;
+    private long mBytes = 0;
+    private long mPeakThroughput = 0;
+    private int mRetries = 0;
+    private long mDiskWriteNanos = 0;
+    private boolean mDiskWriteKnown = false;
+    private int mResult = RESULT_RUNNING;
+    private int mError = 0;
+
+    private long mWindowStart;
+    private long mWindowBytes = 0;
+
+    DownloadMetrics(String url, String engine) {
+        mUrl = url;
+        mEngine = engine;
+        mStartTime = System.currentTimeMillis();
+        mStart = SystemClock.elapsedRealtime();
+        mWindowStart = mStart;
+    }
+
+    // ----- Public methods
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * @return name of the engine : "Ion", "Nio" or "AQ"
+     */
+    public String getEngine() {
+        return mEngine;
+    }
+
+    /**
+     * @return wall clock time of the start in milliseconds
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    public synchronized long getDnsMillis() {
+        return mDns;
+    }
+
+    /**
+     * @return time until the connection was established, including DNS lookup
+     */
+    public synchronized long getConnectMillis() {
+        return mConnect;
+    }
+
+    /**
+     * @return time until the response headers were received
+     */
+    public synchronized long getFirstByteMillis() {
+        return mFirstByte;
+    }
+
+    public synchronized long getTotalMillis() {
+        return mTotal != UNKNOWN ? mTotal : SystemClock.elapsedRealtime() - mStart;
+    }
+
+    /**
+     * @return number of body bytes received
+     */
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return bytes per second over the whole download
+     */
+    public synchronized long getAverageThroughput() {
+        long total = getTotalMillis();
+        return total > 0 ? mBytes * 1000 / total : mBytes;
+    }
+
+    /**
+     * @return highest bytes per second over one second window, average if the download was shorter
+     */
+    public synchronized long getPeakThroughput() {
+        return Math.max(mPeakThroughput, getAverageThroughput());
+    }
+
+    public synchronized int getRetries() {
+        return mRetries;
+    }
+
+    /**
+     * @return time spent writing the file
+     */
+    public synchronized long getDiskWriteMillis() {
+        return mDiskWriteKnown ? mDiskWriteNanos / 1000000 : UNKNOWN;
+    }
+
+    /**
+     * @return RESULT_RUNNING, RESULT_OK, RESULT_CANCELED or RESULT_FAILED
+     */
+    public synchronized int getResult() {
+        return mResult;
+    }
+
+    /**
+     * @return error code of the engine if the download failed
+     */
+    public synchronized int getError() {
+        return mError;
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject o = new JSONObject();
+        o.put("url", mUrl);
+        o.put("engine", mEngine);
+        o.put("startTime", mStartTime);
+        o.put("result", mResult);
+        o.put("error", mError);
+        o.put("dnsMillis", mDns);
+        o.put("connectMillis", mConnect);
+        o.put("firstByteMillis", mFirstByte);
+        o.put("totalMillis", getTotalMillis());
+        o.put("bytes", mBytes);
+        o.put("averageThroughput", getAverageThroughput());
+        o.put("peakThroughput", getPeakThroughput());
+        o.put("retries", mRetries);
+        o.put("diskWriteMillis", getDiskWriteMillis());
+        return o;
+    }
+
+    @Override
+    public String toString() {
+        return mEngine + " " + mUrl + " : " + mBytes + " bytes in " + getTotalMillis()
+                + " ms, dns " + mDns + ", connect " + mConnect + ", first byte " + mFirstByte
+                + ", disk " + getDiskWriteMillis() + " ms, " + getAverageThroughput()
+                + " B/s (peak " + getPeakThroughput() + "), retries " + mRetries;
+    }
+
+    // ----- Package methods, called by the engines on their transfer threads
+
+    synchronized void resolved() {
+        if (mDns == UNKNOWN) mDns = elapsed();
+    }
+
+    synchronized void connected() {
+        if (mConnect == UNKNOWN) mConnect = elapsed();
+    }
+
+    synchronized void firstByte() {
+        if (mFirstByte == UNKNOWN) mFirstByte = elapsed();
+    }
+
+    /**
+     * @param bytes received bytes
+     * @param writeNanos time spent writing them, UNKNOWN if the engine does not write itself
+     */
+    synchronized void received(long bytes, long writeNanos) {
+        if (bytes <= 0) return;
+        mBytes += bytes;
+        if (writeNanos != UNKNOWN) {
+            mDiskWriteKnown = true;
+            mDiskWriteNanos += writeNanos;
+        }
+        long now = SystemClock.elapsedRealtime();
+        mWindowBytes += bytes;
+        long window = now - mWindowStart;
+        if (window >= PEAK_WINDOW) {
+            mPeakThroughput = Math.max(mPeakThroughput, mWindowBytes * 1000 / window);
+            mWindowStart = now;
+            mWindowBytes = 0;
+        }
+    }
+
+    /**
+     * Set number of received bytes, for engines which report only the total
+     */
+    synchronized void setBytes(long bytes) {
+        mBytes = Math.max(0, bytes);
+    }
+
+    synchronized void retried() {
+        mRetries++;
+    }
+
+    /**
+     * @return false if the download was already finished
+     */
+    synchronized boolean finished(int result, int error) {
+        if (mResult != RESULT_RUNNING) return false;
+        mResult = result;
+        mError = error;
+        mTotal = elapsed();
+        return true;
+    }
+
+    // ----- Private methods
+
+    private long elapsed() {
+        return SystemClock.elapsedRealtime() - mStart;
+    }
+
+}
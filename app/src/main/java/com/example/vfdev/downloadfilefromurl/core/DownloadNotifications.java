@@ -0,0 +1,285 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.format.Formatter;
+import android.widget.RemoteViews;
+
+import com.example.vfdev.downloadfilefromurl.R;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Notifications of the download tasks and batches of FileDownloadService :
+ * 1) Every task gets a new id from a counter, ids of tasks, summary and batches are in
+ *    different tags, so two notifications never share an id
+ * 2) Progress only marks a notification as changed, changed notifications are posted
+ *    together at most every update interval
+ * 3) Above the collapse threshold, task notifications are replaced by one summary
+ *    notification with the aggregate progress. Tasks are shown again one by one when
+ *    their number falls to half of the threshold
+ * 4) Batches have one notification each, refreshed at the same rate until they are finished
+ * Methods should be called from the main thread
+ */
+public class DownloadNotifications {
+
+    public static final long DEFAULT_UPDATE_INTERVAL = 1000;
+    public static final int DEFAULT_COLLAPSE_THRESHOLD = 5;
+
+    private static final String TAG_TASK = "task";
+    private static final String TAG_SUMMARY = "summary";
+    private static final String TAG_BATCH = "batch";
+    private static final int SUMMARY_ID = 1;
+
+    private final Context mContext;
+    private final NotificationManager mManager;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LinkedHashMap<String, _Entry> mEntries = new LinkedHashMap<String, _Entry>();
+    private final ArrayList<DownloadBatch> mBatches = new ArrayList<DownloadBatch>();
+    private long mUpdateInterval = DEFAULT_UPDATE_INTERVAL;
+    private int mCollapseThreshold = DEFAULT_COLLAPSE_THRESHOLD;
+    private int mNextId = 0;
+    private boolean mCollapsed = false;
+    private boolean mChanged = false;
+    private boolean mTicking = false;
+
+    public DownloadNotifications(Context context) {
+        mContext = context;
+        mManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+    }
+
+    // ----- Public methods
+
+    /**
+     * @param millis minimum delay between two updates of a notification
+     */
+    public void setUpdateInterval(long millis) {
+        mUpdateInterval = Math.max(0, millis);
+    }
+
+    /**
+     * @param tasks number of task notifications above which they are collapsed into a summary
+     */
+    public void setCollapseThreshold(int tasks) {
+        mCollapseThreshold = Math.max(1, tasks);
+        changed();
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Show the notification of the task, it is posted with the next update
+     */
+    public void show(String url) {
+        if (mEntries.containsKey(url)) return;
+        mEntries.put(url, new _Entry(url, ++mNextId));
+        changed();
+    }
+
+    public void progress(String url, long downloaded, long total) {
+        _Entry e = mEntries.get(url);
+        if (e == null) return;
+        e.downloaded = downloaded;
+        e.total = total;
+        e.changed = true;
+        changed();
+    }
+
+    /**
+     * Remove the notification of the task at once
+     */
+    public void hide(String url) {
+        _Entry e = mEntries.remove(url);
+        if (e == null) return;
+        if (!mCollapsed) {
+            mManager.cancel(TAG_TASK, e.id);
+        }
+        changed();
+    }
+
+    /**
+     * Show the notification of the batch until it is finished
+     */
+    public void showBatch(DownloadBatch batch) {
+        mBatches.add(batch);
+        postBatch(batch);
+        changed();
+    }
+
+    /**
+     * Remove all notifications
+     */
+    public void clear() {
+        mHandler.removeCallbacks(mUpdate);
+        mTicking = false;
+        for (_Entry e : mEntries.values()) {
+            mManager.cancel(TAG_TASK, e.id);
+        }
+        mManager.cancel(TAG_SUMMARY, SUMMARY_ID);
+        for (DownloadBatch batch : mBatches) {
+            mManager.cancel(TAG_BATCH, batch.getId());
+        }
+        mEntries.clear();
+        mBatches.clear();
+        mCollapsed = false;
+    }
+
+    // ----- Private methods
+
+    private void changed() {
+        mChanged = true;
+        if (!mTicking) {
+            mTicking = true;
+            // First change is posted at once, the next ones wait for the interval
+            mHandler.post(mUpdate);
+        }
+    }
+
+    private final Runnable mUpdate = new Runnable() {
+        @Override
+        public void run() {
+            if (!mChanged && mBatches.isEmpty()) {
+                mTicking = false;
+                return;
+            }
+            mChanged = false;
+            postTasks();
+            Iterator<DownloadBatch> it = mBatches.iterator();
+            while (it.hasNext()) {
+                DownloadBatch batch = it.next();
+                boolean finished = batch.update();
+                postBatch(batch);
+                if (finished) {
+                    it.remove();
+                }
+            }
+            mHandler.postDelayed(this, mUpdateInterval);
+        }
+    };
+
+    private void postTasks() {
+        int count = mEntries.size();
+        if (!mCollapsed && count > mCollapseThreshold) {
+            mCollapsed = true;
+            for (_Entry e : mEntries.values()) {
+                mManager.cancel(TAG_TASK, e.id);
+            }
+        } else if (mCollapsed && count <= mCollapseThreshold / 2) {
+            mCollapsed = false;
+            mManager.cancel(TAG_SUMMARY, SUMMARY_ID);
+            for (_Entry e : mEntries.values()) {
+                e.changed = true;
+            }
+        }
+        if (mCollapsed) {
+            postSummary();
+            return;
+        }
+        for (_Entry e : mEntries.values()) {
+            if (!e.changed) continue;
+            e.changed = false;
+            postTask(e);
+        }
+    }
+
+    private void postTask(_Entry e) {
+        RemoteViews nView = new RemoteViews(mContext.getPackageName(), R.layout.notification);
+        nView.setTextViewText(R.id.notification_url, e.url);
+        nView.setProgressBar(R.id.notification_progressBar, 100, e.percent(), e.total <= 0);
+
+        Intent i = new Intent(FileDownloadService.ACTION_CANCEL);
+        i.setClass(mContext, FileDownloadService.class);
+        i.setData(Uri.parse(e.url));
+        PendingIntent pi = PendingIntent.getService(mContext, e.id, i, PendingIntent.FLAG_ONE_SHOT);
+        nView.setOnClickPendingIntent(R.id.notification_close, pi);
+
+        Notification n = new Notification.Builder(mContext)
+                .setSmallIcon(android.R.drawable.stat_sys_download)
+                .setContentTitle(e.url)
+                .setProgress(100, e.percent(), e.total <= 0)
+                .setOngoing(true) // Notification can not be removed
+                .setOnlyAlertOnce(true)
+                .build();
+        n.bigContentView = nView;
+        mManager.notify(TAG_TASK, e.id, n);
+    }
+
+    private void postSummary() {
+        long downloaded = 0, total = 0;
+        boolean unknown = false;
+        for (_Entry e : mEntries.values()) {
+            e.changed = false;
+            downloaded += e.downloaded;
+            if (e.total > 0) {
+                total += e.total;
+            } else {
+                unknown = true;
+            }
+        }
+        int percent = total > 0 ? (int) Math.min(100, downloaded * 100 / total) : 0;
+        Notification n = new Notification.Builder(mContext)
+                .setSmallIcon(android.R.drawable.stat_sys_download)
+                .setContentTitle("Downloading " + mEntries.size() + " files")
+                .setContentText(Formatter.formatShortFileSize(mContext, downloaded) + " of "
+                        + Formatter.formatShortFileSize(mContext, total) + (unknown ? "+" : ""))
+                .setProgress(100, percent, total == 0)
+                .setNumber(mEntries.size())
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .build();
+        mManager.notify(TAG_SUMMARY, SUMMARY_ID, n);
+    }
+
+    private void postBatch(DownloadBatch batch) {
+        boolean finished = batch.isFinished();
+        String bytes = Formatter.formatShortFileSize(mContext, batch.getDownloaded());
+        String text;
+        if (finished) {
+            text = batch.getDone() + " done, " + batch.getFailed() + " failed, "
+                    + batch.getCanceled() + " canceled, " + bytes;
+        } else {
+            text = batch.getFinished() + "/" + batch.size() + " files, " + bytes + ", "
+                    + Formatter.formatShortFileSize(mContext, batch.getThroughput()) + "/s";
+        }
+        Notification n = new Notification.Builder(mContext)
+                .setSmallIcon(finished ? android.R.drawable.stat_sys_download_done
+                        : android.R.drawable.stat_sys_download)
+                .setContentTitle((finished ? "Downloaded " : "Downloading ") + batch.size() + " files")
+                .setContentText(text)
+                .setProgress(finished ? 0 : batch.size(), batch.getFinished(), false)
+                .setOngoing(!finished)
+                .setOnlyAlertOnce(true)
+                .build();
+        mManager.notify(TAG_BATCH, batch.getId(), n);
+    }
+
+    // ------ Notification of a task
+
+    private static class _Entry {
+        final String url;
+        final int id;
+        long downloaded = 0;
+        long total = -1;
+        boolean changed = true;
+
+        _Entry(String url, int id) {
+            this.url = url;
+            this.id = id;
+        }
+
+        int percent() {
+            return total > 0 ? (int) Math.min(100, downloaded * 100 / total) : 0;
+        }
+    }
+
+}
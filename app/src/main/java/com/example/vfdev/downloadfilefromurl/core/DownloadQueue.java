@@ -0,0 +1,558 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.koushikdutta.ion.ProgressCallback;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Queue of download tasks served by a bounded pool of workers.
+ * Each worker owns a FileDownloaderIon session, finished tasks drain the queue automatically.
+ * Order of tasks is defined by DownloadScheduler : priority and per-host connection cap.
+ * Urgent tasks preempt lower priority tasks after a bounded delay, preempted tasks are
+ * requeued and resumed from their partial files.
+ * Requests of a url which is already queued or running attach to its task : the file is
+ * downloaded once and copied to the other outputs.
+ * Tasks started while the queue was idle form a batch, connection reuse of the batch
+ * is reported when the queue is idle again.
+ * Finished tasks are kept in a bounded history, the oldest are forgotten.
+ * Methods should be called from the main thread, where Ion delivers its callbacks
+ */
+public class DownloadQueue {
+
+    private static final String TAG = "DownloadQueue";
+
+    public static final int DEFAULT_WORKERS = 3;
+    public static final long DEFAULT_PREEMPT_DELAY = 1000;
+    public static final int DEFAULT_FINISHED_HISTORY = 100;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final DownloadScheduler mScheduler = new DownloadScheduler();
+    private long mPreemptDelay = DEFAULT_PREEMPT_DELAY;
+    private final LinkedHashMap<String, DownloadTask> mTasks = new LinkedHashMap<String, DownloadTask>();
+    // Finished tasks in order of completion
+    private final ArrayDeque<DownloadTask> mFinished = new ArrayDeque<DownloadTask>();
+    private int mFinishedHistory = DEFAULT_FINISHED_HISTORY;
+    private final ArrayList<_Worker> mWorkers = new ArrayList<_Worker>();
+    private int mMaxWorkers;
+    // Connection counters at the start of the running batch, null while the queue is idle
+    private ConnectionPool.Stats mBatchStart;
+    private int mBatchId = 0;
+    private TransferLocks mLocks;
+
+    private Listener mListener;
+
+    // Progress of all workers is coalesced and delivered in one batch per tick
+    private final ProgressDispatcher mProgressDispatcher = new ProgressDispatcher(
+            new MainThreadExecutor(),
+            new ProgressDispatcher.Listener() {
+                @Override
+                public void onProgress(List<ProgressDispatcher.Progress> updates) {
+                    if (mListener == null) return;
+                    for (ProgressDispatcher.Progress p : updates) {
+                        DownloadTask task = (DownloadTask) p.key;
+                        if (!task.isFinished()) {
+                            mListener.onTaskProgress(task);
+                        }
+                    }
+                }
+            });
+
+    public DownloadQueue(Context context, int workers) {
+        mContext = context;
+        mMaxWorkers = Math.max(1, workers);
+    }
+
+    public DownloadQueue setListener(Listener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    public DownloadTask enqueue(String url, String filename, int where) {
+        return enqueue(url, filename, where, DownloadScheduler.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Add a task to the queue. If the url is already queued or running, the request is attached
+     * to the existing task, which is returned. Its output is copied when the task is done
+     * @param priority one of DownloadScheduler.PRIORITY_BULK, PRIORITY_NORMAL, PRIORITY_URGENT
+     */
+    public DownloadTask enqueue(String url, String filename, int where, int priority) {
+        return enqueue(url, filename, where, priority, null, null);
+    }
+
+    /**
+     * Add a task whose file is verified with the expected digest while it is downloaded.
+     * Task fails with a mismatch message if the digest is different
+     * @param digestAlgorithm FileDownloaderIon.DIGEST_SHA256, DIGEST_MD5, null to skip verification
+     * @param digest expected hex string of the digest
+     */
+    public DownloadTask enqueue(String url, String filename, int where, int priority,
+                                String digestAlgorithm, String digest) {
+        DownloadTask task = add(url, filename, where, priority, digestAlgorithm, digest);
+        schedule();
+        return task;
+    }
+
+    /**
+     * Add a set of tasks, workers are scheduled once for the whole set.
+     * Requests of urls which are already queued attach to their tasks as with enqueue()
+     * @param filenames output of each url, same size as urls
+     */
+    public DownloadBatch enqueueBatch(List<String> urls, List<String> filenames, int where,
+                                      int priority) {
+        DownloadBatch batch = new DownloadBatch(++mBatchId);
+        HashSet<DownloadTask> added = new HashSet<DownloadTask>();
+        for (int i = 0; i < urls.size(); i++) {
+            DownloadTask task = add(urls.get(i), filenames.get(i), where, priority, null, null);
+            if (added.add(task)) {
+                batch.add(task);
+            }
+        }
+        schedule();
+        return batch;
+    }
+
+    /**
+     * Cancel queued or running task. Partial file of a running task is kept for resume
+     * @return false if the task is not found or is already finished
+     */
+    public boolean cancel(String url) {
+        DownloadTask task = mTasks.get(url);
+        if (task == null || task.isFinished()) return false;
+
+        if (task.state == DownloadTask.STATE_QUEUED) {
+            mScheduler.remove(task);
+            finish(null, task, DownloadTask.STATE_CANCELED, "Task canceled");
+            return true;
+        }
+        for (_Worker w : mWorkers) {
+            if (w.mTask == task) {
+                task.preempted = false;
+                w.mEngine.cancel();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void cancelAll() {
+        mHandler.removeCallbacks(mPreemption);
+        while (!mScheduler.isEmpty()) {
+            finish(null, mScheduler.poll(), DownloadTask.STATE_CANCELED, "Task canceled");
+        }
+        for (_Worker w : mWorkers) {
+            if (w.mTask != null) {
+                w.mTask.preempted = false;
+                w.mEngine.cancel();
+            }
+        }
+    }
+
+    /**
+     * Limit bandwidth of a queued or running task, running task is not interrupted
+     * @param bytesPerSecond limit of the task, BandwidthLimiter.UNLIMITED for global limit only
+     * @param weight share of the global limit relative to other tasks
+     * @return false if the task is not found or is already finished
+     */
+    public boolean setBandwidth(String url, long bytesPerSecond, int weight) {
+        DownloadTask task = mTasks.get(url);
+        if (task == null || task.isFinished()) return false;
+        task.bandwidth = bytesPerSecond;
+        task.weight = Math.max(1, weight);
+        for (_Worker w : mWorkers) {
+            if (w.mTask == task) {
+                w.mEngine.bandwidth(task.bandwidth, task.weight);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Set retry policy of a queued or running task, running task uses it for its next error
+     * @return false if the task is not found or is already finished
+     */
+    public boolean setRetryPolicy(String url, RetryPolicy policy) {
+        DownloadTask task = mTasks.get(url);
+        if (task == null || task.isFinished()) return false;
+        task.retryPolicy = policy;
+        for (_Worker w : mWorkers) {
+            if (w.mTask == task) {
+                w.mEngine.retryPolicy(policy);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Set number of concurrent workers. Running tasks are not interrupted when the pool shrinks
+     */
+    public void setMaxWorkers(int workers) {
+        mMaxWorkers = Math.max(1, workers);
+        schedule();
+    }
+
+    public int getMaxWorkers() {
+        return mMaxWorkers;
+    }
+
+    /**
+     * @param locks acquired by every running task, released when the task is finished or preempted
+     */
+    public DownloadQueue setTransferLocks(TransferLocks locks) {
+        mLocks = locks;
+        return this;
+    }
+
+    public void setMaxPerHost(int connections) {
+        mScheduler.setMaxPerHost(connections);
+        schedule();
+    }
+
+    /**
+     * Set maximum number of progress events per second
+     */
+    public void setProgressRate(int eventsPerSecond) {
+        mProgressDispatcher.setRate(eventsPerSecond);
+    }
+
+    /**
+     * Set number of finished tasks which are kept, older finished tasks are forgotten
+     */
+    public void setFinishedHistory(int tasks) {
+        mFinishedHistory = Math.max(0, tasks);
+        pruneFinished();
+    }
+
+    /**
+     * Set maximum delay before an urgent task preempts a running task with lower priority
+     */
+    public void setPreemptDelay(long millis) {
+        mPreemptDelay = Math.max(0, millis);
+    }
+
+    /**
+     * @return number of tasks waiting for a worker
+     */
+    public int queued() {
+        return mScheduler.size();
+    }
+
+    /**
+     * @return number of running tasks
+     */
+    public int active() {
+        int count = 0;
+        for (_Worker w : mWorkers) {
+            if (w.mTask != null) count++;
+        }
+        return count;
+    }
+
+    public DownloadTask getTask(String url) {
+        return mTasks.get(url);
+    }
+
+    public List<DownloadTask> getTasks() {
+        return new ArrayList<DownloadTask>(mTasks.values());
+    }
+
+    /**
+     * Forget finished tasks
+     */
+    public void clearFinished() {
+        ArrayList<String> urls = new ArrayList<String>();
+        for (DownloadTask t : mTasks.values()) {
+            if (t.isFinished()) urls.add(t.getUrl());
+        }
+        for (String url : urls) {
+            mTasks.remove(url);
+        }
+        mFinished.clear();
+    }
+
+    // ----- Private methods
+
+    private DownloadTask add(String url, String filename, int where, int priority,
+                             String digestAlgorithm, String digest) {
+        DownloadTask task = mTasks.get(url);
+        if (task != null && !task.isFinished()) {
+            if (task.attach(filename, where)) {
+                Log.d(TAG, "Attach " + filename + " to the task : " + url);
+            } else {
+                Log.d(TAG, "Task is already in the queue : " + url);
+            }
+            return task;
+        }
+        task = new DownloadTask(url, filename, where, priority);
+        task.digestAlgorithm = digestAlgorithm;
+        task.digest = digest;
+        mTasks.put(url, task);
+        mScheduler.add(task);
+        return task;
+    }
+
+    private void schedule() {
+        while (!mScheduler.isEmpty()) {
+            _Worker w = idleWorker();
+            if (w == null) break;
+            DownloadTask task = mScheduler.next();
+            if (task == null) break;
+            w.start(task);
+        }
+        mHandler.removeCallbacks(mPreemption);
+        if (mScheduler.preemptionVictim(active() < mMaxWorkers) != null) {
+            mHandler.postDelayed(mPreemption, mPreemptDelay);
+        }
+    }
+
+    /**
+     * Schedule from the callbacks of the engines : a task started in a callback could fail
+     * at once and finish the next one in the same call stack, on the engine being called
+     */
+    private void scheduleLater() {
+        mHandler.removeCallbacks(mSchedule);
+        mHandler.post(mSchedule);
+    }
+
+    private final Runnable mSchedule = new Runnable() {
+        @Override
+        public void run() {
+            schedule();
+        }
+    };
+
+    private final Runnable mPreemption = new Runnable() {
+        @Override
+        public void run() {
+            DownloadTask victim = mScheduler.preemptionVictim(active() < mMaxWorkers);
+            if (victim == null) return;
+            for (_Worker w : mWorkers) {
+                if (w.mTask == victim) {
+                    Log.d(TAG, "Preempt task : " + victim.getUrl());
+                    victim.preempted = true;
+                    w.mEngine.cancel();
+                    return;
+                }
+            }
+        }
+    };
+
+    private _Worker idleWorker() {
+        int running = 0;
+        _Worker idle = null;
+        for (_Worker w : mWorkers) {
+            if (w.mTask == null) {
+                if (idle == null) idle = w;
+            } else {
+                running++;
+            }
+        }
+        if (running >= mMaxWorkers) return null;
+        if (idle == null) {
+            idle = new _Worker();
+            mWorkers.add(idle);
+        }
+        return idle;
+    }
+
+    /**
+     * Copy the file of the task to its outputs attached after the index. Task can be attached
+     * until it is finished, outputs attached during the copy are copied before the task is done
+     */
+    private void copyAttached(final DownloadTask task, final File source, int from,
+                              final String msg) {
+        List<DownloadTask.Copy> copies = task.copies();
+        final int to = copies.size();
+        File[] targets = new File[to - from];
+        for (int i = from; i < to; i++) {
+            DownloadTask.Copy c = copies.get(i);
+            File dir = c.where >= 0 ? StorageResolver.getInstance(mContext).getStorage(c.where) : null;
+            targets[i - from] = new File(dir != null ? dir : source.getParentFile(), c.filename);
+        }
+        FileCopier.copy(source, targets, new FileCopier.Listener() {
+            @Override
+            public void onCopied(IOException error) {
+                if (error != null) {
+                    finish(null, task, DownloadTask.STATE_FAILED, error.getMessage());
+                } else if (task.copies().size() > to) {
+                    copyAttached(task, source, to, msg);
+                } else {
+                    finish(null, task, DownloadTask.STATE_DONE, msg + ", copied to "
+                            + to + " outputs");
+                }
+            }
+        });
+    }
+
+    /**
+     * Forget the oldest finished tasks beyond the history
+     */
+    private void pruneFinished() {
+        while (mFinished.size() > mFinishedHistory) {
+            DownloadTask task = mFinished.poll();
+            // Url may have a new task since
+            if (mTasks.get(task.getUrl()) == task) {
+                mTasks.remove(task.getUrl());
+            }
+        }
+    }
+
+    private void finish(_Worker worker, DownloadTask task, int state, String msg) {
+        if (task.isFinished()) return;
+        if (worker != null) {
+            worker.mTask = null;
+            mScheduler.finished(task);
+            if (mLocks != null) {
+                mLocks.release();
+            }
+        }
+        mProgressDispatcher.remove(task);
+        if (task.preempted && state == DownloadTask.STATE_CANCELED) {
+            // Give way to an urgent task, partial file is resumed later
+            task.preempted = false;
+            task.state = DownloadTask.STATE_QUEUED;
+            mScheduler.requeue(task);
+            scheduleLater();
+            return;
+        }
+        task.state = state;
+        task.message = msg;
+        mFinished.add(task);
+        if (mListener != null) {
+            mListener.onTaskFinished(task);
+        }
+        pruneFinished();
+        scheduleLater();
+        if (mBatchStart != null && active() == 0 && mScheduler.isEmpty()) {
+            ConnectionPool.Stats batch = ConnectionPool.getInstance().stats().since(mBatchStart);
+            mBatchStart = null;
+            if (mListener != null) {
+                mListener.onBatchFinished(batch);
+            }
+        }
+    }
+
+    // ------ Worker
+
+    private class _Worker implements FileDownloaderIon.OnReportListener,
+            FileDownloaderIon.OnErrorListener, ProgressCallback {
+
+        private final FileDownloaderIon mEngine;
+        private DownloadTask mTask;
+
+        _Worker() {
+            mEngine = FileDownloaderIon.newSession(mContext)
+                    .setOnReportListener(this)
+                    .setOnErrorListener(this);
+            mEngine.progress(this);
+        }
+
+        void start(DownloadTask task) {
+            if (mBatchStart == null) {
+                mBatchStart = ConnectionPool.getInstance().stats();
+            }
+            mTask = task;
+            task.state = DownloadTask.STATE_RUNNING;
+            if (mLocks != null) {
+                mLocks.acquire();
+            }
+            if (mListener != null) {
+                mListener.onTaskStarted(task);
+            }
+            if (task.getWhere() >= 0) {
+                mEngine.where(task.getWhere());
+            } else {
+                mEngine.where((File) null);
+            }
+            mEngine.bandwidth(task.bandwidth, task.weight);
+            mEngine.retryPolicy(task.retryPolicy);
+            DownloadMetrics previous = mEngine.getMetrics();
+            mEngine.download(task.getUrl(), task.getFilename(), 1,
+                    task.digestAlgorithm, task.digest);
+            // Engine does not create metrics if the download failed before the request
+            if (mEngine.getMetrics() != previous) {
+                task.metrics = mEngine.getMetrics();
+            }
+        }
+
+        @Override
+        public void onReport(int code, String msg) {
+            if (mTask == null) return;
+            if (code == FileDownloaderIon.DOWNLOAD_OK && !mTask.copies().isEmpty()) {
+                copyOutputs(msg);
+            } else if (code == FileDownloaderIon.DOWNLOAD_OK) {
+                finish(this, mTask, DownloadTask.STATE_DONE, msg);
+            } else if (code == FileDownloaderIon.CANCELED) {
+                finish(this, mTask, DownloadTask.STATE_CANCELED, msg);
+            }
+        }
+
+        /**
+         * Release the worker and finish the task when its file is copied to attached outputs
+         */
+        private void copyOutputs(String msg) {
+            DownloadTask task = mTask;
+            File source = mEngine.getTarget();
+            mTask = null;
+            mScheduler.finished(task);
+            if (mLocks != null) {
+                mLocks.release();
+            }
+            scheduleLater();
+            copyAttached(task, source, 0, msg);
+        }
+
+        @Override
+        public void onError(int code, String errorMessage) {
+            if (mTask == null) return;
+            if (code == FileDownloaderIon.ERROR_DOWNLOAD_FAILED
+                    || code == FileDownloaderIon.ERROR_CHECKSUM_MISMATCH
+                    || code == FileDownloaderIon.ERROR_NOT_ENOUGH_FREE_SPACE
+                    || code == FileDownloaderIon.ERROR_NO_STORAGE
+                    || code == FileDownloaderIon.ERROR_STORAGE_NOT_AVAILABLE
+                    || code == FileDownloaderIon.ERROR_NOT_INIT) {
+                finish(this, mTask, DownloadTask.STATE_FAILED, errorMessage);
+            } else {
+                Log.w(TAG, errorMessage);
+            }
+        }
+
+        @Override
+        public void onProgress(long downloaded, long total) {
+            DownloadTask task = mTask;
+            if (task == null) return;
+            task.downloaded = downloaded;
+            task.total = total;
+            mProgressDispatcher.update(task, downloaded, total);
+        }
+    }
+
+    // ------ Queue listener
+
+    public interface Listener {
+        public void onTaskStarted(DownloadTask task);
+        /**
+         * Called on the main thread at most ProgressDispatcher rate times per second
+         */
+        public void onTaskProgress(DownloadTask task);
+        public void onTaskFinished(DownloadTask task);
+        /**
+         * Called when the last task of a batch is finished and the queue is idle
+         * @param stats connection reuse of the requests of the batch
+         */
+        public void onBatchFinished(ConnectionPool.Stats stats);
+    }
+
+}
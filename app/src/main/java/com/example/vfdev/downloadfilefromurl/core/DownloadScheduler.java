@@ -0,0 +1,163 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Decides which pending download runs next :
+ * 1) Higher priority first, FIFO order within the same priority
+ * 2) Per-host connection cap, tasks of a saturated host are skipped
+ * 3) Urgent tasks can preempt running tasks with lower priority
+ */
+public class DownloadScheduler {
+
+    public static final int PRIORITY_BULK = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_URGENT = 2;
+
+    public static final int DEFAULT_MAX_PER_HOST = 2;
+
+    private final ArrayList<LinkedList<DownloadTask>> mPending = new ArrayList<LinkedList<DownloadTask>>();
+    private final ArrayList<DownloadTask> mRunning = new ArrayList<DownloadTask>();
+    private final HashMap<String, Integer> mHostConnections = new HashMap<String, Integer>();
+    private int mMaxPerHost = DEFAULT_MAX_PER_HOST;
+
+    public DownloadScheduler() {
+        for (int p = PRIORITY_BULK; p <= PRIORITY_URGENT; p++) {
+            mPending.add(new LinkedList<DownloadTask>());
+        }
+    }
+
+    public void setMaxPerHost(int max) {
+        mMaxPerHost = Math.max(1, max);
+    }
+
+    public int getMaxPerHost() {
+        return mMaxPerHost;
+    }
+
+    public static int clampPriority(int priority) {
+        return Math.max(PRIORITY_BULK, Math.min(PRIORITY_URGENT, priority));
+    }
+
+    public void add(DownloadTask task) {
+        mPending.get(task.getPriority()).addLast(task);
+    }
+
+    /**
+     * Put back a preempted task, it goes before other tasks of the same priority
+     */
+    public void requeue(DownloadTask task) {
+        mPending.get(task.getPriority()).addFirst(task);
+    }
+
+    public boolean remove(DownloadTask task) {
+        return mPending.get(task.getPriority()).remove(task);
+    }
+
+    /**
+     * Take the next task which can run, it is accounted as running
+     * @return task or null if nothing can run now
+     */
+    public DownloadTask next() {
+        for (int p = PRIORITY_URGENT; p >= PRIORITY_BULK; p--) {
+            Iterator<DownloadTask> it = mPending.get(p).iterator();
+            while (it.hasNext()) {
+                DownloadTask t = it.next();
+                if (hostAvailable(t.getHost())) {
+                    it.remove();
+                    started(t);
+                    return t;
+                }
+            }
+        }
+        return null;
+    }
+
+    public void finished(DownloadTask task) {
+        if (!mRunning.remove(task)) return;
+        String host = task.getHost();
+        Integer count = mHostConnections.get(host);
+        if (count == null || count <= 1) {
+            mHostConnections.remove(host);
+        } else {
+            mHostConnections.put(host, count - 1);
+        }
+    }
+
+    /**
+     * Find a running task which should give way to the most urgent waiting task.
+     * Only urgent tasks preempt, victim is the running task with the lowest priority
+     * (on the same host if the host cap blocks the waiting task)
+     * @param workersFree true if a worker is available for the waiting task
+     * @return victim or null
+     */
+    public DownloadTask preemptionVictim(boolean workersFree) {
+        for (DownloadTask waiting : mPending.get(PRIORITY_URGENT)) {
+            boolean hostFree = hostAvailable(waiting.getHost());
+            if (hostFree && workersFree) {
+                // Will start without preemption
+                return null;
+            }
+            DownloadTask victim = null;
+            for (DownloadTask r : mRunning) {
+                if (r.getPriority() >= PRIORITY_URGENT) continue;
+                if (!hostFree && !r.getHost().equals(waiting.getHost())) continue;
+                if (victim == null || r.getPriority() < victim.getPriority()) {
+                    victim = r;
+                }
+            }
+            if (victim != null) return victim;
+        }
+        return null;
+    }
+
+    public int size() {
+        int size = 0;
+        for (LinkedList<DownloadTask> l : mPending) {
+            size += l.size();
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return pending tasks in scheduling order
+     */
+    public List<DownloadTask> pending() {
+        ArrayList<DownloadTask> list = new ArrayList<DownloadTask>();
+        for (int p = PRIORITY_URGENT; p >= PRIORITY_BULK; p--) {
+            list.addAll(mPending.get(p));
+        }
+        return list;
+    }
+
+    public DownloadTask poll() {
+        for (int p = PRIORITY_URGENT; p >= PRIORITY_BULK; p--) {
+            if (!mPending.get(p).isEmpty()) {
+                return mPending.get(p).removeFirst();
+            }
+        }
+        return null;
+    }
+
+    // ----- Private methods
+
+    private boolean hostAvailable(String host) {
+        Integer count = mHostConnections.get(host);
+        return count == null || count < mMaxPerHost;
+    }
+
+    private void started(DownloadTask task) {
+        mRunning.add(task);
+        Integer count = mHostConnections.get(task.getHost());
+        mHostConnections.put(task.getHost(), count == null ? 1 : count + 1);
+    }
+
+}
@@ -0,0 +1,182 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * State of a download task in DownloadQueue.
+ * Requests of the same url share one task, their outputs are copies of the downloaded file
+ */
+public class DownloadTask {
+
+    public static final int STATE_QUEUED = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_DONE = 2;
+    public static final int STATE_FAILED = 3;
+    public static final int STATE_CANCELED = 4;
+
+    private final String mUrl;
+    private final String mFilename;
+    private final int mWhere;
+    private final int mPriority;
+    private final String mHost;
+    private final ArrayList<Copy> mCopies = new ArrayList<Copy>();
+
+    int state = STATE_QUEUED;
+    boolean preempted = false;
+    long bandwidth = BandwidthLimiter.UNLIMITED;
+    int weight;
+    RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+    String digestAlgorithm;
+    String digest;
+    volatile long downloaded = 0;
+    volatile long total = -1;
+    String message;
+    volatile DownloadMetrics metrics;
+
+    DownloadTask(String url, String filename, int where, int priority) {
+        mUrl = url;
+        mFilename = filename;
+        mWhere = where;
+        mPriority = DownloadScheduler.clampPriority(priority);
+        String host = Uri.parse(url).getHost();
+        mHost = host != null ? host : "";
+        // Urgent tasks get a larger share of the global bandwidth limit
+        weight = mPriority + 1;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public String getFilename() {
+        return mFilename;
+    }
+
+    /**
+     * @return storage id (EXTERNAL_PUBLIC, EXTERNAL_APP, INTERNAL_APP) or -1 for any available storage
+     */
+    public int getWhere() {
+        return mWhere;
+    }
+
+    /**
+     * @return one of DownloadScheduler.PRIORITY_BULK, PRIORITY_NORMAL, PRIORITY_URGENT
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * @return file names of other requests of the url, they are copied when the task is done
+     */
+    public List<String> getCopies() {
+        ArrayList<String> names = new ArrayList<String>();
+        for (Copy c : mCopies) {
+            names.add(c.filename);
+        }
+        return names;
+    }
+
+    /**
+     * Attach an output of another request of the same url
+     * @return false if the output is the task output or is already attached
+     */
+    boolean attach(String filename, int where) {
+        if (filename.equals(mFilename) && where == mWhere) return false;
+        for (Copy c : mCopies) {
+            if (filename.equals(c.filename) && where == c.where) return false;
+        }
+        mCopies.add(new Copy(filename, where));
+        return true;
+    }
+
+    List<Copy> copies() {
+        return mCopies;
+    }
+
+    public String getHost() {
+        return mHost;
+    }
+
+    /**
+     * @return bandwidth limit in bytes per second or BandwidthLimiter.UNLIMITED
+     */
+    public long getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * @return share of the global bandwidth limit relative to other tasks
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * @return expected digest (hex string) of the file or null if it is not verified
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public long getDownloaded() {
+        return downloaded;
+    }
+
+    /**
+     * @return total size in bytes or -1 if unknown
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return last report or error message
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return metrics of the download, null if the task was not started
+     */
+    public DownloadMetrics getMetrics() {
+        return metrics;
+    }
+
+    public boolean isFinished() {
+        return state == STATE_DONE || state == STATE_FAILED || state == STATE_CANCELED;
+    }
+
+    // Output of an attached request
+    static class Copy {
+        final String filename;
+        final int where;
+
+        Copy(String filename, int where) {
+            this.filename = filename;
+            this.where = where;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadTask{" + mUrl + ", state=" + state + ", " + downloaded + "/" + total + "}";
+    }
+
+}
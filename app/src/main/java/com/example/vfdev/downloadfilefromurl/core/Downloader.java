@@ -1,18 +1,32 @@
 package com.example.vfdev.downloadfilefromurl.core;
 
 import android.app.DownloadManager;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.CountDownTimer;
-import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 
 /**
  * Created by vfomin on 3/25/15.
+ *
+ * Downloads with the system DownloadManager. Completion is tracked with
+ * ACTION_DOWNLOAD_COMPLETE broadcasts, progress with a ContentObserver on the download rows.
+ * State of each request is updated only on these events and every request gets its own report.
+ * Requests of a uri which is already in progress attach to its job, the file is downloaded once
+ * and copied to their outputs.
+ * DownloadManager retries network errors of a job itself. A job which still fails with a
+ * transient error is enqueued again after the delay of the retry policy
  */
 public class Downloader {
 
@@ -36,14 +50,21 @@ public class Downloader {
 
     private static Downloader mInstance;
     private File mStorage;
-    private File mTarget;
+
+    // Rows of DownloadManager provider, observed for progress changes
+    private static final Uri DOWNLOADS_CONTENT_URI = Uri.parse("content://downloads/my_downloads");
 
     private HashMap<Uri, Long> mRequests;
+    private HashMap<Long, _RequestState> mStates;
 
     private OnErrorListener mOnErrorListener;
     private OnReportListener mOnReportListener;
 
-    private _CountDownTimer mTimer;
+    private Handler mHandler;
+    private _CompletionReceiver mReceiver;
+    private _DownloadsObserver mObserver;
+    private boolean mTracking = false;
+    private RetryPolicy mRetryPolicy = RetryPolicy.DEFAULT;
 
     // ----- Public methods
 
@@ -57,9 +78,21 @@ public class Downloader {
     public Downloader init(Context context) {
         mContext = context;
         mRequests = new HashMap<>();
+        mStates = new HashMap<>();
         mManager = (DownloadManager) mContext.getSystemService(Context.DOWNLOAD_SERVICE);
-        // 60 minutes max progress timeout, count down every second
-        mTimer = new _CountDownTimer(60 * 60 * 1000, 1000);
+        mHandler = new Handler(Looper.getMainLooper());
+        mReceiver = new _CompletionReceiver();
+        mObserver = new _DownloadsObserver(mHandler);
+        return this;
+    }
+
+    /**
+     * Set retry policy of the next requests. DownloadManager removes the file of a failed job,
+     * so the next attempt starts again
+     * @param policy RetryPolicy.NONE to fail on the first error
+     */
+    public Downloader retryPolicy(RetryPolicy policy) {
+        mRetryPolicy = policy != null ? policy : RetryPolicy.NONE;
         return this;
     }
 
@@ -75,17 +108,26 @@ public class Downloader {
     }
 
     public void  download(Uri sourceUri, String outputName) {
+        download(sourceUri, outputName, null, null);
+    }
+
+    /**
+     * Download with listeners of this request. Listeners set with setOnReportListener()
+     * and setOnErrorListener() are used if they are null
+     */
+    public void download(Uri sourceUri, String outputName,
+                         OnReportListener reportListener, OnErrorListener errorListener) {
         if (!checkValid()) return;
 
         if (mStorage == null) {
             mStorage = getAvailableStorage();
             if (mStorage == null) {
-                logError(ERROR_NO_STORAGE,
+                logError(errorListener, ERROR_NO_STORAGE,
                         "No available storage");
                 return;
             }
         } else if (!testStorage(mStorage)) {
-            logError(ERROR_STORAGE_NOT_AVAILABLE,
+            logError(errorListener, ERROR_STORAGE_NOT_AVAILABLE,
                     "Specified storage is not available");
             return;
         }
@@ -94,25 +136,39 @@ public class Downloader {
             outputName = sourceUri.getLastPathSegment();
         }
 
-        mManager = (DownloadManager) mContext.getSystemService(Context.DOWNLOAD_SERVICE);
+        File target = new File(mStorage, outputName);
 
-        mTarget = new File(mStorage, outputName);
-        cleanTarget(mTarget);
+        // Request of a job waiting for its next attempt is attached to it
+        _RequestState waiting = getState(sourceUri);
+        if (waiting != null && waiting.retry != null) {
+            Log.i("Downloader", "Download is waiting for a retry : " + sourceUri);
+            waiting.attach(target, reportListener, errorListener);
+            return;
+        }
 
-        Uri dstUri = Uri.fromFile(mTarget);
-        DownloadManager.Request request = new DownloadManager.Request(sourceUri);
-        request.setTitle("Download : " + outputName)
-                .setAllowedOverRoaming(false)
-                .setDescription(sourceUri.getPath())
-                .setDestinationUri(dstUri);
-        long id = mManager.enqueue(request);
-        mRequests.put(sourceUri, id);
-        mTimer.start();
+        // DownloadManager resumes its own jobs after failures and reboots,
+        // a job in progress is not restarted, the request is attached to it
+        int status = getDownloadStatus(sourceUri);
+        if (status == DownloadManager.STATUS_PENDING
+                || status == DownloadManager.STATUS_RUNNING
+                || status == DownloadManager.STATUS_PAUSED) {
+            Log.i("Downloader", "Download is already in progress : " + sourceUri);
+            _RequestState state = getState(sourceUri);
+            if (state != null) {
+                state.attach(target, reportListener, errorListener);
+            }
+            return;
+        }
+
+        mManager = (DownloadManager) mContext.getSystemService(Context.DOWNLOAD_SERVICE);
+
+        enqueue(new _RequestState(sourceUri, target, mRetryPolicy, reportListener, errorListener));
     }
 
     /**
      * Return int code of DownloadManager status : STATUS_FAILED, STATUS_PAUSED, STATUS_PENDING,
-     * STATUS_RUNNING and STATUS_SUCCESSFUL
+     * STATUS_RUNNING and STATUS_SUCCESSFUL.
+     * Status of a tracked request is taken from the last event, without query
      */
     public int getDownloadStatus(Uri uri) {
         if (!checkValid()) return -1;
@@ -120,6 +176,11 @@ public class Downloader {
         if (!mRequests.containsKey(uri)) return -1;
         long id = mRequests.get(uri);
 
+        _RequestState state = mStates.get(id);
+        if (state != null) {
+            return state.status;
+        }
+
         DownloadManager.Query query = new DownloadManager.Query();
         query.setFilterById(id);
         Cursor c = mManager.query(query);
@@ -137,12 +198,35 @@ public class Downloader {
         return index;
     }
 
+    /**
+     * @return number of downloaded bytes of the request, -1 if it is unknown
+     */
+    public long getDownloadedBytes(Uri uri) {
+        _RequestState state = getState(uri);
+        return state != null ? state.downloaded : -1;
+    }
+
+    /**
+     * @return total size of the request, -1 if it is unknown
+     */
+    public long getTotalBytes(Uri uri) {
+        _RequestState state = getState(uri);
+        return state != null ? state.total : -1;
+    }
+
     public void cancelDownload(Uri uri) {
         if (!checkValid()) return;
 
         if (!mRequests.containsKey(uri)) return;
         long id = mRequests.get(uri);
 
+        _RequestState state = mStates.get(id);
+        if (state != null && state.retry != null) {
+            // Job is already removed, only the next attempt is canceled
+            mHandler.removeCallbacks(state.retry);
+            forget(id, uri);
+            return;
+        }
         cancelDownload(id, uri);
 
     }
@@ -162,11 +246,11 @@ public class Downloader {
     public boolean testStorage(File storage) {
         if (storage == null) return false;
 
-        if (!storage.exists()) {
-            return false;
-        } else if (!storage.canWrite()) {
+        // State of the storage is cached, the file system is not probed on every call
+        StorageResolver storages = StorageResolver.getInstance(mContext);
+        if (!storages.isAvailable(storage)) {
             return false;
-        } else if (storage.getFreeSpace() < MIN_FREE_SPACE) {
+        } else if (storages.getUsableSpace(storage) < MIN_FREE_SPACE) {
             logError(ERROR_NOT_ENOUGH_FREE_SPACE,
                     "Storage \'" + storage.getAbsolutePath() + "\' has not enough free space");
             return false;
@@ -208,6 +292,22 @@ public class Downloader {
         }
     }
 
+    private void logError(OnErrorListener listener, int code, String error) {
+        if (listener != null) {
+            listener.onError(code, error);
+        } else {
+            logError(code, error);
+        }
+    }
+
+    private void report(OnReportListener listener, int code, String msg) {
+        if (listener != null) {
+            listener.onReport(code, msg);
+        } else {
+            report(code, msg);
+        }
+    }
+
     private boolean checkValid() {
         if (mContext == null) {
             logError(ERROR_NOT_INIT, "FileLoader should be initialized");
@@ -218,24 +318,16 @@ public class Downloader {
 
     private File getStorage(int where) {
         // DownloadManager can use only external storages
-        if (where == EXTERNAL_PUBLIC) {
-            return Environment.getExternalStoragePublicDirectory(
-                    Environment.DIRECTORY_DOWNLOADS);
-        } else if (where == EXTERNAL_APP) {
-            return mContext.getExternalFilesDir(null);
+        if (where == EXTERNAL_PUBLIC || where == EXTERNAL_APP) {
+            return StorageResolver.getInstance(mContext).getStorage(where);
         }
         return null;
     }
 
     private File getAvailableStorage() {
         // DownloadManager can use only external storages
-        if (testStorage(EXTERNAL_PUBLIC)) {
-            return getStorage(EXTERNAL_PUBLIC);
-        }
-        if (testStorage(EXTERNAL_APP)) {
-            return getStorage(EXTERNAL_APP);
-        }
-        return null;
+        return StorageResolver.getInstance(mContext).getAvailableStorage(
+                new int[] {EXTERNAL_PUBLIC, EXTERNAL_APP}, MIN_FREE_SPACE);
     }
 
     private boolean cleanTarget(File f) {
@@ -249,92 +341,273 @@ public class Downloader {
         return true;
     }
 
+    private void enqueue(_RequestState state) {
+        cleanTarget(state.target);
+
+        Uri dstUri = Uri.fromFile(state.target);
+        DownloadManager.Request request = new DownloadManager.Request(state.uri);
+        request.setTitle("Download : " + state.target.getName())
+                .setAllowedOverRoaming(false)
+                .setDescription(state.uri.getPath())
+                .setDestinationUri(dstUri);
+        long id = mManager.enqueue(request);
+        state.status = DownloadManager.STATUS_PENDING;
+        mRequests.put(state.uri, id);
+        mStates.put(id, state);
+        startTracking();
+    }
+
+    /**
+     * Enqueue the failed job again after the delay of its retry policy if the error is transient
+     * @param reason COLUMN_REASON of the failed job : HTTP code or DownloadManager.ERROR_*
+     * @return false if the request should fail
+     */
+    private boolean retryLater(final long id, final _RequestState state, int reason) {
+        boolean transientError = reason == DownloadManager.ERROR_HTTP_DATA_ERROR
+                || reason == DownloadManager.ERROR_CANNOT_RESUME
+                || reason == DownloadManager.ERROR_UNKNOWN
+                || state.retryPolicy.isTransient(reason, null);
+        long delay = transientError ? state.retryPolicy.delay(state.retries, -1) : -1;
+        if (delay < 0) return false;
+        state.retries++;
+        Log.i("Downloader", "Retry " + state.retries + "/" + state.retryPolicy.getMaxRetries()
+                + " of " + state.uri + " in " + delay + " ms, reason : " + reason);
+        // Job is kept in the tables as paused until it is enqueued again
+        state.status = DownloadManager.STATUS_PAUSED;
+        state.retry = new Runnable() {
+            @Override
+            public void run() {
+                state.retry = null;
+                mStates.remove(id);
+                enqueue(state);
+            }
+        };
+        mHandler.postDelayed(state.retry, delay);
+        return true;
+    }
+
+    /**
+     * @return suffix of report messages with the number of retries
+     */
+    private static String retries(_RequestState state) {
+        return state.retries > 0 ? ", " + state.retries + " retries" : "";
+    }
+
     private void cancelDownload(long id, Uri uri) {
 
         mManager = (DownloadManager) mContext.getSystemService(Context.DOWNLOAD_SERVICE);
         if (mManager.remove(id) > 0) {
-            mRequests.remove(uri);
+            forget(id, uri);
         }
     }
 
+    private _RequestState getState(Uri uri) {
+        if (mRequests == null || !mRequests.containsKey(uri)) return null;
+        return mStates.get(mRequests.get(uri));
+    }
 
-    // private CountDownTimer class
-    private class _CountDownTimer extends CountDownTimer {
-
-        _CountDownTimer(long millisInFuture, long countDownInterval) {
-            super(millisInFuture, countDownInterval);
+    private void forget(long id, Uri uri) {
+        mRequests.remove(uri);
+        mStates.remove(id);
+        if (mStates.isEmpty()) {
+            stopTracking();
         }
+    }
 
-        public void onTick(long millisUntilFinished) {
+    private void startTracking() {
+        if (mTracking) return;
+        mContext.registerReceiver(mReceiver,
+                new IntentFilter(DownloadManager.ACTION_DOWNLOAD_COMPLETE));
+        mContext.getContentResolver().registerContentObserver(DOWNLOADS_CONTENT_URI, true, mObserver);
+        mTracking = true;
+    }
 
-            Log.i("Downloader", "onTick");
+    private void stopTracking() {
+        if (!mTracking) return;
+        mContext.unregisterReceiver(mReceiver);
+        mContext.getContentResolver().unregisterContentObserver(mObserver);
+        mTracking = false;
+    }
 
-            if (mRequests.size() == 0) {
-                // stop timer
-                mTimer.cancel();
-                Log.i("Downloader", "cancel timer");
-                return;
-            }
+    /**
+     * Query DownloadManager for the given requests and update their state.
+     * Requests in a terminal state are reported and forgotten
+     */
+    private void refresh(long... ids) {
+        if (ids.length == 0) return;
 
-            DownloadManager.Query q = new DownloadManager.Query();
-            long[] ids = new long[mRequests.size()];
-            int count=0;
-            for (Long l : mRequests.values()) {
-                ids[count] = l;
-                count++;
-            }
-            q.setFilterById(ids);
-            Cursor c = mManager.query(q);
-            if (c == null) return;
-            if (c.getCount() == 0) {
-                c.close();
-                Log.i("Donwloader", "cursor is empty");
-                return;
+        DownloadManager.Query q = new DownloadManager.Query();
+        q.setFilterById(ids);
+        Cursor c = mManager.query(q);
+        if (c == null) return;
+        if (c.getCount() == 0) {
+            c.close();
+            return;
+        }
+
+        c.moveToFirst();
+        int idIndex = c.getColumnIndex(DownloadManager.COLUMN_ID);
+        int statusIndex = c.getColumnIndex(DownloadManager.COLUMN_STATUS);
+        int reasonIndex = c.getColumnIndex(DownloadManager.COLUMN_REASON);
+        int downloadedIndex = c.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR);
+        int totalIndex = c.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES);
+        if (idIndex < 0 || statusIndex < 0) {
+            c.close();
+            Log.i("Downloader", "idIndex < 0 || statusIndex < 0");
+            return;
+        }
+
+        do {
+            long id = c.getLong(idIndex);
+            _RequestState state = mStates.get(id);
+            if (state == null) continue;
+
+            state.status = c.getInt(statusIndex);
+            if (downloadedIndex >= 0) state.downloaded = c.getLong(downloadedIndex);
+            if (totalIndex >= 0) state.total = c.getLong(totalIndex);
+
+            if (state.status == DownloadManager.STATUS_SUCCESSFUL) {
+                forget(id, state.uri);
+                completeAttached(state);
+                report(state.reportListener, DOWNLOAD_OK, "File downloaded : " + state.uri
+                        + retries(state));
+            } else if (state.status == DownloadManager.STATUS_FAILED) {
+                int reason = reasonIndex >= 0 ? c.getInt(reasonIndex) : -1;
+                // Failed job is removed from DownloadManager, it is not reported twice
+                mManager.remove(id);
+                if (retryLater(id, state, reason)) continue;
+                forget(id, state.uri);
+                String msg = "Download failed : " + state.uri + ", reason : " + reason
+                        + retries(state);
+                logError(state.errorListener, ERROR_DOWNLOAD_FAILED, msg);
+                for (_Attached a : state.attached) {
+                    logError(a.errorListener, ERROR_DOWNLOAD_FAILED, msg);
+                }
             }
+        } while (c.moveToNext());
+        c.close();
+    }
 
-            c.moveToFirst();
-            int idIndex = c.getColumnIndex(DownloadManager.COLUMN_ID);
-            int titleIndex = c.getColumnIndex(DownloadManager.COLUMN_TITLE);
-            int statusIndex = c.getColumnIndex(DownloadManager.COLUMN_STATUS);
-            int uriIndex = c.getColumnIndex(DownloadManager.COLUMN_URI);
-            if (idIndex < 0 || titleIndex < 0
-                    || statusIndex < 0 || uriIndex < 0) {
-                c.close();
-                Log.i("Donwloader", "idIndex < 0 || titleIndex < 0 || statusIndex < 0");
-                return;
+    /**
+     * Copy the downloaded file to outputs of attached requests and report to their listeners
+     */
+    private void completeAttached(final _RequestState state) {
+        for (final _Attached a : state.attached) {
+            if (a.target.equals(state.target)) {
+                report(a.reportListener, DOWNLOAD_OK, "File downloaded : " + state.uri);
+                continue;
             }
+            FileCopier.copy(state.target, new File[] { a.target }, new FileCopier.Listener() {
+                @Override
+                public void onCopied(IOException error) {
+                    if (error == null) {
+                        report(a.reportListener, DOWNLOAD_OK, "File downloaded : " + state.uri
+                                + ", copied to " + a.target.getName());
+                    } else {
+                        logError(a.errorListener, ERROR_DOWNLOAD_FAILED, error.getMessage());
+                    }
+                }
+            });
+        }
+    }
 
-            do {
-                int code = c.getInt(statusIndex);
-                long id = c.getLong(idIndex);
+    private void refreshAll() {
+        long[] ids = new long[mStates.size()];
+        int count = 0;
+        for (Long id : mStates.keySet()) {
+            ids[count] = id;
+            count++;
+        }
+        refresh(ids);
+    }
 
+    private static long parseId(Uri uri) {
+        if (uri == null) return -1;
+        try {
+            return Long.parseLong(uri.getLastPathSegment());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 
-                if (code == DownloadManager.STATUS_SUCCESSFUL) {
-                    report(DOWNLOAD_OK, "");
-                    mTimer.cancel();
-                } else if (code == DownloadManager.STATUS_FAILED) {
-                    logError(ERROR_DOWNLOAD_FAILED, "");
-                    Uri uri = Uri.parse(c.getString(uriIndex));
-                    cancelDownload(id, uri);
-                    mTimer.cancel();
-                }
-                String msg = code + " , " + id + " : " + c.getString(titleIndex);
-                Log.i("Downloader", msg);
 
-            } while (c.moveToNext());
-            c.close();
+    // State of a request, updated on DownloadManager events
+    private static class _RequestState {
+        final Uri uri;
+        final File target;
+        final RetryPolicy retryPolicy;
+        final OnReportListener reportListener;
+        final OnErrorListener errorListener;
+        // Requests of the same uri made while the job is in progress
+        final ArrayList<_Attached> attached = new ArrayList<_Attached>();
+        int status = DownloadManager.STATUS_PENDING;
+        long downloaded = 0;
+        long total = -1;
+        int retries = 0;
+        // Next attempt, waiting for its delay
+        Runnable retry;
+
+        _RequestState(Uri uri, File target, RetryPolicy retryPolicy,
+                      OnReportListener reportListener, OnErrorListener errorListener) {
+            this.uri = uri;
+            this.target = target;
+            this.retryPolicy = retryPolicy;
+            this.reportListener = reportListener;
+            this.errorListener = errorListener;
+        }
 
+        void attach(File target, OnReportListener reportListener, OnErrorListener errorListener) {
+            attached.add(new _Attached(target, reportListener, errorListener));
         }
+    }
+
+    // Request attached to a job in progress, its output is a copy of the job file
+    private static class _Attached {
+        final File target;
+        final OnReportListener reportListener;
+        final OnErrorListener errorListener;
+
+        _Attached(File target, OnReportListener reportListener, OnErrorListener errorListener) {
+            this.target = target;
+            this.reportListener = reportListener;
+            this.errorListener = errorListener;
+        }
+    }
+
+    // Completion broadcast of DownloadManager
+    private class _CompletionReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            long id = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
+            if (mStates.containsKey(id)) {
+                refresh(id);
+            }
+        }
+    }
 
-        public void onFinish() {
-            Log.i("Download", "onFinish");
-            Log.i("Download", "mRequests.size = " + mRequests.size());
-//            if (mRequests.size() > 0) {
-//                start();
-//            }
+    // Changes of download rows : progress and status
+    private class _DownloadsObserver extends ContentObserver {
+
+        _DownloadsObserver(Handler handler) {
+            super(handler);
         }
 
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
 
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            long id = parseId(uri);
+            if (id >= 0) {
+                if (mStates.containsKey(id)) {
+                    refresh(id);
+                }
+            } else {
+                refreshAll();
+            }
+        }
     }
 
 
@@ -0,0 +1,135 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Copies a downloaded file to other outputs with FileChannel.transferTo.
+ * A copy which feeds a digest goes through a buffer, so the file is hashed in the same pass.
+ * Asynchronous copies run on one background thread, listener is called on the main thread
+ */
+class FileCopier {
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "FileCopier");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    private static final Executor sCallbackExecutor = new MainThreadExecutor();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private FileCopier() {    }
+
+    /**
+     * Copy source to target, target is replaced
+     * @return number of copied bytes
+     */
+    static long copy(File source, File target) throws IOException {
+        FileChannel in = null;
+        FileChannel out = null;
+        try {
+            in = new FileInputStream(source).getChannel();
+            out = new FileOutputStream(target, false).getChannel();
+            long position = 0;
+            long size = in.size();
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+            return size;
+        } finally {
+            close(in);
+            close(out);
+        }
+    }
+
+    /**
+     * Copy source to target and feed the digest with the copied bytes, target is replaced
+     * @return number of copied bytes
+     */
+    static long copy(File source, File target, MessageDigest digest) throws IOException {
+        FileChannel in = null;
+        FileChannel out = null;
+        try {
+            in = new FileInputStream(source).getChannel();
+            out = new FileOutputStream(target, false).getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long size = 0;
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer.array(), 0, buffer.limit());
+                size += buffer.limit();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+            }
+            return size;
+        } finally {
+            close(in);
+            close(out);
+        }
+    }
+
+    /**
+     * Copy source to every target on the background thread
+     * @param listener is called once on the main thread, error is the first failure or null
+     */
+    static void copy(final File source, final File[] targets, final Listener listener) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                IOException error = null;
+                for (File target : targets) {
+                    if (target.equals(source)) continue;
+                    try {
+                        copy(source, target);
+                    } catch (IOException e) {
+                        target.delete();
+                        if (error == null) {
+                            error = new IOException("Failed to copy to " + target + " : "
+                                    + e.getMessage());
+                        }
+                    }
+                }
+                final IOException result = error;
+                sCallbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onCopied(result);
+                    }
+                });
+            }
+        });
+    }
+
+    private static void close(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    // ------ Listener
+
+    interface Listener {
+        void onCopied(IOException error);
+    }
+
+}
@@ -1,37 +1,60 @@
 package com.example.vfdev.downloadfilefromurl.core;
 
-import android.app.Notification;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.app.Service;
-import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
-import android.net.wifi.WifiManager;
 import android.os.IBinder;
 import android.util.Log;
 import android.view.View;
 import android.widget.ArrayAdapter;
 import android.widget.ProgressBar;
-import android.widget.RemoteViews;
 import android.widget.Toast;
 
 import com.example.vfdev.downloadfilefromurl.R;
-import com.koushikdutta.ion.ProgressCallback;
 
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  *  Service to download files from URL
- * 1) Start multiple downloads (as 1 worker on a queue)
+ * 1) Start multiple downloads (a queue served by a pool of workers)
  * 2) Cancel specified download
  * 3) Settings :
  *      a) Define storage: external public or package, internal package
+ *      b) Bandwidth limits : global or per download, changed at runtime with ACTION_BANDWIDTH
+ *      c) Connections per host : tasks of the queue and pooled connections
  * 4) Show progress of each download in main UI
  * 5) Service notification is optional
+ * 6) Tasks are recorded in a journal, unfinished tasks are restored and resumed
+ *    when the service is recreated after its process was killed
+ * 7) Performance metrics of downloads are aggregated in MetricsRegistry,
+ *    ACTION_EXPORT_METRICS writes them as JSON
+ * 8) ACTION_DOWNLOAD_BATCH enqueues a list of files at once, the batch is shown
+ *    in one notification with file counts, bytes and throughput
+ * 9) Downloads may be deferred until the device meets their constraints (EXTRA_REQUIRE_*,
+ *    EXTRA_WINDOW_*). Deferred requests are recorded in the journal and deferred again
+ *    when the service is recreated. Wi-Fi and wake locks are held only while a transfer is active
+ * 10) Bound clients use the Messenger interface of ServiceMessenger : batched enqueue and
+ *    cancel, snapshot of all tasks and a subscription to coalesced progress
+ * 11) Task notifications are updated at most every second with their progress, many
+ *    concurrent tasks are collapsed into one summary notification (DownloadNotifications)
 */
 public class FileDownloadService extends Service {
 
@@ -59,21 +82,80 @@ public class FileDownloadService extends Service {
     // Service properties :
     public static final String ACTION_DOWNLOAD = "com.example.vfdev.downloadfilefromurl.DOWNLOAD";
     public static final String ACTION_CANCEL = "com.example.vfdev.downloadfilefromurl.CANCEL";
+    // Set global limit, or limit of the download given by intent data
+    public static final String ACTION_BANDWIDTH = "com.example.vfdev.downloadfilefromurl.BANDWIDTH";
+    // Write metrics snapshot to the file of EXTRA_METRICS_FILE, 'metrics.json' in files dir by default
+    public static final String ACTION_EXPORT_METRICS = "com.example.vfdev.downloadfilefromurl.EXPORT_METRICS";
+    // Download the urls of EXTRA_URLS, or of the list file given by intent data (file or content uri) :
+    // one url per line, optionally followed by a space and the file name
+    public static final String ACTION_DOWNLOAD_BATCH = "com.example.vfdev.downloadfilefromurl.DOWNLOAD_BATCH";
 
     public static final int EXTERNAL_PUBLIC = FileDownloaderIon.EXTERNAL_PUBLIC;
     public static final int EXTERNAL_APP = FileDownloaderIon.EXTERNAL_APP;
     public static final int INTERNAL_APP = FileDownloaderIon.INTERNAL_APP;
 
-
-    private ArrayList<String> mTaskList = new ArrayList<String>();
-
-    // Notifications:
-    private HashMap<String, Integer> mTaskNotificationMap = new HashMap<String, Integer>();
-    private HashMap<Integer, String> mNotificationTaskMap = new HashMap<Integer, String>();
-    private NotificationManager mNotificationManager;
-
-    // Wifi manager
-    private WifiManager.WifiLock mWifiLock;
+    public static final int PRIORITY_BULK = DownloadScheduler.PRIORITY_BULK;
+    public static final int PRIORITY_NORMAL = DownloadScheduler.PRIORITY_NORMAL;
+    public static final int PRIORITY_URGENT = DownloadScheduler.PRIORITY_URGENT;
+
+    // Intent extra to set number of concurrent downloads
+    public static final String EXTRA_WORKERS = "Workers";
+    // Intent extra to set maximum number of concurrent downloads from one host
+    public static final String EXTRA_HOST_CONNECTIONS = "HostConnections";
+    // Intent extra to set maximum number of pooled connections to one host
+    public static final String EXTRA_POOL_CONNECTIONS = "PoolConnections";
+    // Intent extras of bandwidth limit in bytes per second (0 is unlimited) and share of global limit
+    public static final String EXTRA_BANDWIDTH = "Bandwidth";
+    public static final String EXTRA_WEIGHT = "Weight";
+    // Intent extras of expected digest (hex string) and its algorithm, SHA-256 by default
+    public static final String EXTRA_DIGEST = "Digest";
+    public static final String EXTRA_DIGEST_ALGORITHM = "DigestAlgorithm";
+    // Intent extra of number of retries after transient errors, RetryPolicy.DEFAULT_MAX_RETRIES by default
+    public static final String EXTRA_MAX_RETRIES = "MaxRetries";
+    // Intent extra of absolute path of the exported metrics
+    public static final String EXTRA_METRICS_FILE = "MetricsFile";
+    // Intent extras of batch urls and their optional file names (string arrays of the same size)
+    public static final String EXTRA_URLS = "Urls";
+    public static final String EXTRA_FILENAMES = "Filenames";
+    // Intent extras of the constraints of a download or a batch, it is deferred until they are met
+    public static final String EXTRA_REQUIRE_UNMETERED = "RequireUnmetered";
+    public static final String EXTRA_REQUIRE_CHARGING = "RequireCharging";
+    public static final String EXTRA_REQUIRE_IDLE = "RequireIdle";
+    // Intent extras of the daily time window, in minutes after local midnight
+    public static final String EXTRA_WINDOW_START = "WindowStart";
+    public static final String EXTRA_WINDOW_END = "WindowEnd";
+
+    public static final String DIGEST_SHA256 = FileDownloaderIon.DIGEST_SHA256;
+    public static final String DIGEST_MD5 = FileDownloaderIon.DIGEST_MD5;
+
+    private DownloadQueue mQueue;
+    private DownloadJournal mJournal;
+
+    // Notifications of the tasks and batches, tasks of a batch have no notification of their own
+    private DownloadNotifications mNotifications;
+
+    private static final String JOURNAL_NAME = "downloads.journal";
+    // Deferred downloads are keyed by url, batches by this prefix and a random id
+    private static final String BATCH_KEY_PREFIX = "batch:";
+    private static final String METRICS_NAME = "metrics.json";
+
+    // Wi-Fi and wake locks of the active transfers
+    private TransferLocks mLocks;
+    private ConstraintScheduler mConstraints;
+    private ServiceMessenger mMessenger;
+    private boolean mReleased = false;
+
+    // Url lists of the batches are read off the main thread
+    private static final ExecutorService sListReader = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "BatchListReader");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    private final Executor mMainThread = new MainThreadExecutor();
 
 
     public FileDownloadService() {
@@ -85,18 +167,20 @@ public class FileDownloadService extends Service {
     public void onCreate() {
         logDebug("Creating service");
 
-        mNotificationManager = (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
+        mNotifications = new DownloadNotifications(getApplicationContext());
 
-        // Create the Wifi lock (this does not acquire the lock, this just creates it)
-        mWifiLock = ((WifiManager) getSystemService(Context.WIFI_SERVICE))
-                .createWifiLock(WifiManager.WIFI_MODE_FULL, "MY_WIFI_LOCK");
-        mWifiLock.acquire();
+        // Locks are acquired by the queue when a task starts
+        mLocks = new TransferLocks(getApplicationContext(), TAG);
+        mConstraints = new ConstraintScheduler(getApplicationContext());
 
+        mQueue = new DownloadQueue(getApplicationContext(), DownloadQueue.DEFAULT_WORKERS)
+                .setListener(mQueueListener)
+                .setTransferLocks(mLocks);
+        mMessenger = new ServiceMessenger(mQueue, mCommands);
 
-        FileDownloaderIon.getInstance()
-                .init(getApplicationContext())
-                .setOnReportListener(fdIonRL)
-                .setOnErrorListener(fdIonEL);
+        mJournal = new DownloadJournal(new File(getFilesDir(), JOURNAL_NAME));
+        restoreTasks();
+        restoreDeferred();
 
 //        notificationView = new RemoteViews(getPackageName(), R.layout.notification);
 
@@ -112,16 +196,52 @@ public class FileDownloadService extends Service {
         logDebug("onStartCommand");
 
         if (intent != null) {
+            if (intent.hasExtra(EXTRA_WORKERS)) {
+                mQueue.setMaxWorkers(intent.getIntExtra(EXTRA_WORKERS, DownloadQueue.DEFAULT_WORKERS));
+            }
+            if (intent.hasExtra(EXTRA_HOST_CONNECTIONS)) {
+                mQueue.setMaxPerHost(intent.getIntExtra(EXTRA_HOST_CONNECTIONS,
+                        DownloadScheduler.DEFAULT_MAX_PER_HOST));
+            }
+            if (intent.hasExtra(EXTRA_POOL_CONNECTIONS)) {
+                ConnectionPool.getInstance().setMaxPerHost(intent.getIntExtra(EXTRA_POOL_CONNECTIONS,
+                        ConnectionPool.DEFAULT_MAX_PER_HOST));
+            }
             Uri url = intent.getData();
-            logDebug("Data : " + url.toString());
             String action = intent.getAction();
+            if (ACTION_BANDWIDTH.equals(action)) {
+                logDebug("Action : bandwidth");
+                setBandwidth(url, intent);
+                return START_STICKY;
+            }
+            if (ACTION_EXPORT_METRICS.equals(action)) {
+                logDebug("Action : export metrics");
+                exportMetrics(intent.getStringExtra(EXTRA_METRICS_FILE));
+                return START_STICKY;
+            }
+            if (ConstraintScheduler.ACTION_WINDOW.equals(action)) {
+                logDebug("Action : time window");
+                mConstraints.refresh();
+                return START_STICKY;
+            }
+            if (action == null) {
+                // Started to outlive the bound clients
+                return START_STICKY;
+            }
+            if (ACTION_DOWNLOAD_BATCH.equals(action)) {
+                logDebug("Action : download batch");
+                String key = BATCH_KEY_PREFIX + UUID.randomUUID();
+                if (defer(key, intent)) {
+                    recordDeferred(key, intent);
+                }
+                return START_STICKY;
+            }
+            logDebug("Data : " + url.toString());
             if (action.equals(ACTION_DOWNLOAD)){
                 logDebug("Action : download");
-
-                int where = intent.getIntExtra("Where", -1);
-                String filename = intent.getStringExtra("Filename");
-
-                startTask(url.toString(), filename, where);
+                if (defer(url.toString(), intent)) {
+                    recordDeferred(url.toString(), intent);
+                }
             } else
             if (action.equals(ACTION_CANCEL)){
                 logDebug("Action : cancel");
@@ -141,147 +261,385 @@ public class FileDownloadService extends Service {
     @Override
     public IBinder onBind(Intent arg0) {
         logDebug("onBind");
-        return null;
+        return mMessenger.getBinder();
     }
 
 
-    // ------------ Other methods
-
-    private void releaseResources() {
-
-        // close all notifications:
-        for (int id : mTaskNotificationMap.values()) {
-            mNotificationManager.cancel(id);
-        }
+    // ------------ Queue state
 
-        stopDownloading();
+    public DownloadQueue getQueue() {
+        return mQueue;
+    }
 
-        // we can also release the Wifi lock, if we're holding it
-        if (mWifiLock.isHeld()) mWifiLock.release();
+    /**
+     * @return metrics of finished downloads since the start of the process
+     */
+    public MetricsRegistry.Snapshot getMetrics() {
+        return MetricsRegistry.getInstance().snapshot();
+    }
 
+    /**
+     * @return scheduler of the downloads waiting for their constraints
+     */
+    public ConstraintScheduler getConstraintScheduler() {
+        return mConstraints;
     }
 
+    // ------------ Other methods
 
-    private void startTask(String url, String filename, int where) {
+    private void download(Uri url, Intent intent) {
+        int where = intent.getIntExtra("Where", -1);
+        String filename = intent.getStringExtra("Filename");
+        int priority = intent.getIntExtra("Priority", PRIORITY_NORMAL);
 
-        mTaskList.add(url);
+        String digest = intent.getStringExtra(EXTRA_DIGEST);
+        String algorithm = intent.getStringExtra(EXTRA_DIGEST_ALGORITHM);
+        if (digest != null && algorithm == null) {
+            algorithm = DIGEST_SHA256;
+        }
 
-        showNotification(url);
-        startDownloading(url, filename, where);
+        startTask(url.toString(), filename, where, priority, algorithm, digest);
+        if (intent.hasExtra(EXTRA_MAX_RETRIES)) {
+            int retries = intent.getIntExtra(EXTRA_MAX_RETRIES, RetryPolicy.DEFAULT_MAX_RETRIES);
+            mQueue.setRetryPolicy(url.toString(), new RetryPolicy(retries,
+                    RetryPolicy.DEFAULT_BASE_DELAY, RetryPolicy.DEFAULT_MAX_DELAY));
+        }
+        if (intent.hasExtra(EXTRA_BANDWIDTH) || intent.hasExtra(EXTRA_WEIGHT)) {
+            setBandwidth(url, intent);
+        }
     }
 
-    private void cancelTask(String url) {
-        FileDownloaderIon.getInstance()
-//                        .cancel();
-                .cancelAndClean();
-        if (mTaskNotificationMap.containsKey(url)) {
-            int nId = mTaskNotificationMap.get(url);
-            mNotificationManager.cancel(nId);
-        } else {
-            logDebug("Task is not found for url : " + url);
+    /**
+     * Run the download or batch request when its constraints are met
+     * @param key key of the request in the scheduler and the journal
+     * @return true if the request is deferred
+     */
+    private boolean defer(final String key, final Intent request) {
+        return mConstraints.schedule(key, constraintsOf(request), new Runnable() {
+            @Override
+            public void run() {
+                mJournal.undeferred(key);
+                if (ACTION_DOWNLOAD_BATCH.equals(request.getAction())) {
+                    startBatch(request.getData(), request);
+                } else {
+                    download(request.getData(), request);
+                }
+            }
+        });
+    }
+
+    /**
+     * Record the deferred request with its constraint extras, url arrays of a batch
+     * are recorded apart as the URI form of the intent does not hold them
+     */
+    private void recordDeferred(String key, Intent request) {
+        List<String> urls = new ArrayList<String>();
+        List<String> filenames = new ArrayList<String>();
+        String[] extraUrls = request.getStringArrayExtra(EXTRA_URLS);
+        if (extraUrls != null) {
+            String[] extraNames = request.getStringArrayExtra(EXTRA_FILENAMES);
+            urls.addAll(Arrays.asList(extraUrls));
+            for (int i = 0; i < extraUrls.length; i++) {
+                filenames.add(extraNames != null && i < extraNames.length ? extraNames[i] : null);
+            }
         }
+        mJournal.deferred(key, request.toUri(Intent.URI_INTENT_SCHEME), urls, filenames);
     }
 
-    private void showNotification(String url) {
+    private static DownloadConstraints constraintsOf(Intent intent) {
+        return new DownloadConstraints(intent.getBooleanExtra(EXTRA_REQUIRE_UNMETERED, false),
+                intent.getBooleanExtra(EXTRA_REQUIRE_CHARGING, false),
+                intent.getBooleanExtra(EXTRA_REQUIRE_IDLE, false),
+                intent.getIntExtra(EXTRA_WINDOW_START, DownloadConstraints.NO_WINDOW),
+                intent.getIntExtra(EXTRA_WINDOW_END, DownloadConstraints.NO_WINDOW));
+    }
 
-        logDebug("Show notification");
+    private void releaseResources() {
+        mReleased = true;
 
-        int nId = url.hashCode();
-        mTaskNotificationMap.put(url, nId);
-        mNotificationTaskMap.put(nId, url);
+        // close all notifications:
+        mNotifications.clear();
 
+        // Tasks canceled on shutdown stay in the journal and are resumed on the next start
+        mJournal.close();
+        stopDownloading();
 
-        RemoteViews nView = new RemoteViews(getPackageName(), R.layout.notification);
-        nView.setTextViewText(R.id.notification_url, url);
+        mMessenger.close();
+        // Deferred downloads stay in the journal, running ones are canceled above
+        mConstraints.release();
+        mLocks.close();
 
-        Intent i = new Intent(FileDownloadService.ACTION_DOWNLOAD);
-        i.setData(Uri.parse(url));
-        PendingIntent pi = PendingIntent.getService(getApplicationContext(), 0, i, PendingIntent.FLAG_ONE_SHOT);
-        nView.setOnClickPendingIntent(R.id.notification_close, pi);
+    }
 
-        // Set the icon, scrolling text and timestamp
-        Notification n = new Notification.Builder(getApplicationContext())
-                .setSmallIcon(android.R.drawable.stat_sys_download)
-                .setOngoing(true) // Notification can not be removed
-                .build();
 
-        n.bigContentView = nView;
+    private void startTask(String url, String filename, int where, int priority,
+                           String digestAlgorithm, String digest) {
+        logDebug("startTask : " + url);
 
-        // Send the notification.
-        // We use a string id because it is a unique number.  We use it later to cancel.
-        mNotificationManager.notify(nId, n);
+        String outputFileName = outputName(url, filename);
+        logDebug("Download to file : " + outputFileName + " into storage " + where);
 
+        mNotifications.show(url);
+        // Recorded before enqueue : the task can finish at once, e.g. if storage is not available
+        mJournal.enqueued(url, outputFileName, where, priority, digestAlgorithm, digest);
+        DownloadTask task = mQueue.enqueue(url, outputFileName, where, priority,
+                digestAlgorithm, digest);
+        logDebug("Task state : " + task.getState() + ", queued : " + mQueue.queued()
+                + ", active : " + mQueue.active());
     }
 
+    private static String outputName(String url, String filename) {
+        return (filename == null || filename.isEmpty()) ? "file_" + url.hashCode() : filename;
+    }
 
-    private void startDownloading(String url , String filename, int where) {
-        logDebug("startDownloading : " + url);
+    /**
+     * Enqueue all files of the batch at once, tasks have no notification of their own.
+     * List uri is read on a background thread, files are enqueued on the main thread
+     * @param list file or content uri of the url list, used if there is no EXTRA_URLS
+     */
+    private void startBatch(final Uri list, Intent intent) {
+        final int where = intent.getIntExtra("Where", -1);
+        final int priority = intent.getIntExtra("Priority", PRIORITY_BULK);
+        final ArrayList<String> urls = new ArrayList<String>();
+        final ArrayList<String> filenames = new ArrayList<String>();
+        String[] extraUrls = intent.getStringArrayExtra(EXTRA_URLS);
+        if (extraUrls != null) {
+            String[] extraNames = intent.getStringArrayExtra(EXTRA_FILENAMES);
+            for (int i = 0; i < extraUrls.length; i++) {
+                urls.add(extraUrls[i]);
+                filenames.add(extraNames != null && i < extraNames.length ? extraNames[i] : null);
+            }
+            startBatch(urls, filenames, where, priority);
+        } else if (list != null) {
+            sListReader.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        readBatchList(list, urls, filenames);
+                    } catch (IOException e) {
+                        logError(e, "Failed to read batch list " + list);
+                        return;
+                    }
+                    mMainThread.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mReleased) {
+                                logDebug("Service is destroyed, batch is dropped : " + list);
+                                return;
+                            }
+                            startBatch(urls, filenames, where, priority);
+                        }
+                    });
+                }
+            });
+        } else {
+            logDebug("Batch is empty");
+        }
+    }
 
-        if (!FileDownloaderIon.getInstance().downloading()) {
+    private void startBatch(List<String> urls, List<String> filenames, int where, int priority) {
+        if (urls.isEmpty()) {
+            logDebug("Batch is empty");
+            return;
+        }
+        enqueueBatch(urls, filenames, where, priority);
+    }
 
-            String outputFileName = filename.isEmpty() ? "file_" + url.hashCode() : filename;
-            logDebug("Download to file : " + outputFileName + " into storage " + where);
+    /**
+     * Journal and enqueue the files, the batch is shown in one notification
+     * @param filenames output of each url, null for a generated name
+     */
+    private void enqueueBatch(List<String> urls, List<String> filenames, int where, int priority) {
+        for (int i = 0; i < urls.size(); i++) {
+            filenames.set(i, outputName(urls.get(i), filenames.get(i)));
+            mJournal.enqueued(urls.get(i), filenames.get(i), where, priority, null, null);
+        }
+        DownloadBatch batch = mQueue.enqueueBatch(urls, filenames, where, priority);
+        logDebug("Batch " + batch.getId() + " : " + batch.size() + " files, queued : "
+                + mQueue.queued() + ", active : " + mQueue.active());
+        mNotifications.showBatch(batch);
+    }
 
+    private void readBatchList(Uri list, List<String> urls, List<String> filenames)
+            throws IOException {
+        InputStream in = getContentResolver().openInputStream(list);
+        if (in == null) throw new IOException("No content");
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                int space = line.indexOf(' ');
+                urls.add(space < 0 ? line : line.substring(0, space));
+                filenames.add(space < 0 ? null : line.substring(space + 1).trim());
+            }
+        } finally {
+            reader.close();
+        }
+    }
 
-            FileDownloaderIon.getInstance()
-                    .progress(new ProgressCallback() {
-                        @Override
-                        public void onProgress(long downloaded, long total) {
-                            logDebug("onProgess : " + String.valueOf(downloaded) + "/" + String.valueOf(total));
-                            int value = (int) (100 * (downloaded * 1.0 / total));
-//                            notificationView.setProgressBar(R.id.notification_progressBar, 100, value, false);
-//                            mNotificationManager.notify(notificationId, notification);
-                        }
-                    });
-            if (where >= 0) {
-                FileDownloaderIon.getInstance()
-                        .where(where);
+    /**
+     * Enqueue unfinished tasks of the journal, partial files are resumed by the workers
+     */
+    private void restoreTasks() {
+        for (DownloadJournal.Entry e : mJournal.load()) {
+            logDebug("Restore task : " + e.url + ", " + e.downloaded + "/" + e.total);
+            mNotifications.show(e.url);
+            DownloadTask task = mQueue.enqueue(e.url, e.filename, e.where, e.priority,
+                    e.digestAlgorithm, e.digest);
+            for (DownloadTask.Copy c : e.copies) {
+                task.attach(c.filename, c.where);
             }
-            FileDownloaderIon.getInstance().
-                    download(url, outputFileName);
+            task.downloaded = e.downloaded;
+            task.total = e.total;
         }
-        else {
-//            logDebug("Cancel");
-//            FileDownloaderIon.getInstance()
-////                        .cancel();
-//                    .cancelAndClean();
+    }
+
+    /**
+     * Defer again the requests of the journal which were waiting for their constraints,
+     * those whose constraints are met now are started at once
+     */
+    private void restoreDeferred() {
+        for (DownloadJournal.Deferred d : mJournal.getDeferred()) {
+            Intent request;
+            try {
+                request = Intent.parseUri(d.request, Intent.URI_INTENT_SCHEME);
+            } catch (URISyntaxException e) {
+                logError(e, "Failed to restore deferred request " + d.key);
+                mJournal.undeferred(d.key);
+                continue;
+            }
+            if (!d.urls.isEmpty()) {
+                request.putExtra(EXTRA_URLS, d.urls.toArray(new String[d.urls.size()]));
+                request.putExtra(EXTRA_FILENAMES,
+                        d.filenames.toArray(new String[d.filenames.size()]));
+            }
+            logDebug("Restore deferred request : " + d.key);
+            defer(d.key, request);
         }
     }
 
+    /**
+     * Throttle without cancel : running downloads follow the new limits
+     */
+    private void setBandwidth(Uri url, Intent intent) {
+        long limit = intent.getLongExtra(EXTRA_BANDWIDTH, BandwidthLimiter.UNLIMITED);
+        if (url == null) {
+            logDebug("Global bandwidth limit : " + limit + " B/s");
+            BandwidthLimiter.getInstance().setGlobalLimit(limit);
+            return;
+        }
+        DownloadTask task = mQueue.getTask(url.toString());
+        if (task == null) {
+            logDebug("Task is not found for url : " + url);
+            return;
+        }
+        if (!intent.hasExtra(EXTRA_BANDWIDTH)) {
+            limit = task.getBandwidth();
+        }
+        int weight = intent.getIntExtra(EXTRA_WEIGHT, task.getWeight());
+        logDebug("Bandwidth of " + url + " : " + limit + " B/s, weight " + weight);
+        mQueue.setBandwidth(url.toString(), limit, weight);
+    }
 
-    private void stopDownloading() {
+    private void exportMetrics(String path) {
+        File file = path != null ? new File(path) : new File(getFilesDir(), METRICS_NAME);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(getMetrics().toJson().toString().getBytes("UTF-8"));
+            logDebug("Metrics exported to " + file.getAbsolutePath());
+        } catch (IOException e) {
+            logError(e, "Failed to export metrics");
+        } catch (JSONException e) {
+            logError(e, "Failed to export metrics");
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
 
-        if (FileDownloaderIon.getInstance().downloading()) {
-            logDebug("Cancel");
-            FileDownloaderIon.getInstance()
-                    .cancelAndClean();
+    private void cancelTask(String url) {
+        if (mConstraints.cancel(url)) {
+            mJournal.undeferred(url);
+            logDebug("Deferred download canceled : " + url);
+            return;
         }
+        // Partial file is kept, download is resumed on the next request
+        mQueue.cancel(url);
+        mNotifications.hide(url);
+    }
 
+    private void stopDownloading() {
+        logDebug("Cancel");
+        // Partial files are kept, downloads are resumed on the next request
+        mQueue.cancelAll();
     }
 
 
-    FileDownloaderIon.OnErrorListener fdIonEL = new FileDownloaderIon.OnErrorListener() {
+    ServiceMessenger.Commands mCommands = new ServiceMessenger.Commands() {
         @Override
-        public void onError(int code, String errorMessage) {
-            if (code == FileDownloaderIon.ERROR_DOWNLOAD_FAILED) {
-                logError(null, errorMessage);
-
+        public void enqueue(List<String> urls, List<String> filenames, int where, int priority) {
+            logDebug("Bound client : enqueue " + urls.size() + " files");
+            // Service keeps running when the clients unbind
+            startService(new Intent(getApplicationContext(), FileDownloadService.class));
+            enqueueBatch(urls, filenames, where, priority);
+        }
 
+        @Override
+        public void cancel(String url) {
+            logDebug("Bound client : cancel " + url);
+            cancelTask(url);
+        }
 
-            }
+        @Override
+        public int deferred() {
+            return mConstraints.pending();
         }
     };
 
-    FileDownloaderIon.OnReportListener fdIonRL = new FileDownloaderIon.OnReportListener() {
+    DownloadQueue.Listener mQueueListener = new DownloadQueue.Listener() {
         @Override
-        public void onReport(int code, String msg) {
-            if (code == FileDownloaderIon.DOWNLOAD_OK ||
-                    code == FileDownloaderIon.CANCELED) {
-                logDebug(msg);
-
+        public void onTaskStarted(DownloadTask task) {
+            logDebug("Task started : " + task.getUrl());
+            mMessenger.onTaskChanged(task);
+        }
 
+        @Override
+        public void onTaskProgress(DownloadTask task) {
+            mMessenger.onTaskChanged(task);
+            mJournal.checkpoint(task.getUrl(), task.getDownloaded(), task.getTotal());
+            // Posted with the next update of the notifications
+            mNotifications.progress(task.getUrl(), task.getDownloaded(), task.getTotal());
+            if (debug) {
+                logDebug("onProgess : " + task.getDownloaded() + "/" + task.getTotal());
+            }
+        }
 
+        @Override
+        public void onTaskFinished(DownloadTask task) {
+            if (task.getState() == DownloadTask.STATE_FAILED) {
+                logError(null, task.getMessage());
+            } else {
+                logDebug(task.getMessage());
+            }
+            if (task.getMetrics() != null) {
+                logDebug("Metrics : " + task.getMetrics());
             }
+            mJournal.finished(task.getUrl());
+            mMessenger.onTaskChanged(task);
+            mNotifications.hide(task.getUrl());
+        }
+
+        @Override
+        public void onBatchFinished(ConnectionPool.Stats stats) {
+            logDebug("Batch finished : " + stats);
         }
     };
 
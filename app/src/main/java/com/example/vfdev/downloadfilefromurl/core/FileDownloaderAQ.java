@@ -1,7 +1,8 @@
 package com.example.vfdev.downloadfilefromurl.core;
 
 import android.app.Activity;
-import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.NetworkOnMainThreadException;
 import android.util.Log;
 import android.widget.ProgressBar;
@@ -11,20 +12,40 @@ import com.androidquery.callback.AjaxCallback;
 import com.androidquery.callback.AjaxStatus;
 import com.androidquery.util.AQUtility;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 
 /**
+ * Download engine based on AQuery.
+ * A partial target left by FileDownloaderIon or FileDownloaderNio is resumed from its
+ * '.resume' record. Interrupted AQ downloads are not resumable : AQuery writes the body to
+ * a temporary file and deletes it when the transfer fails or is aborted, so an interrupted
+ * AQ download starts again from zero
  */
 public class FileDownloaderAQ {
 
     private File mStorage;
     private File target;
+    private File partFile;
+    // Record of the partial target which is resumed into partFile
+    private ResumeRecord resume;
     private boolean downloading = false;
     private boolean canceled = false;
     private int progressViewId = -1;
 
     private _AjaxCallback ajaxCallback;
     private AQuery aq;
+    private DownloadCache cache;
+    private DownloadCache.Entry cached;
+    private DownloadMetrics metrics;
+    private RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+    private int retries;
+    private Runnable retry;
+    private final Handler handler = new Handler(Looper.getMainLooper());
 
     public static final int DOWNLOAD_OK = 0;
     public static final int CANCELED = 1;
@@ -51,16 +72,26 @@ public class FileDownloaderAQ {
 
     // ----- Public methods
 
-    static public FileDownloaderAQ getInstance() {
+    static public synchronized FileDownloaderAQ getInstance() {
         if (mInstance == null) {
             mInstance = new FileDownloaderAQ();
         }
         return mInstance;
     }
 
+    /**
+     * Create a download session with its own target, callback, listeners and progress view.
+     * Should be released with cleanUp() when it is not needed anymore
+     */
+    static public FileDownloaderAQ newSession(Activity activity) {
+        return new FileDownloaderAQ().init(activity);
+    }
+
     public FileDownloaderAQ init(Activity activity) {
         aq = new AQuery(activity);
         AQUtility.setDebug(true);
+        ConnectionPool.getInstance().installAQuery();
+        cache = DownloadCache.getInstance(activity);
         return this;
     }
 
@@ -73,6 +104,14 @@ public class FileDownloaderAQ {
         return downloading;
     }
 
+    /**
+     * AQuery does not expose the phases of the transfer, only the total time and size are known
+     * @return metrics of the current or last download, null if nothing was downloaded
+     */
+    public DownloadMetrics getMetrics() {
+        return metrics;
+    }
+
     public FileDownloaderAQ progress(int id) {
         if (!checkValidAq()) return this;
         aq.progress(id);
@@ -80,6 +119,17 @@ public class FileDownloaderAQ {
         return this;
     }
 
+    /**
+     * Set retry policy of the next downloads and of the running download.
+     * AQuery does not keep the bytes of a failed attempt, the next attempt starts again
+     * unless the download was resumed from a partial file
+     * @param policy RetryPolicy.NONE to fail on the first error
+     */
+    public FileDownloaderAQ retryPolicy(RetryPolicy policy) {
+        retryPolicy = policy != null ? policy : RetryPolicy.NONE;
+        return this;
+    }
+
     public FileDownloaderAQ where(File storage) {
         if (!checkValidAq()) return this;
         mStorage = storage;
@@ -102,19 +152,29 @@ public class FileDownloaderAQ {
                         "No available storage");
                 return;
             }
-        } else if (!testStorage(mStorage)) {
+        } else if (!testStorage(mStorage, false)) {
+            // Download reports one error, low space is not logged by testStorage
             logError(ERROR_STORAGE_NOT_AVAILABLE,
                     "Specified storage is not available");
             return;
         }
         target = new File(mStorage, output);
-        cleanTarget(target);
-        ajaxCallback = new _AjaxCallback();
-        aq.download(url, target, ajaxCallback);
+        metrics = new DownloadMetrics(url, "AQ");
+        retries = 0;
+        startRequest(url);
         downloading = true;
     }
 
     public void cancel() {
+        if (downloading && retry != null) {
+            // Waiting for the next attempt, there is no request to abort
+            handler.removeCallbacks(retry);
+            retry = null;
+            downloading = false;
+            resetProgressBar();
+            report(CANCELED, "File download canceled");
+            return;
+        }
         if (downloading) {
             try {
                 ajaxCallback.abort();
@@ -129,10 +189,15 @@ public class FileDownloaderAQ {
         }
     }
 
+    /**
+     * Cancel download and remove partial file. Use cancel() to keep the partial file
+     * of another engine for resume
+     */
     public void cancelAndClean() {
         if (downloading) {
             cancel();
             cleanTarget(target);
+            ResumeRecord.delete(target);
         }
     }
 
@@ -165,25 +230,100 @@ public class FileDownloaderAQ {
     }
 
     public boolean testStorage(File storage) {
+        return testStorage(storage, true);
+    }
+
+    // ----- Private methods
+
+    /**
+     * @param logSpace report ERROR_NOT_ENOUGH_FREE_SPACE if the storage has not enough free space
+     */
+    private boolean testStorage(File storage, boolean logSpace) {
         if (storage == null) return false;
 
-        if (!storage.exists()) {
+        // State of the storage is cached, the file system is not probed on every call
+        StorageResolver storages = StorageResolver.getInstance(aq.getContext());
+        if (!storages.isAvailable(storage)) {
             return false;
-        } else if (!storage.canWrite()) {
-            return false;
-        } else if (storage.getFreeSpace() < MIN_FREE_SPACE) {
-            logError(ERROR_NOT_ENOUGH_FREE_SPACE,
-                    "Storage \'" + storage.getAbsolutePath() + "\' has not enough free space");
+        } else if (storages.getUsableSpace(storage) < MIN_FREE_SPACE) {
+            if (logSpace) {
+                logError(ERROR_NOT_ENOUGH_FREE_SPACE,
+                        "Storage \'" + storage.getAbsolutePath() + "\' has not enough free space");
+            }
             return false;
         }
         return true;
     }
 
-    // ----- Private methods
-
     private FileDownloaderAQ() { }
 
+    private void startRequest(String url) {
+        ajaxCallback = new _AjaxCallback();
+        resume = ResumeRecord.load(target, url);
+        if (resume != null) {
+            // Fetch the rest of the file and write it at the offset of the partial target on completion
+            partFile = new File(target.getAbsolutePath() + ".part");
+            cleanTarget(partFile);
+            ajaxCallback.header("Range", "bytes=" + resume.offset + "-")
+                    .header("If-Range", resume.validator());
+            aq.download(url, partFile, ajaxCallback);
+        } else {
+            partFile = null;
+            cleanTarget(target);
+            // Unchanged file is copied from the cache after a conditional request
+            cached = cache.get(url);
+            if (cached != null) {
+                if (cached.etag != null) {
+                    ajaxCallback.header("If-None-Match", cached.etag);
+                }
+                if (cached.lastModified != null) {
+                    ajaxCallback.header("If-Modified-Since", cached.lastModified);
+                }
+            }
+            aq.download(url, target, ajaxCallback);
+        }
+    }
+
+    /**
+     * Schedule the next attempt of the failed download if its error is transient
+     * @return false if the download should fail
+     */
+    private boolean retryLater(final String url, AjaxStatus status) {
+        int code = status.getCode();
+        // AQuery reports timeouts and connection errors as NETWORK_ERROR without exception
+        long delay = code == AjaxStatus.NETWORK_ERROR
+                ? retryPolicy.delay(retries, -1)
+                : retryPolicy.delay(retries, code, null,
+                        RetryPolicy.parseRetryAfter(status.getHeader("Retry-After")));
+        if (delay < 0) return false;
+        retries++;
+        metrics.retried();
+        Log.i("FileDownloaderAQ", "Retry " + retries + "/" + retryPolicy.getMaxRetries()
+                + " in " + delay + " ms : " + status.getMessage() + ". Code : " + code);
+        retry = new Runnable() {
+            @Override
+            public void run() {
+                retry = null;
+                if (aq != null) {
+                    startRequest(url);
+                }
+            }
+        };
+        handler.postDelayed(retry, delay);
+        return true;
+    }
+
+    /**
+     * @return suffix of report messages with the number of retries
+     */
+    private String retries() {
+        return retries > 0 ? ", " + retries + " retries" : "";
+    }
+
     private void logError(int code, String error) {
+        if (code == ERROR_DOWNLOAD_FAILED) {
+            MetricsRegistry.getInstance().record(metrics, DownloadMetrics.RESULT_FAILED, code);
+        }
         if (mOnErrorListener != null) {
             mOnErrorListener.onError(code, error);
         } else {
@@ -192,6 +332,8 @@ public class FileDownloaderAQ {
     }
 
     private void report(int code, String msg) {
+        MetricsRegistry.getInstance().record(metrics, code == DOWNLOAD_OK
+                ? DownloadMetrics.RESULT_OK : DownloadMetrics.RESULT_CANCELED, 0);
         if (mOnReportListener != null) {
             mOnReportListener.onReport(code, msg);
         } else {
@@ -208,29 +350,13 @@ public class FileDownloaderAQ {
     }
 
     private File getStorage(int where) {
-        if (where == EXTERNAL_PUBLIC) {
-            return Environment.getExternalStoragePublicDirectory(
-                    Environment.DIRECTORY_DOWNLOADS);
-        } else if (where == EXTERNAL_APP) {
-            return aq.getContext().getExternalFilesDir(null);
-        } else if (where == INTERNAL_APP) {
-            return aq.getContext().getFilesDir();
-        }
-        return null;
+        return StorageResolver.getInstance(aq.getContext()).getStorage(where);
     }
 
 
     private File getAvailableStorage() {
-        if (testStorage(EXTERNAL_PUBLIC)) {
-            return getStorage(EXTERNAL_PUBLIC);
-        }
-        if (testStorage(EXTERNAL_APP)) {
-            return getStorage(EXTERNAL_APP);
-        }
-        if (testStorage(INTERNAL_APP)) {
-            return getStorage(INTERNAL_APP);
-        }
-        return null;
+        return StorageResolver.getInstance(aq.getContext()).getAvailableStorage(
+                new int[] {EXTERNAL_PUBLIC, EXTERNAL_APP, INTERNAL_APP}, MIN_FREE_SPACE);
     }
 
     private boolean cleanTarget(File f) {
@@ -254,14 +380,85 @@ public class FileDownloaderAQ {
         }
     }
 
-    void cleanUp() {
+    public void cleanUp() {
         Log.i("FileDownloaderAQ", "Clean up");
         aq.ajaxCancel();
         cancel();
-        AQUtility.cleanCacheAsync(aq.getContext());
         aq = null;
     }
 
+    /**
+     * Write downloaded range at the offset of the record into the partial target or replace
+     * the target if the server sent the full body (remote resource has changed).
+     * Target may be preallocated by another engine, its tail after the offset is cut
+     */
+    private boolean completePartial(int code, ResumeRecord record) {
+        File part = partFile;
+        partFile = null;
+        FileChannel in = null;
+        RandomAccessFile file = null;
+        try {
+            if (code == 206) {
+                in = new FileInputStream(part).getChannel();
+                file = new RandomAccessFile(target, "rw");
+                FileChannel out = file.getChannel();
+                out.truncate(record.offset);
+                out.position(record.offset);
+                long position = 0;
+                long size = in.size();
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+                cleanTarget(part);
+            } else if (!cleanTarget(target) || !part.renameTo(target)) {
+                return false;
+            }
+            ResumeRecord.delete(target);
+            return true;
+        } catch (IOException e) {
+            Log.e("FileDownloaderAQ", "Failed to complete partial file : " + e.getMessage());
+            return false;
+        } finally {
+            close(in);
+            close(file);
+        }
+    }
+
+    /**
+     * Server has answered 304 to the conditional request : copy the cached file to the target.
+     * If the cached file is lost, the file is downloaded again without condition
+     */
+    private void restoreFromCache(final String url) {
+        cached = null;
+        cache.restore(url, target, new DownloadCache.Listener() {
+            @Override
+            public void onRestored(long length) {
+                if (canceled || aq == null) {
+                    canceled = false;
+                    return;
+                }
+                if (length < 0) {
+                    metrics.retried();
+                    ajaxCallback = new _AjaxCallback();
+                    aq.download(url, target, ajaxCallback);
+                    return;
+                }
+                downloading = false;
+                report(DOWNLOAD_OK, "File is not modified, restored from cache : "
+                        + length + " bytes");
+            }
+        });
+    }
+
+    private static void close(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
     // ------ Ajax callback
 
     private class _AjaxCallback extends AjaxCallback<File> {
@@ -273,14 +470,27 @@ public class FileDownloaderAQ {
                 return;
             }
 
+            if (file == null && status.getCode() == 304 && cached != null) {
+                restoreFromCache(url);
+                return;
+            }
+            if (file != null && partFile != null && !completePartial(status.getCode(), resume)) {
+                file = null;
+            }
             if (file != null) {
-                report(DOWNLOAD_OK, "File downloaded . Status : " + status.getMessage());
+                metrics.setBytes(file.length());
+                cache.store(url, target, status.getHeader("ETag"), status.getHeader("Last-Modified"));
+                downloading = false;
+                report(DOWNLOAD_OK, "File downloaded . Status : " + status.getMessage() + retries());
+            } else if (retryLater(url, status)) {
+                status.invalidate();
             } else {
-                logError(ERROR_DOWNLOAD_FAILED, status.getMessage() + ". Code : " + status.getCode());
+                downloading = false;
+                logError(ERROR_DOWNLOAD_FAILED, status.getMessage() + ". Code : " + status.getCode()
+                        + retries());
                 resetProgressBar();
                 status.invalidate();
             }
-            downloading = false;
         }
     }
 
@@ -2,17 +2,27 @@ package com.example.vfdev.downloadfilefromurl.core;
 
 import android.app.ProgressDialog;
 import android.content.Context;
-import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.ProgressBar;
 
 import com.koushikdutta.async.future.Future;
 import com.koushikdutta.async.future.FutureCallback;
+import com.koushikdutta.async.http.AsyncHttpClientMiddleware;
+import com.koushikdutta.async.http.Headers;
+import com.koushikdutta.async.http.cache.ResponseCacheMiddleware;
+import com.koushikdutta.ion.HeadersCallback;
+import com.koushikdutta.ion.HeadersResponse;
 import com.koushikdutta.ion.Ion;
 import com.koushikdutta.ion.ProgressCallback;
 import com.koushikdutta.ion.builder.Builders;
 
 import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.List;
 
 /**
  */
@@ -21,15 +31,41 @@ public class FileDownloaderIon {
 
     private File mStorage;
     private File mTarget;
-    private boolean downloading = false;
+    private volatile boolean downloading = false;
 
     private Context mContext;
     private Object mProgressIndicator; // Bar or Dialog
     private ProgressCallback mProgressCallback;
+    private ProgressDispatcher mProgressDispatcher;
 
     private Ion ion;
     private _FutureCallback mCallback;
-    private Future<File> mFuture;
+    private Future<ResumableOutputStream> mFuture;
+    private ResumableOutputStream mOutput;
+    private ResumeRecord mResume;
+    private SegmentedDownload mSegmented;
+    private long mStartTime;
+
+    private ThrottleMiddleware mThrottles;
+    private MetricsMiddleware mMetricsMiddleware;
+    private DownloadMetrics mMetrics;
+    private BandwidthLimiter.Throttle mThrottle;
+    private String[] mThrottleUrls;
+    private DownloadCache mCache;
+    private DownloadCache.Entry mCached;
+    // Cached file is copied to the target, cancel is applied when the copy is done
+    private boolean mRestoring = false;
+    private boolean mRestoreCanceled = false;
+    private Checksum mChecksum;
+    // Digest of the file written by the segments
+    private Checksum.Prefix mSegmentedDigest;
+    private long mBandwidth = BandwidthLimiter.UNLIMITED;
+    private int mWeight = BandwidthLimiter.DEFAULT_WEIGHT;
+    private RetryPolicy mRetryPolicy = RetryPolicy.DEFAULT;
+    private int mRetries;
+    private Runnable mRetry;
+    private volatile long mRetryAfter = -1;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
 
     public static final int DOWNLOAD_OK = 0;
     public static final int CANCELED = 1;
@@ -41,10 +77,19 @@ public class FileDownloaderIon {
     public static final int ERROR_NO_STORAGE = 4;
     public static final int ERROR_DOWNLOAD_FAILED = 5;
     public static final int ERROR_CANCEL_FAILED = 6;
+    public static final int ERROR_CHECKSUM_MISMATCH = 7;
+
+    // Number of segments of download(url, output, segments) chosen at runtime from the throughput
+    public static final int SEGMENTS_ADAPTIVE = -1;
+
+    // Digest algorithms of download(url, output, segments, algorithm, digest)
+    public static final String DIGEST_SHA256 = "SHA-256";
+    public static final String DIGEST_MD5 = "MD5";
 
 
     private OnErrorListener mOnErrorListener;
     private OnReportListener mOnReportListener;
+    private OnConnectionsListener mOnConnectionsListener;
 
 
     private static final int MIN_FREE_SPACE = 10*1024*1024;
@@ -57,18 +102,47 @@ public class FileDownloaderIon {
 
     // ----- Public methods
 
-    static public FileDownloaderIon getInstance() {
+    static public synchronized FileDownloaderIon getInstance() {
         if (mInstance == null) {
             mInstance = new FileDownloaderIon();
         }
         return mInstance;
     }
 
+    /**
+     * Create a download session. A session has its own target, future, listeners and progress.
+     * All sessions share the same Ion engine, so many downloads can run concurrently
+     */
+    static public FileDownloaderIon newSession(Context context) {
+        return new FileDownloaderIon().init(context);
+    }
+
     public FileDownloaderIon init(Context context) {
         mContext = context;
         ion = Ion.getInstance(mContext, "FileDownloaderIon");
         // Enable global Ion logging
         ion.configure().setLogging("FileDownloaderIon", Log.DEBUG);
+        mThrottles = ThrottleMiddleware.install(ion);
+        mMetricsMiddleware = MetricsMiddleware.install(ion);
+        // Sessions share the pooled connections of the Ion instance
+        ConnectionPool.getInstance().install(ion);
+        // Downloaded files are kept by DownloadCache, Ion should not store their bodies
+        for (AsyncHttpClientMiddleware m : ion.getHttpClient().getMiddleware()) {
+            if (m instanceof ResponseCacheMiddleware) {
+                ((ResponseCacheMiddleware) m).setCaching(false);
+            }
+        }
+        mCache = DownloadCache.getInstance(mContext);
+        // Progress indicator is updated on the main thread only when percentage changes
+        mProgressDispatcher = new ProgressDispatcher(new MainThreadExecutor(),
+                new ProgressDispatcher.Listener() {
+                    @Override
+                    public void onProgress(List<ProgressDispatcher.Progress> updates) {
+                        if (downloading) {
+                            setProgressIndicator(updates.get(updates.size() - 1).percent);
+                        }
+                    }
+                });
         return this;
     }
 
@@ -76,6 +150,20 @@ public class FileDownloaderIon {
         return downloading;
     }
 
+    /**
+     * @return output file of the current or last download
+     */
+    public File getTarget() {
+        return mTarget;
+    }
+
+    /**
+     * @return metrics of the current or last download, null if nothing was downloaded
+     */
+    public DownloadMetrics getMetrics() {
+        return mMetrics;
+    }
+
     public FileDownloaderIon progress(ProgressBar p) {
         mProgressIndicator = p;
         return this;
@@ -91,6 +179,32 @@ public class FileDownloaderIon {
         return this;
     }
 
+    /**
+     * Limit bandwidth of downloads of this session, the running download follows the new values.
+     * Global limit is set with BandwidthLimiter.getInstance().setGlobalLimit()
+     * @param bytesPerSecond limit of a download, BandwidthLimiter.UNLIMITED for global limit only
+     * @param weight share of the global limit relative to other downloads
+     */
+    public FileDownloaderIon bandwidth(long bytesPerSecond, int weight) {
+        mBandwidth = bytesPerSecond;
+        mWeight = weight;
+        if (mThrottle != null) {
+            mThrottle.setLimit(bytesPerSecond);
+            mThrottle.setWeight(weight);
+        }
+        return this;
+    }
+
+    /**
+     * Set retry policy of the next downloads and of the running download.
+     * Failed attempts are resumed from the bytes already written
+     * @param policy RetryPolicy.NONE to fail on the first error
+     */
+    public FileDownloaderIon retryPolicy(RetryPolicy policy) {
+        mRetryPolicy = policy != null ? policy : RetryPolicy.NONE;
+        return this;
+    }
+
     public FileDownloaderIon where(File storage) {
         mStorage = storage;
         return this;
@@ -103,7 +217,60 @@ public class FileDownloaderIon {
     }
 
     public void download(String url, String output) {
+        download(url, output, 1);
+    }
+
+    /**
+     * Download file using several connections. Byte ranges are fetched in parallel
+     * if the server supports them, otherwise file is downloaded with a single stream
+     * @param segments number of parallel connections, 1 means single stream download.
+     *                 SEGMENTS_ADAPTIVE starts with two connections and adds connections while
+     *                 the throughput improves, up to ConnectionController.DEFAULT_MAX_LEVEL.
+     *                 Changes are reported to OnConnectionsListener
+     */
+    public void download(String url, String output, int segments) {
+        download(url, output, segments, null, null);
+    }
+
+    /**
+     * Download file and verify its digest. Bytes are hashed as they are written,
+     * a mismatch is reported with ERROR_CHECKSUM_MISMATCH and the file is removed
+     * @param algorithm DIGEST_SHA256, DIGEST_MD5 or another MessageDigest algorithm
+     * @param expectedDigest hex string of the digest, null to skip verification
+     */
+    public void download(String url, String output, int segments,
+                         String algorithm, String expectedDigest) {
+        download(new String[] {url}, output, segments, algorithm, expectedDigest);
+    }
+
+    /**
+     * Download file from several mirrors. All mirrors are probed, those whose length or ETag
+     * differ from the first usable mirror are not used. Byte ranges are fetched from different
+     * mirrors in parallel and move away from mirrors which fail or slow down.
+     * Cache and resume point are kept for the first mirror, the file is resumed or
+     * downloaded with a single stream from one mirror
+     * @param mirrors urls of the same file, in order of preference
+     * @param segments number of parallel connections, at least one per usable mirror
+     */
+    public void download(String[] mirrors, String output, int segments) {
+        download(mirrors, output, segments, null, null);
+    }
+
+    public void download(String[] mirrors, String output, int segments,
+                         String algorithm, String expectedDigest) {
         if (!checkValid()) return;
+        if (mirrors == null || mirrors.length == 0) {
+            logError(ERROR_DOWNLOAD_FAILED, "No url to download");
+            return;
+        }
+        String url = mirrors[0];
+
+        try {
+            mChecksum = Checksum.create(algorithm, expectedDigest);
+        } catch (IllegalArgumentException e) {
+            logError(ERROR_DOWNLOAD_FAILED, e.getMessage());
+            return;
+        }
 
         if (mStorage == null) {
             mStorage = getAvailableStorage();
@@ -112,44 +279,70 @@ public class FileDownloaderIon {
                         "No available storage");
                 return;
             }
-        } else if (!testStorage(mStorage)) {
+        } else if (!testStorage(mStorage, false)) {
+            // Download reports one error, low space is not logged by testStorage
             logError(ERROR_STORAGE_NOT_AVAILABLE,
                     "Specified storage is not available");
             return;
         }
         mTarget = new File(mStorage, output);
-        cleanTarget(mTarget);
-
-        mCallback = new _FutureCallback();
-
-        Builders.Any.B lb = ion.build(mContext)
-                .load(url);
-        if (mProgressIndicator != null) {
-            if (mProgressIndicator instanceof ProgressBar) {
-                lb=lb.progressBar((ProgressBar)mProgressIndicator);
-            } else if (mProgressIndicator instanceof ProgressDialog) {
-                lb=lb.progressDialog((ProgressDialog) mProgressIndicator);
-            }
-        } else if (mProgressCallback != null) {
-            lb=lb.progress(mProgressCallback);
+        // Keep partial file if it can be resumed
+        mResume = ResumeRecord.load(mTarget, mirrors);
+        if (mResume == null) {
+            cleanTarget(mTarget);
         }
-        mFuture = lb.write(mTarget)
-                .setCallback(mCallback);
+        // Unchanged file is copied from the cache after a conditional request
+        mCached = mResume == null ? mCache.get(url) : null;
+        mMetrics = new DownloadMetrics(url, "Ion");
+        mRetries = 0;
         downloading = true;
+        openTransfer(mirrors);
+
+        boolean adaptive = segments == SEGMENTS_ADAPTIVE;
+        if ((segments > 1 || adaptive || mirrors.length > 1) && mResume == null && mCached == null) {
+            ConnectionController controller = adaptive ? new ConnectionController(
+                    ConnectionController.DEFAULT_START_LEVEL,
+                    ConnectionController.DEFAULT_MAX_LEVEL) : null;
+            mSegmented = new SegmentedDownload(ion, mContext, mirrors, mTarget,
+                    adaptive ? ConnectionController.DEFAULT_MAX_LEVEL : segments, controller,
+                    mRetryPolicy, mMetrics, new _SegmentedListener(url));
+            mSegmentedDigest = mChecksum != null ? mSegmented.digest(mChecksum) : null;
+            mSegmented.start();
+        } else {
+            startSingle(mResume != null ? mResume.url : url);
+        }
     }
 
     public void cancel() {
         if (downloading) {
-            if (!mFuture.cancel(true)) {
+            if (mRetry != null) {
+                // Waiting for the next attempt, partial file is already saved
+                mHandler.removeCallbacks(mRetry);
+                mRetry = null;
+                downloading = false;
+                resetProgressBar();
+                report(CANCELED, "File download canceled");
+            } else if (mRestoring) {
+                mRestoreCanceled = true;
+            } else if (mSegmented != null) {
+                if (!mSegmented.cancel()) {
+                    logError(ERROR_CANCEL_FAILED, "Failed to cancel downloading");
+                }
+            } else if (!mFuture.cancel(true)) {
                 logError(ERROR_CANCEL_FAILED, "Failed to cancel downloading");
             }
         }
     }
 
+    /**
+     * Cancel download and remove partial file. Use cancel() to keep it for resume
+     */
     public void cancelAndClean() {
         if (downloading) {
+            mResume = null;
             cancel();
             cleanTarget(mTarget);
+            ResumeRecord.delete(mTarget);
         }
     }
 
@@ -165,31 +358,49 @@ public class FileDownloaderIon {
         return this;
     }
 
+    public FileDownloaderIon setOnConnectionsListener( OnConnectionsListener listener) {
+        mOnConnectionsListener = listener;
+        return this;
+    }
+
     public boolean testStorage(int where) {
         if (!checkValid()) return false;
         return testStorage(getStorage(where));
     }
 
     public boolean testStorage(File storage) {
+        return testStorage(storage, true);
+    }
+
+    // ----- Private methods
+
+    /**
+     * @param logSpace report ERROR_NOT_ENOUGH_FREE_SPACE if the storage has not enough free space
+     */
+    private boolean testStorage(File storage, boolean logSpace) {
         if (storage == null) return false;
 
-        if (!storage.exists()) {
+        // State of the storage is cached, the file system is not probed on every call
+        StorageResolver storages = StorageResolver.getInstance(mContext);
+        if (!storages.isAvailable(storage)) {
             return false;
-        } else if (!storage.canWrite()) {
-            return false;
-        } else if (storage.getFreeSpace() < MIN_FREE_SPACE) {
-            logError(ERROR_NOT_ENOUGH_FREE_SPACE,
-                    "Storage \'" + storage.getAbsolutePath() + "\' has not enough free space");
+        } else if (storages.getUsableSpace(storage) < MIN_FREE_SPACE) {
+            if (logSpace) {
+                logError(ERROR_NOT_ENOUGH_FREE_SPACE,
+                        "Storage \'" + storage.getAbsolutePath() + "\' has not enough free space");
+            }
             return false;
         }
         return true;
     }
 
-    // ----- Private methods
-
     private FileDownloaderIon() {    }
 
     private void logError(int code, String error) {
+        if (code != ERROR_CANCEL_FAILED && code != ERROR_FAILED_CLEAN) {
+            // Other errors stop the download
+            MetricsRegistry.getInstance().record(mMetrics, DownloadMetrics.RESULT_FAILED, code);
+        }
         if (mOnErrorListener != null) {
             mOnErrorListener.onError(code, error);
         } else {
@@ -198,6 +409,8 @@ public class FileDownloaderIon {
     }
 
     private void report(int code, String msg) {
+        MetricsRegistry.getInstance().record(mMetrics, code == DOWNLOAD_OK
+                ? DownloadMetrics.RESULT_OK : DownloadMetrics.RESULT_CANCELED, 0);
         if (mOnReportListener != null) {
             mOnReportListener.onReport(code, msg);
         } else {
@@ -213,29 +426,225 @@ public class FileDownloaderIon {
         return true;
     }
 
-    private File getStorage(int where) {
-        if (where == EXTERNAL_PUBLIC) {
-            return Environment.getExternalStoragePublicDirectory(
-                    Environment.DIRECTORY_DOWNLOADS);
-        } else if (where == EXTERNAL_APP) {
-            return mContext.getExternalFilesDir(null);
-        } else if (where == INTERNAL_APP) {
-            return mContext.getFilesDir();
+    private void startSingle(String url) {
+        mSegmented = null;
+        mRetryAfter = -1;
+        if (mRetries == 0) {
+            mStartTime = SystemClock.elapsedRealtime();
+        }
+        mCallback = new _FutureCallback();
+        if (mResume == null) {
+            mResume = new ResumeRecord(url);
+        }
+        mOutput = new ResumableOutputStream(mTarget);
+        mOutput.metrics(mMetrics);
+        if (mChecksum != null) {
+            mOutput.digest(mChecksum.newDigest());
         }
-        return null;
+
+        Builders.Any.B lb = ion.build(mContext)
+                .load(url);
+        if (mResume.validator() != null) {
+            Log.i("FileDownloaderIon", "Resume download from " + mResume.offset + " bytes");
+            lb = lb.setHeader("Range", "bytes=" + mResume.offset + "-")
+                    .setHeader("If-Range", mResume.validator());
+        } else if (mCached != null) {
+            if (mCached.etag != null) {
+                lb = lb.setHeader("If-None-Match", mCached.etag);
+            }
+            if (mCached.lastModified != null) {
+                lb = lb.setHeader("If-Modified-Since", mCached.lastModified);
+            }
+        }
+        lb = lb.onHeaders(new _HeadersCallback(mResume, mOutput, mTarget, mStorage));
+        if (mProgressIndicator != null || mProgressCallback != null) {
+            final ResumeRecord record = mResume;
+            final ResumableOutputStream output = mOutput;
+            lb = lb.progress(new ProgressCallback() {
+                @Override
+                public void onProgress(long downloaded, long total) {
+                    // Ion counts the bytes of the response only : a 206 body starts at the offset
+                    long offset = output.code() == 206 ? record.offset : 0;
+                    updateProgress(downloaded + offset, total > 0 ? total + offset : total);
+                }
+            });
+        }
+        mFuture = lb.write(mOutput, true)
+                .setCallback(mCallback);
     }
 
-    private File getAvailableStorage() {
-        if (testStorage(EXTERNAL_PUBLIC)) {
-            return getStorage(EXTERNAL_PUBLIC);
+    /**
+     * Open bandwidth throttle of the download, its disk space is reserved when the size is known
+     */
+    private void openTransfer(String... urls) {
+        releaseTransfer();
+        mThrottle = BandwidthLimiter.getInstance().open(mBandwidth, mWeight);
+        mThrottleUrls = urls;
+        for (String url : urls) {
+            mThrottles.register(url, mThrottle);
+            mMetricsMiddleware.register(url, mMetrics);
         }
-        if (testStorage(EXTERNAL_APP)) {
-            return getStorage(EXTERNAL_APP);
+    }
+
+    private void releaseTransfer() {
+        SpaceReservations.getInstance().release(this);
+        if (mThrottle == null) return;
+        for (String url : mThrottleUrls) {
+            mThrottles.unregister(url, mThrottle);
+            mMetricsMiddleware.unregister(url, mMetrics);
         }
-        if (testStorage(INTERNAL_APP)) {
-            return getStorage(INTERNAL_APP);
+        mThrottle.close();
+        mThrottle = null;
+        mThrottleUrls = null;
+    }
+
+    /**
+     * Schedule the next attempt of the failed download if its error is transient.
+     * Resume point is saved, the attempt continues from the bytes already written
+     * @param code HTTP code of the response, -1 if none
+     * @return false if the download should fail
+     */
+    private boolean retryLater(final String url, int code, Exception e) {
+        long delay = mRetryPolicy.delay(mRetries, code, e, mRetryAfter);
+        if (delay < 0) return false;
+        mRetries++;
+        mMetrics.retried();
+        Log.i("FileDownloaderIon", "Retry " + mRetries + "/" + mRetryPolicy.getMaxRetries()
+                + " in " + delay + " ms : " + (e != null ? e.getMessage() : "code " + code));
+        downloading = true;
+        mRetry = new Runnable() {
+            @Override
+            public void run() {
+                mRetry = null;
+                mResume = ResumeRecord.load(mTarget, url);
+                if (mResume == null) {
+                    cleanTarget(mTarget);
+                }
+                openTransfer(url);
+                startSingle(url);
+            }
+        };
+        mHandler.postDelayed(mRetry, delay);
+        return true;
+    }
+
+    /**
+     * @return suffix of report messages with the number of retries
+     */
+    private String retries() {
+        return mRetries > 0 ? ", " + mRetries + " retries" : "";
+    }
+
+    /**
+     * Reserve space for bytes which the download is going to write, it is released
+     * with the transfer
+     */
+    private void reserveSpace(File storage, long bytes)
+            throws SpaceReservations.InsufficientSpaceException {
+        SpaceReservations.getInstance().reserve(this, storage, bytes, MIN_FREE_SPACE);
+    }
+
+    /**
+     * Report the file which was not written as one stream : the rest of its digest is
+     * completed if a digest is expected. Downloaded file is stored in the cache
+     * @param fromCache true if the file was restored from the cache
+     * @param digest digest of the file, null if no digest is expected
+     */
+    private void reportVerified(final String url, final boolean fromCache,
+                                final String etag, final String lastModified, final String msg,
+                                Checksum.Prefix digest) {
+        final File target = mTarget;
+        if (digest == null) {
+            if (!fromCache) {
+                mCache.store(url, target, etag, lastModified);
+            }
+            report(DOWNLOAD_OK, msg);
+            return;
         }
-        return null;
+        digest.verify(new Checksum.Listener() {
+            @Override
+            public void onVerified(String error) {
+                if (error != null) {
+                    if (fromCache) {
+                        mCache.invalidate(url);
+                    }
+                    failChecksum(target, error);
+                    return;
+                }
+                if (!fromCache) {
+                    mCache.store(url, target, etag, lastModified);
+                }
+                report(DOWNLOAD_OK, msg);
+            }
+        });
+    }
+
+    /**
+     * Corrupted file is removed, it must not be resumed
+     */
+    private void failChecksum(File target, String error) {
+        target.delete();
+        ResumeRecord.delete(target);
+        resetProgressBar();
+        logError(ERROR_CHECKSUM_MISMATCH, "Download failed : " + error);
+    }
+
+    /**
+     * Server has answered 304 to the conditional request : copy the cached file to the target.
+     * If the cached file is lost, the file is downloaded again without condition
+     */
+    private void restoreFromCache(final String url) {
+        try {
+            reserveSpace(mStorage, mCached.size);
+        } catch (SpaceReservations.InsufficientSpaceException e) {
+            mCached = null;
+            downloading = false;
+            releaseTransfer();
+            resetProgressBar();
+            logError(ERROR_NOT_ENOUGH_FREE_SPACE, e.getMessage());
+            return;
+        }
+        // Cached file is hashed while it is copied
+        final Checksum checksum = mChecksum;
+        final MessageDigest digest = checksum != null ? checksum.newDigest() : null;
+        mRestoring = true;
+        mRestoreCanceled = false;
+        mCache.restore(url, mTarget, digest, new DownloadCache.Listener() {
+            @Override
+            public void onRestored(long length) {
+                mCached = null;
+                mRestoring = false;
+                if (mRestoreCanceled) {
+                    mRestoreCanceled = false;
+                    // Copy is not a partial download, there is nothing to resume
+                    mTarget.delete();
+                    downloading = false;
+                    releaseTransfer();
+                    resetProgressBar();
+                    report(CANCELED, "File download canceled");
+                    return;
+                }
+                if (length < 0) {
+                    mMetrics.retried();
+                    startSingle(url);
+                    return;
+                }
+                downloading = false;
+                releaseTransfer();
+                reportVerified(url, true, null, null, "File is not modified, restored from cache : "
+                        + length + " bytes",
+                        digest != null ? checksum.prefix(mTarget, digest, length) : null);
+            }
+        });
+    }
+
+    File getStorage(int where) {
+        return StorageResolver.getInstance(mContext).getStorage(where);
+    }
+
+    private File getAvailableStorage() {
+        return StorageResolver.getInstance(mContext).getAvailableStorage(
+                new int[] {EXTERNAL_PUBLIC, EXTERNAL_APP, INTERNAL_APP}, MIN_FREE_SPACE);
     }
 
     private boolean cleanTarget(File f) {
@@ -250,6 +659,7 @@ public class FileDownloaderIon {
     }
 
     private void resetProgressBar() {
+        mProgressDispatcher.remove(this);
         if (mProgressIndicator != null) {
             if (mProgressIndicator instanceof ProgressBar) {
                 ProgressBar pb = (ProgressBar) mProgressIndicator;
@@ -262,25 +672,223 @@ public class FileDownloaderIon {
         }
     }
 
+    /**
+     * Called on the transfer thread for every chunk
+     */
+    private void updateProgress(long downloaded, long total) {
+        if (mProgressIndicator != null) {
+            mProgressDispatcher.update(this, downloaded, total);
+        } else if (mProgressCallback != null) {
+            mProgressCallback.onProgress(downloaded, total);
+        }
+    }
+
+    private void setProgressIndicator(int value) {
+        if (value < 0) return;
+        if (mProgressIndicator instanceof ProgressBar) {
+            ProgressBar pb = (ProgressBar) mProgressIndicator;
+            pb.setMax(100);
+            pb.setProgress(value);
+        } else if (mProgressIndicator instanceof ProgressDialog) {
+            ProgressDialog pd = (ProgressDialog) mProgressIndicator;
+            pd.setMax(100);
+            pd.setProgress(value);
+        }
+    }
+
+    /**
+     * Keep partial file and its sidecar record to resume download later
+     */
+    private void saveResumePoint() {
+        long written = mOutput != null ? mOutput.release() : -1;
+        if (mResume == null) return;
+        if (mResume.validator() == null || !mTarget.exists()) {
+            // Remote resource can not be validated, download will restart from scratch
+            ResumeRecord.delete(mTarget);
+            return;
+        }
+        mResume.saveStopped(mTarget, written >= 0 ? written : mResume.offset);
+    }
+
+    // ------ Response headers callback
+
+    private class _HeadersCallback implements HeadersCallback {
+
+        private final ResumeRecord mRecord;
+        private final ResumableOutputStream mOutput;
+        private final File mTarget;
+        private final File mStorage;
+
+        _HeadersCallback(ResumeRecord record, ResumableOutputStream output, File target, File storage) {
+            mRecord = record;
+            mOutput = output;
+            mTarget = target;
+            mStorage = storage;
+        }
+
+        @Override
+        public void onHeaders(HeadersResponse response) {
+            int code = response.code();
+            mOutput.code(code);
+            Headers headers = response.getHeaders();
+            if (code / 100 != 2) {
+                // Error body must not overwrite partial file
+                mOutput.discard();
+                mRetryAfter = RetryPolicy.parseRetryAfter(headers.get("Retry-After"));
+                return;
+            }
+            boolean partial = code == 206;
+            // 200 answer to If-Range means that the resource has changed
+            if (!partial) {
+                mRecord.offset = 0;
+            }
+            mOutput.offset(mRecord.offset);
+            mRecord.update(headers.get("ETag"),
+                    headers.get("Last-Modified"),
+                    headers.get("Content-Length"),
+                    partial ? headers.get("Content-Range") : null);
+            // Without preallocation the length of the target is the written size
+            mRecord.written = -1;
+            if (mRecord.length > 0) {
+                // Body is rejected before it is written if the rest of the file does not fit.
+                // Preallocated target of a resumed download already occupies its length
+                try {
+                    reserveSpace(mStorage, mRecord.length
+                            - Math.max(mTarget.length(), mRecord.offset));
+                } catch (SpaceReservations.InsufficientSpaceException e) {
+                    mOutput.fail(e);
+                    return;
+                }
+                mOutput.preallocate(mRecord.length, mRecord);
+                mRecord.written = mRecord.offset;
+            }
+            mRecord.save(mTarget);
+        }
+    }
+
+    // ------ Segmented download listener
+
+    private class _SegmentedListener implements SegmentedDownload.Listener {
+
+        private final String mUrl;
+
+        _SegmentedListener(String url) {
+            mUrl = url;
+        }
+
+        @Override
+        public void onFallback(String url, String reason) {
+            Log.i("FileDownloaderIon", "Segmented download is not possible : " + reason
+                    + ". Use single stream from " + url);
+            startSingle(url);
+        }
+
+        @Override
+        public void onProgress(long downloaded, long total) {
+            updateProgress(downloaded, total);
+        }
+
+        @Override
+        public void onCompleted(long length, long elapsedMillis) {
+            long speed = elapsedMillis > 0 ? length * 1000 / elapsedMillis : length;
+            downloading = false;
+            releaseTransfer();
+            // Segments are written in parallel, the digest reads the bytes written ahead of it
+            reportVerified(mUrl, false, mSegmented.etag(), mSegmented.lastModified(),
+                    "File downloaded : " + length + " bytes with "
+                    + mSegmented.segments() + " segments" + mirrors() + " in " + elapsedMillis + " ms ("
+                    + speed + " B/s" + mSegmented.retries() + ")", mSegmentedDigest);
+        }
+
+        @Override
+        public void onCanceled() {
+            downloading = false;
+            releaseTransfer();
+            resetProgressBar();
+            report(CANCELED, "File download canceled");
+        }
+
+        @Override
+        public void onConnections(int connections, int reason) {
+            String msg = connections + " connections : " + ConnectionController.reasonName(reason);
+            if (mOnConnectionsListener != null) {
+                mOnConnectionsListener.onConnectionsChanged(connections, reason, msg);
+            } else {
+                Log.i("FileDownloaderIon", msg);
+            }
+        }
+
+        @Override
+        public void onLength(long length) throws IOException {
+            reserveSpace(mStorage, length);
+        }
+
+        private String mirrors() {
+            int mirrors = mSegmented.mirrors();
+            return mirrors > 1 ? " from " + mirrors + " mirrors" : "";
+        }
+
+        @Override
+        public void onFailed(Exception e) {
+            downloading = false;
+            releaseTransfer();
+            resetProgressBar();
+            if (e instanceof SpaceReservations.InsufficientSpaceException) {
+                logError(ERROR_NOT_ENOUGH_FREE_SPACE, e.getMessage());
+            } else {
+                logError(ERROR_DOWNLOAD_FAILED, "Download failed : " + e.getMessage());
+            }
+        }
+    }
+
     // ------ Ajax callback
 
-    private class _FutureCallback implements FutureCallback<File> {
+    private class _FutureCallback implements FutureCallback<ResumableOutputStream> {
 
         @Override
-        public void onCompleted(Exception e, File file) {
-            if (mFuture.isDone() && file != null) {
-                report(DOWNLOAD_OK, "File downloaded");
+        public void onCompleted(Exception e, ResumableOutputStream out) {
+            if (e == null && out != null && out.code() == 304 && mCached != null) {
+                restoreFromCache(mCached.url);
+                return;
+            }
+            if (e == null && out != null && !out.succeeded()) {
+                e = new Exception("Server returned code " + out.code());
+            }
+            // Listeners may start the next download of this session, state is released first
+            downloading = false;
+            releaseTransfer();
+            String mismatch = null;
+            if (e == null && out != null && out.digest() != null) {
+                mismatch = mChecksum.check(out.digest());
+            }
+            if (mismatch != null) {
+                failChecksum(mTarget, mismatch);
+            } else if (mFuture.isDone() && e == null && out != null) {
+                mCache.store(mResume.url, mTarget, mResume.etag, mResume.lastModified);
+                ResumeRecord.delete(mTarget);
+                mResume = null;
+                long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+                long length = mTarget.length();
+                long speed = elapsed > 0 ? length * 1000 / elapsed : length;
+                report(DOWNLOAD_OK, "File downloaded : " + length + " bytes in "
+                        + elapsed + " ms (" + speed + " B/s" + retries() + ")");
             } else if (mFuture.isCancelled()) {
+                saveResumePoint();
+                resetProgressBar();
                 report(CANCELED, "File download canceled");
+            } else if (mOutput.failure() != null) {
+                // Body was rejected by the space reservation
+                saveResumePoint();
                 resetProgressBar();
+                logError(ERROR_NOT_ENOUGH_FREE_SPACE, mOutput.failure().getMessage());
             } else {
-                logError(ERROR_DOWNLOAD_FAILED, "Download failed : " + e.getMessage());
+                saveResumePoint();
+                if (retryLater(mResume != null ? mResume.url : mMetrics.getUrl(), mOutput.code(), e)) {
+                    return;
+                }
                 resetProgressBar();
+                logError(ERROR_DOWNLOAD_FAILED, "Download failed : " + e.getMessage() + retries());
             }
-            downloading = false;
-
-            // clean cache
-            ion.getCache().clear();
 
         }
     }
@@ -298,5 +906,14 @@ public class FileDownloaderIon {
 
     }
 
+    // ------- On Connections Listener, adaptive segmented downloads
+
+    public interface OnConnectionsListener {
+        /**
+         * @param reason ConnectionController.REASON_*
+         */
+        public void onConnectionsChanged(int connections, int reason, String msg);
+    }
+
 
 }
@@ -0,0 +1,611 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.ProgressBar;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Download engine built on HttpURLConnection and FileChannel :
+ * 1) Response body is read into direct buffers taken from a shared pool
+ * 2) Buffers are written with positional writes, no per-chunk allocation
+ * 3) Partial downloads are resumed with Range/If-Range (see ResumeRecord)
+ * 4) Bandwidth is limited with BandwidthLimiter, the transfer thread waits when it is in debt
+ * 5) Optional digest is computed from the buffers as they are written
+ * 6) Disk space of the body is reserved from Content-Length and the target is preallocated
+ * 7) DNS, connect, first byte and disk write times are recorded in DownloadMetrics
+ * Transfers run on a shared executor, listeners are called on the main thread
+ */
+public class FileDownloaderNio {
+
+    private File mStorage;
+    private File mTarget;
+    private volatile boolean downloading = false;
+
+    private Context mContext;
+    private Handler mHandler;
+    private Object mProgressIndicator; // Bar or Dialog
+    private OnProgressListener mOnProgressListener;
+    private ProgressDispatcher mProgressDispatcher;
+
+    private _Transfer mTransfer;
+    private volatile long mBandwidth = BandwidthLimiter.UNLIMITED;
+    private volatile int mWeight = BandwidthLimiter.DEFAULT_WEIGHT;
+
+    public static final int DOWNLOAD_OK = 0;
+    public static final int CANCELED = 1;
+
+    public static final int ERROR_NOT_INIT = 0;
+    public static final int ERROR_NOT_ENOUGH_FREE_SPACE = 1;
+    public static final int ERROR_FAILED_CLEAN = 2;
+    public static final int ERROR_STORAGE_NOT_AVAILABLE = 3;
+    public static final int ERROR_NO_STORAGE = 4;
+    public static final int ERROR_DOWNLOAD_FAILED = 5;
+    public static final int ERROR_CANCEL_FAILED = 6;
+    public static final int ERROR_CHECKSUM_MISMATCH = 7;
+
+
+    private OnErrorListener mOnErrorListener;
+    private OnReportListener mOnReportListener;
+
+
+    private static final int MIN_FREE_SPACE = 10*1024*1024;
+
+    public static final int EXTERNAL_PUBLIC = 0;
+    public static final int EXTERNAL_APP = 1;
+    public static final int INTERNAL_APP = 2;
+
+    static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 16;
+    private static final int CONNECT_TIMEOUT = 15 * 1000;
+    private static final int READ_TIMEOUT = 30 * 1000;
+
+    // Shared between all instances
+    private static final BufferPool sBufferPool = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    private static final ExecutorService sExecutor = Executors.newCachedThreadPool();
+
+    private static FileDownloaderNio mInstance;
+
+    // ----- Public methods
+
+    static public synchronized FileDownloaderNio getInstance() {
+        if (mInstance == null) {
+            mInstance = new FileDownloaderNio();
+        }
+        return mInstance;
+    }
+
+    /**
+     * Create a download session. A session has its own target, transfer, listeners and progress.
+     * All sessions share the buffer pool and the transfer executor
+     */
+    static public FileDownloaderNio newSession(Context context) {
+        return new FileDownloaderNio().init(context);
+    }
+
+    public FileDownloaderNio init(Context context) {
+        mContext = context;
+        mHandler = new Handler(Looper.getMainLooper());
+        // Progress indicator is updated on the main thread only when percentage changes
+        mProgressDispatcher = new ProgressDispatcher(new MainThreadExecutor(),
+                new ProgressDispatcher.Listener() {
+                    @Override
+                    public void onProgress(List<ProgressDispatcher.Progress> updates) {
+                        if (downloading) {
+                            updateProgressIndicator(updates.get(updates.size() - 1).percent);
+                        }
+                    }
+                });
+        return this;
+    }
+
+    public boolean downloading() {
+        return downloading;
+    }
+
+    /**
+     * @return metrics of the current or last download, null if nothing was downloaded
+     */
+    public DownloadMetrics getMetrics() {
+        _Transfer t = mTransfer;
+        return t != null ? t.mMetrics : null;
+    }
+
+    public FileDownloaderNio progress(ProgressBar p) {
+        mProgressIndicator = p;
+        return this;
+    }
+
+    public FileDownloaderNio progress(ProgressDialog p) {
+        mProgressIndicator = p;
+        return this;
+    }
+
+    /**
+     * Listener is called on the transfer thread after each written buffer
+     */
+    public FileDownloaderNio progress(OnProgressListener listener) {
+        mOnProgressListener = listener;
+        return this;
+    }
+
+    /**
+     * Limit bandwidth of downloads of this session, the running download follows the new values.
+     * Global limit is set with BandwidthLimiter.getInstance().setGlobalLimit()
+     * @param bytesPerSecond limit of a download, BandwidthLimiter.UNLIMITED for global limit only
+     * @param weight share of the global limit relative to other downloads
+     */
+    public FileDownloaderNio bandwidth(long bytesPerSecond, int weight) {
+        mBandwidth = bytesPerSecond;
+        mWeight = weight;
+        _Transfer t = mTransfer;
+        if (t != null) {
+            t.mThrottle.setLimit(bytesPerSecond);
+            t.mThrottle.setWeight(weight);
+        }
+        return this;
+    }
+
+    public FileDownloaderNio where(File storage) {
+        mStorage = storage;
+        return this;
+    }
+
+    public FileDownloaderNio where(int where) {
+        if (!checkValid()) return this;
+        mStorage = getStorage(where);
+        return this;
+    }
+
+    public void download(String url, String output) {
+        download(url, output, null, null);
+    }
+
+    /**
+     * Download file and verify its digest. Bytes are hashed as they are written,
+     * a mismatch is reported with ERROR_CHECKSUM_MISMATCH and the file is removed
+     * @param algorithm FileDownloaderIon.DIGEST_SHA256, DIGEST_MD5 or another MessageDigest algorithm
+     * @param expectedDigest hex string of the digest, null to skip verification
+     */
+    public void download(String url, String output, String algorithm, String expectedDigest) {
+        if (!checkValid()) return;
+
+        Checksum checksum;
+        try {
+            checksum = Checksum.create(algorithm, expectedDigest);
+        } catch (IllegalArgumentException e) {
+            logError(ERROR_DOWNLOAD_FAILED, e.getMessage());
+            return;
+        }
+
+        if (mStorage == null) {
+            mStorage = getAvailableStorage();
+            if (mStorage == null) {
+                logError(ERROR_NO_STORAGE,
+                        "No available storage");
+                return;
+            }
+        } else if (!testStorage(mStorage, false)) {
+            // Download reports one error, low space is not logged by testStorage
+            logError(ERROR_STORAGE_NOT_AVAILABLE,
+                    "Specified storage is not available");
+            return;
+        }
+        mTarget = new File(mStorage, output);
+        // Keep partial file if it can be resumed
+        ResumeRecord record = ResumeRecord.load(mTarget, url);
+        if (record == null) {
+            cleanTarget(mTarget);
+            record = new ResumeRecord(url);
+        }
+
+        mTransfer = new _Transfer(url, mStorage, mTarget, record, checksum);
+        downloading = true;
+        sExecutor.execute(mTransfer);
+    }
+
+    /**
+     * Cancel download, partial file is kept to resume it later
+     */
+    public void cancel() {
+        if (downloading) {
+            mTransfer.cancel();
+        }
+    }
+
+    /**
+     * Cancel download and remove partial file
+     */
+    public void cancelAndClean() {
+        if (downloading) {
+            mTransfer.mClean = true;
+            mTransfer.cancel();
+        }
+    }
+
+    // ------ Public helper methods
+
+    public FileDownloaderNio setOnErrorListener( OnErrorListener listener) {
+        mOnErrorListener = listener;
+        return this;
+    }
+
+    public FileDownloaderNio setOnReportListener( OnReportListener listener) {
+        mOnReportListener = listener;
+        return this;
+    }
+
+    public boolean testStorage(int where) {
+        if (!checkValid()) return false;
+        return testStorage(getStorage(where));
+    }
+
+    public boolean testStorage(File storage) {
+        return testStorage(storage, true);
+    }
+
+    // ----- Private methods
+
+    /**
+     * @param logSpace report ERROR_NOT_ENOUGH_FREE_SPACE if the storage has not enough free space
+     */
+    private boolean testStorage(File storage, boolean logSpace) {
+        if (storage == null) return false;
+
+        // State of the storage is cached, the file system is not probed on every call
+        StorageResolver storages = StorageResolver.getInstance(mContext);
+        if (!storages.isAvailable(storage)) {
+            return false;
+        } else if (storages.getUsableSpace(storage) < MIN_FREE_SPACE) {
+            if (logSpace) {
+                logError(ERROR_NOT_ENOUGH_FREE_SPACE,
+                        "Storage \'" + storage.getAbsolutePath() + "\' has not enough free space");
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private FileDownloaderNio() {    }
+
+    private void logError(int code, String error) {
+        if (mOnErrorListener != null) {
+            mOnErrorListener.onError(code, error);
+        } else {
+            Log.e("FileDownloaderNio", error);
+        }
+    }
+
+    private void report(int code, String msg) {
+        if (mOnReportListener != null) {
+            mOnReportListener.onReport(code, msg);
+        } else {
+            Log.i("FileDownloaderNio", msg);
+        }
+    }
+
+    private boolean checkValid() {
+        if (mContext == null) {
+            logError(ERROR_NOT_INIT, "FileLoader should be initialized");
+            return false;
+        }
+        return true;
+    }
+
+    private File getStorage(int where) {
+        return StorageResolver.getInstance(mContext).getStorage(where);
+    }
+
+    private File getAvailableStorage() {
+        return StorageResolver.getInstance(mContext).getAvailableStorage(
+                new int[] {EXTERNAL_PUBLIC, EXTERNAL_APP, INTERNAL_APP}, MIN_FREE_SPACE);
+    }
+
+    private boolean cleanTarget(File f) {
+        if (f.exists()) {
+            if (!f.delete()) {
+                logError(ERROR_FAILED_CLEAN,
+                        "Failed to remove output file on clean");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void updateProgressIndicator(int value) {
+        if (value < 0) return;
+        if (mProgressIndicator instanceof ProgressBar) {
+            ProgressBar pb = (ProgressBar) mProgressIndicator;
+            pb.setMax(100);
+            pb.setProgress(value);
+        } else if (mProgressIndicator instanceof ProgressDialog) {
+            ProgressDialog pd = (ProgressDialog) mProgressIndicator;
+            pd.setMax(100);
+            pd.setProgress(value);
+        }
+    }
+
+    private void resetProgressBar() {
+        mProgressDispatcher.remove(this);
+        if (mProgressIndicator != null) {
+            if (mProgressIndicator instanceof ProgressBar) {
+                ProgressBar pb = (ProgressBar) mProgressIndicator;
+                pb.setProgress(0);
+            } else if (mProgressIndicator instanceof ProgressDialog) {
+                ProgressDialog pd = (ProgressDialog) mProgressIndicator;
+                pd.setProgress(0);
+                pd.hide();
+            }
+        }
+    }
+
+    private static void close(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    // ------ Transfer
+
+    private class _Transfer implements Runnable {
+
+        private final String mUrl;
+        private final File mStorage;
+        private final File mFile;
+        private final ResumeRecord mRecord;
+        private final BandwidthLimiter.Throttle mThrottle;
+        private final Checksum mChecksum;
+        private final DownloadMetrics mMetrics;
+
+        private volatile boolean mCanceled = false;
+        private volatile boolean mClean = false;
+        private volatile HttpURLConnection mConnection;
+
+        _Transfer(String url, File storage, File file, ResumeRecord record, Checksum checksum) {
+            mUrl = url;
+            mStorage = storage;
+            mFile = file;
+            mRecord = record;
+            mChecksum = checksum;
+            mMetrics = new DownloadMetrics(url, "Nio");
+            mThrottle = BandwidthLimiter.getInstance().open(mBandwidth, mWeight);
+        }
+
+        void cancel() {
+            mCanceled = true;
+            HttpURLConnection c = mConnection;
+            if (c != null) {
+                // unblock read
+                c.disconnect();
+            }
+        }
+
+        @Override
+        public void run() {
+            long start = SystemClock.elapsedRealtime();
+            long position = mRecord.offset;
+            HttpURLConnection connection = null;
+            ReadableByteChannel in = null;
+            RandomAccessFile file = null;
+            ByteBuffer buffer = null;
+            try {
+                URL url = new URL(mUrl);
+                // Resolved address is cached by the system, the connection does not look it up again
+                InetAddress.getByName(url.getHost());
+                mMetrics.resolved();
+                connection = (HttpURLConnection) url.openConnection();
+                mConnection = connection;
+                connection.setConnectTimeout(CONNECT_TIMEOUT);
+                connection.setReadTimeout(READ_TIMEOUT);
+                if (mRecord.validator() != null) {
+                    connection.setRequestProperty("Range", "bytes=" + mRecord.offset + "-");
+                    connection.setRequestProperty("If-Range", mRecord.validator());
+                }
+                connection.connect();
+                mMetrics.connected();
+                int code = connection.getResponseCode();
+                mMetrics.firstByte();
+                if (code / 100 != 2) {
+                    throw new IOException("Server returned code " + code);
+                }
+                // 200 answer to If-Range means that the resource has changed
+                boolean partial = code == 206;
+                if (!partial) {
+                    mRecord.offset = 0;
+                }
+                position = mRecord.offset;
+                mRecord.update(connection.getHeaderField("ETag"),
+                        connection.getHeaderField("Last-Modified"),
+                        connection.getHeaderField("Content-Length"),
+                        partial ? connection.getHeaderField("Content-Range") : null);
+                long total = mRecord.length;
+                // Without preallocation the length of the target is the written size
+                mRecord.written = -1;
+                if (total > 0) {
+                    // Body is not read if the rest of the file does not fit.
+                    // Preallocated target of a resumed download already occupies its length
+                    long needed = total - Math.max(mFile.length(), position);
+                    SpaceReservations.getInstance().reserve(this, mStorage, needed,
+                            MIN_FREE_SPACE);
+                    mRecord.written = position;
+                }
+                mRecord.save(mFile);
+
+                file = new RandomAccessFile(mFile, "rw");
+                if (!partial) {
+                    file.setLength(0);
+                }
+                if (total > file.length()) {
+                    file.setLength(total);
+                }
+                long checkpoint = position;
+                MessageDigest digest = null;
+                if (mChecksum != null) {
+                    digest = mChecksum.newDigest();
+                    if (partial) {
+                        Checksum.update(digest, mFile, position);
+                    }
+                }
+                FileChannel out = file.getChannel();
+                in = Channels.newChannel(connection.getInputStream());
+                buffer = sBufferPool.acquire();
+
+                while (!mCanceled) {
+                    buffer.clear();
+                    int read = in.read(buffer);
+                    if (read < 0) break;
+                    buffer.flip();
+                    if (digest != null) {
+                        buffer.mark();
+                        digest.update(buffer);
+                        buffer.reset();
+                    }
+                    long writeStart = System.nanoTime();
+                    while (buffer.hasRemaining()) {
+                        position += out.write(buffer, position);
+                    }
+                    mMetrics.received(read, System.nanoTime() - writeStart);
+                    onProgress(position, total);
+                    if (total > 0 && position - checkpoint >= ResumeRecord.CHECKPOINT_BYTES) {
+                        checkpoint = position;
+                        mRecord.checkpoint(file, mFile, position);
+                    }
+                    waitForBandwidth(mThrottle.consume(read));
+                }
+                String mismatch = null;
+                if (!mCanceled && digest != null) {
+                    mismatch = mChecksum.check(digest);
+                }
+                if (mCanceled) {
+                    finish(CANCELED, position, null);
+                } else if (mismatch != null) {
+                    // Corrupted file must not be resumed
+                    mClean = true;
+                    finish(ERROR_CHECKSUM_MISMATCH, position, "Download failed : " + mismatch);
+                } else {
+                    if (file.length() > position) {
+                        // Server has sent less than Content-Length
+                        file.setLength(position);
+                    }
+                    ResumeRecord.delete(mFile);
+                    long elapsed = SystemClock.elapsedRealtime() - start;
+                    long speed = elapsed > 0 ? position * 1000 / elapsed : position;
+                    finish(DOWNLOAD_OK, position, "File downloaded : " + position + " bytes in "
+                            + elapsed + " ms (" + speed + " B/s)");
+                }
+            } catch (SpaceReservations.InsufficientSpaceException e) {
+                finish(ERROR_NOT_ENOUGH_FREE_SPACE, position, e.getMessage());
+            } catch (IOException e) {
+                finish(mCanceled ? CANCELED : ERROR_DOWNLOAD_FAILED, position,
+                        "Download failed : " + e.getMessage());
+            } finally {
+                mThrottle.close();
+                SpaceReservations.getInstance().release(this);
+                sBufferPool.release(buffer);
+                close(in);
+                close(file);
+                if (connection != null) {
+                    connection.disconnect();
+                }
+                mConnection = null;
+            }
+        }
+
+        /**
+         * Sleep in short steps, so cancel is not delayed by a low limit
+         */
+        private void waitForBandwidth(long delay) {
+            long until = SystemClock.elapsedRealtime() + delay;
+            while (!mCanceled && delay > 0) {
+                SystemClock.sleep(Math.min(delay, 100));
+                delay = until - SystemClock.elapsedRealtime();
+            }
+        }
+
+        private void onProgress(long downloaded, long total) {
+            if (mOnProgressListener != null) {
+                mOnProgressListener.onProgress(downloaded, total);
+            }
+            if (mProgressIndicator != null) {
+                mProgressDispatcher.update(FileDownloaderNio.this, downloaded, total);
+            }
+        }
+
+        private void finish(final int code, long position, final String msg) {
+            MetricsRegistry.getInstance().record(mMetrics,
+                    code == DOWNLOAD_OK ? DownloadMetrics.RESULT_OK
+                            : code == CANCELED ? DownloadMetrics.RESULT_CANCELED
+                            : DownloadMetrics.RESULT_FAILED, code);
+            if (code != DOWNLOAD_OK) {
+                if (mClean) {
+                    mFile.delete();
+                    ResumeRecord.delete(mFile);
+                } else if (mRecord.validator() != null && mFile.exists()) {
+                    // Preallocated tail is cut, the download continues after the written bytes
+                    mRecord.saveStopped(mFile, position);
+                } else {
+                    ResumeRecord.delete(mFile);
+                }
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mTransfer == _Transfer.this) {
+                        downloading = false;
+                    }
+                    if (code == DOWNLOAD_OK) {
+                        report(DOWNLOAD_OK, msg);
+                    } else if (code == CANCELED) {
+                        report(CANCELED, "File download canceled");
+                        resetProgressBar();
+                    } else {
+                        logError(code, msg);
+                        resetProgressBar();
+                    }
+                }
+            });
+        }
+    }
+
+    // ------ On Progress Listener
+
+    public interface OnProgressListener {
+        public void onProgress(long downloaded, long total);
+    }
+
+    // ------ On Error Listener
+
+    public interface OnErrorListener {
+        public void onError(int code, String errorMessage);
+    }
+
+    // ------- On Result Listener
+
+    public interface OnReportListener {
+        public void onReport(int code, String msg);
+
+    }
+
+}
@@ -0,0 +1,129 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Histogram of non-negative values with power of two buckets : bucket i holds values
+ * in [2^(i-1), 2^i), bucket 0 holds zero. Memory is fixed whatever the number of values,
+ * percentiles are estimated with the upper bound of their bucket
+ */
+public class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    private final String mName;
+    private final long[] mCounts = new long[BUCKETS];
+    private long mCount = 0;
+    private long mSum = 0;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = 0;
+
+    Histogram(String name) {
+        mName = name;
+    }
+
+    // ----- Public methods
+
+    public String getName() {
+        return mName;
+    }
+
+    public synchronized long count() {
+        return mCount;
+    }
+
+    public synchronized long sum() {
+        return mSum;
+    }
+
+    public synchronized long min() {
+        return mCount > 0 ? mMin : 0;
+    }
+
+    public synchronized long max() {
+        return mMax;
+    }
+
+    public synchronized long mean() {
+        return mCount > 0 ? mSum / mCount : 0;
+    }
+
+    /**
+     * @param p percentile between 0 and 1, e.g. 0.95
+     * @return upper bound of the bucket which holds the percentile, 0 if there are no values
+     */
+    public synchronized long percentile(double p) {
+        if (mCount == 0) return 0;
+        long rank = (long) Math.ceil(Math.max(0, Math.min(1, p)) * mCount);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(mMax, upperBound(i));
+            }
+        }
+        return mMax;
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject o = new JSONObject();
+        o.put("count", mCount);
+        o.put("sum", mSum);
+        o.put("min", min());
+        o.put("max", mMax);
+        o.put("mean", mean());
+        o.put("p50", percentile(0.5));
+        o.put("p90", percentile(0.9));
+        o.put("p99", percentile(0.99));
+        // Buckets are exported as [upper bound, count] pairs, empty buckets are skipped
+        JSONArray buckets = new JSONArray();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (mCounts[i] == 0) continue;
+            JSONArray b = new JSONArray();
+            b.put(upperBound(i));
+            b.put(mCounts[i]);
+            buckets.put(b);
+        }
+        o.put("buckets", buckets);
+        return o;
+    }
+
+    // ----- Package methods
+
+    /**
+     * Negative values (unknown measures) are ignored
+     */
+    synchronized void record(long value) {
+        if (value < 0) return;
+        mCounts[bucket(value)]++;
+        mCount++;
+        mSum += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    synchronized Histogram copy() {
+        Histogram h = new Histogram(mName);
+        System.arraycopy(mCounts, 0, h.mCounts, 0, BUCKETS);
+        h.mCount = mCount;
+        h.mSum = mSum;
+        h.mMin = mMin;
+        h.mMax = mMax;
+        return h;
+    }
+
+    // ----- Private methods
+
+    private static int bucket(long value) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket == 0) return 0;
+        if (bucket >= 63) return Long.MAX_VALUE;
+        return (1L << bucket) - 1;
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import com.koushikdutta.async.http.AsyncHttpClientMiddleware;
+import com.koushikdutta.async.http.SimpleMiddleware;
+import com.koushikdutta.ion.Ion;
+
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ion middleware which records connection phases of downloads in their DownloadMetrics :
+ * the connection is established when headers are about to be exchanged, first byte
+ * is the arrival of the response headers. Ion resolves host names inside its socket
+ * middleware, so DNS lookup is a part of the connect time.
+ * Metrics are matched by request url, the first request of a download sets the phases.
+ * Metrics are also registered under the Location of a redirect, as the throttles of
+ * ThrottleMiddleware, and first byte is the arrival of the headers after the last redirect
+ */
+class MetricsMiddleware extends SimpleMiddleware {
+
+    private final ConcurrentHashMap<String, DownloadMetrics> mMetrics =
+            new ConcurrentHashMap<String, DownloadMetrics>();
+
+    /**
+     * @return middleware of the Ion instance, it is inserted on the first call
+     */
+    static synchronized MetricsMiddleware install(Ion ion) {
+        for (AsyncHttpClientMiddleware m : ion.getHttpClient().getMiddleware()) {
+            if (m instanceof MetricsMiddleware) {
+                return (MetricsMiddleware) m;
+            }
+        }
+        MetricsMiddleware m = new MetricsMiddleware();
+        ion.getHttpClient().insertMiddleware(m);
+        return m;
+    }
+
+    void register(String url, DownloadMetrics metrics) {
+        mMetrics.put(url, metrics);
+    }
+
+    /**
+     * Remove the metrics with the urls they were redirected to
+     */
+    void unregister(String url, DownloadMetrics metrics) {
+        mMetrics.remove(url, metrics);
+        mMetrics.values().removeAll(Collections.singleton(metrics));
+    }
+
+    @Override
+    public boolean exchangeHeaders(OnExchangeHeaderData data) {
+        DownloadMetrics m = mMetrics.get(data.request.getUri().toString());
+        if (m != null) {
+            m.connected();
+        }
+        // Headers are exchanged by the transport middleware
+        return false;
+    }
+
+    @Override
+    public void onHeadersReceived(OnHeadersReceivedDataOnRequestSentData data) {
+        DownloadMetrics m = mMetrics.get(data.request.getUri().toString());
+        if (m == null) return;
+        String location = ThrottleMiddleware.redirectUrl(data);
+        if (location != null) {
+            // Do not take the url of another download
+            mMetrics.putIfAbsent(location, m);
+        } else {
+            m.firstByte();
+        }
+    }
+
+}
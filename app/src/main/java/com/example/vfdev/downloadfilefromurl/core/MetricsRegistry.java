@@ -0,0 +1,199 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregated metrics of all finished downloads of the process :
+ * 1) Counters of completed, canceled and failed downloads
+ * 2) Histograms of timings, sizes and throughputs (see HISTOGRAM_* names)
+ * 3) Metrics of the last RECENT_SIZE downloads
+ * snapshot() returns a consistent copy which can be exported as JSON
+ */
+public class MetricsRegistry {
+
+    public static final String HISTOGRAM_DNS = "dnsMillis";
+    public static final String HISTOGRAM_CONNECT = "connectMillis";
+    public static final String HISTOGRAM_FIRST_BYTE = "firstByteMillis";
+    public static final String HISTOGRAM_TOTAL = "totalMillis";
+    public static final String HISTOGRAM_BYTES = "bytes";
+    public static final String HISTOGRAM_THROUGHPUT = "averageThroughput";
+    public static final String HISTOGRAM_PEAK_THROUGHPUT = "peakThroughput";
+    public static final String HISTOGRAM_RETRIES = "retries";
+    public static final String HISTOGRAM_DISK_WRITE = "diskWriteMillis";
+
+    public static final int RECENT_SIZE = 64;
+
+    private static MetricsRegistry mInstance;
+
+    private final LinkedHashMap<String, Histogram> mHistograms = new LinkedHashMap<String, Histogram>();
+    private final LinkedList<DownloadMetrics> mRecent = new LinkedList<DownloadMetrics>();
+    private long mCompleted = 0;
+    private long mCanceled = 0;
+    private long mFailed = 0;
+    private long mSince = System.currentTimeMillis();
+
+    // ----- Public methods
+
+    static public synchronized MetricsRegistry getInstance() {
+        if (mInstance == null) {
+            mInstance = new MetricsRegistry();
+        }
+        return mInstance;
+    }
+
+    public synchronized Snapshot snapshot() {
+        Snapshot s = new Snapshot();
+        s.since = mSince;
+        s.time = System.currentTimeMillis();
+        s.completed = mCompleted;
+        s.canceled = mCanceled;
+        s.failed = mFailed;
+        for (Map.Entry<String, Histogram> e : mHistograms.entrySet()) {
+            s.histograms.put(e.getKey(), e.getValue().copy());
+        }
+        s.recent.addAll(mRecent);
+        return s;
+    }
+
+    /**
+     * Clear all metrics, e.g. after a snapshot was exported
+     */
+    public synchronized void reset() {
+        mHistograms.clear();
+        createHistograms();
+        mRecent.clear();
+        mCompleted = 0;
+        mCanceled = 0;
+        mFailed = 0;
+        mSince = System.currentTimeMillis();
+    }
+
+    // ----- Package methods, used by the engines
+
+    /**
+     * Finish the download and add its metrics, nothing is done if it was already finished
+     */
+    void record(DownloadMetrics m, int result, int error) {
+        if (m == null || !m.finished(result, error)) return;
+        synchronized (this) {
+            if (result == DownloadMetrics.RESULT_OK) {
+                mCompleted++;
+            } else if (result == DownloadMetrics.RESULT_CANCELED) {
+                mCanceled++;
+            } else {
+                mFailed++;
+            }
+            mRecent.addLast(m);
+            if (mRecent.size() > RECENT_SIZE) {
+                mRecent.removeFirst();
+            }
+            if (result != DownloadMetrics.RESULT_OK) return;
+            // Timings of stopped downloads would skew the distributions
+            mHistograms.get(HISTOGRAM_DNS).record(m.getDnsMillis());
+            mHistograms.get(HISTOGRAM_CONNECT).record(m.getConnectMillis());
+            mHistograms.get(HISTOGRAM_FIRST_BYTE).record(m.getFirstByteMillis());
+            mHistograms.get(HISTOGRAM_TOTAL).record(m.getTotalMillis());
+            mHistograms.get(HISTOGRAM_BYTES).record(m.getBytes());
+            mHistograms.get(HISTOGRAM_THROUGHPUT).record(m.getAverageThroughput());
+            mHistograms.get(HISTOGRAM_PEAK_THROUGHPUT).record(m.getPeakThroughput());
+            mHistograms.get(HISTOGRAM_RETRIES).record(m.getRetries());
+            mHistograms.get(HISTOGRAM_DISK_WRITE).record(m.getDiskWriteMillis());
+        }
+    }
+
+    // ----- Private methods
+
+    private MetricsRegistry() {
+        createHistograms();
+    }
+
+    private void createHistograms() {
+        for (String name : new String[] {HISTOGRAM_DNS, HISTOGRAM_CONNECT, HISTOGRAM_FIRST_BYTE,
+                HISTOGRAM_TOTAL, HISTOGRAM_BYTES, HISTOGRAM_THROUGHPUT, HISTOGRAM_PEAK_THROUGHPUT,
+                HISTOGRAM_RETRIES, HISTOGRAM_DISK_WRITE}) {
+            mHistograms.put(name, new Histogram(name));
+        }
+    }
+
+    // ------ Snapshot
+
+    public static class Snapshot {
+
+        private long since;
+        private long time;
+        private long completed;
+        private long canceled;
+        private long failed;
+        private final LinkedHashMap<String, Histogram> histograms = new LinkedHashMap<String, Histogram>();
+        private final ArrayList<DownloadMetrics> recent = new ArrayList<DownloadMetrics>();
+
+        private Snapshot() {    }
+
+        /**
+         * @return wall clock time when the metrics were created or reset
+         */
+        public long getSince() {
+            return since;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        public long getCanceled() {
+            return canceled;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * @param name one of HISTOGRAM_* names
+         */
+        public Histogram getHistogram(String name) {
+            return histograms.get(name);
+        }
+
+        /**
+         * @return metrics of the last downloads, the oldest first
+         */
+        public List<DownloadMetrics> getRecent() {
+            return Collections.unmodifiableList(recent);
+        }
+
+        public JSONObject toJson() throws JSONException {
+            JSONObject o = new JSONObject();
+            o.put("since", since);
+            o.put("time", time);
+            o.put("completed", completed);
+            o.put("canceled", canceled);
+            o.put("failed", failed);
+            JSONObject h = new JSONObject();
+            for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+                h.put(e.getKey(), e.getValue().toJson());
+            }
+            o.put("histograms", h);
+            JSONArray r = new JSONArray();
+            for (DownloadMetrics m : recent) {
+                r.put(m.toJson());
+            }
+            o.put("recent", r);
+            return o;
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Coalesces progress updates of many tasks :
+ * 1) update() only stores the last value of a task, it can be called on every chunk from any thread
+ * 2) At most 'rate' ticks per second are run, a tick is scheduled only if something has changed
+ * 3) A tick emits tasks whose percentage has changed (bytes for unknown total) in one batch
+ * 4) Batches are delivered on the given executor
+ */
+public class ProgressDispatcher {
+
+    public static final int DEFAULT_RATE = 4;
+
+    // One timer thread for all dispatchers, ticks are short
+    private static final ScheduledExecutorService sTimer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ProgressDispatcher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final ConcurrentHashMap<Object, Entry> mEntries = new ConcurrentHashMap<Object, Entry>();
+    private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+    private final Executor mExecutor;
+    private final Listener mListener;
+    private volatile long mInterval;
+    private volatile long mLastTick = 0;
+
+    public ProgressDispatcher(Executor executor, Listener listener) {
+        mExecutor = executor;
+        mListener = listener;
+        setRate(DEFAULT_RATE);
+    }
+
+    /**
+     * @param eventsPerSecond maximum number of batches per second
+     */
+    public void setRate(int eventsPerSecond) {
+        mInterval = 1000 / Math.max(1, eventsPerSecond);
+    }
+
+    public void update(Object key, long downloaded, long total) {
+        Entry e = mEntries.get(key);
+        if (e == null) {
+            e = new Entry(key);
+            Entry previous = mEntries.putIfAbsent(key, e);
+            if (previous != null) e = previous;
+        }
+        e.downloaded = downloaded;
+        e.total = total;
+        if (!e.changed()) return;
+
+        if (mScheduled.compareAndSet(false, true)) {
+            long delay = mLastTick + mInterval - System.currentTimeMillis();
+            sTimer.schedule(mTick, Math.max(0, delay), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Forget a task, e.g. when it is finished
+     */
+    public void remove(Object key) {
+        mEntries.remove(key);
+    }
+
+    public void clear() {
+        mEntries.clear();
+    }
+
+    // ----- Private methods
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            mScheduled.set(false);
+            mLastTick = System.currentTimeMillis();
+
+            ArrayList<Progress> batch = null;
+            for (Entry e : mEntries.values()) {
+                if (!e.changed()) continue;
+                long downloaded = e.downloaded;
+                long total = e.total;
+                e.emit(downloaded, total);
+                if (batch == null) batch = new ArrayList<Progress>();
+                batch.add(new Progress(e.key, downloaded, total));
+            }
+            if (batch == null) return;
+
+            final List<Progress> updates = batch;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onProgress(updates);
+                }
+            });
+        }
+    };
+
+    static int percent(long downloaded, long total) {
+        return total > 0 ? (int) (100 * downloaded / total) : -1;
+    }
+
+    private static class Entry {
+        final Object key;
+        volatile long downloaded;
+        volatile long total;
+        private volatile int mEmittedPercent = -1;
+        private volatile long mEmittedBytes = -1;
+
+        Entry(Object key) {
+            this.key = key;
+        }
+
+        boolean changed() {
+            long t = total;
+            if (t > 0) {
+                return percent(downloaded, t) != mEmittedPercent;
+            }
+            return downloaded != mEmittedBytes;
+        }
+
+        void emit(long downloaded, long total) {
+            mEmittedPercent = percent(downloaded, total);
+            mEmittedBytes = downloaded;
+        }
+    }
+
+    // ------ Progress of a task
+
+    public static class Progress {
+        public final Object key;
+        public final long downloaded;
+        public final long total;
+        public final int percent;
+
+        Progress(Object key, long downloaded, long total) {
+            this.key = key;
+            this.downloaded = downloaded;
+            this.total = total;
+            this.percent = ProgressDispatcher.percent(downloaded, total);
+        }
+    }
+
+    // ------ Listener
+
+    public interface Listener {
+        public void onProgress(List<Progress> updates);
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * OutputStream that writes a byte range of a file at its offset.
+ * Positional writes are used, so several streams can share the same FileChannel.
+ * End of the range may be moved back while bytes are written, bytes after it are rejected.
+ * Written bytes are passed to the digest of the file, if there is one
+ */
+class RangeOutputStream extends OutputStream {
+
+    private final FileChannel mChannel;
+    private volatile long mPosition;
+    private long mEnd;
+    private final DownloadMetrics mMetrics;
+    private final Checksum.Prefix mDigest;
+    private volatile boolean mDiscard = false;
+
+    /**
+     * @param channel shared file channel, it is not closed by this stream
+     * @param offset first byte of the range in the file
+     * @param length length of the range
+     * @param metrics received bytes and time of disk writes are added to it, may be null
+     * @param digest digest of the file, may be null
+     */
+    RangeOutputStream(FileChannel channel, long offset, long length, DownloadMetrics metrics,
+                      Checksum.Prefix digest) {
+        mChannel = channel;
+        mPosition = offset;
+        mEnd = offset + length;
+        mMetrics = metrics;
+        mDigest = digest;
+    }
+
+    public long position() {
+        return mPosition;
+    }
+
+    /**
+     * Shorten the range, e.g. to give its tail to another connection
+     * @param end new end of the range (exclusive)
+     * @return false if bytes after the new end are already written
+     */
+    synchronized boolean limit(long end) {
+        if (mPosition > end) return false;
+        mEnd = Math.min(mEnd, end);
+        return true;
+    }
+
+    /**
+     * Ignore all bytes, e.g. error body of the response
+     */
+    void discard() {
+        mDiscard = true;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (mDiscard) return;
+        // Bytes up to the end are kept : the range may have been shortened during the transfer
+        int count = (int) Math.max(0, Math.min(len, mEnd - mPosition));
+        long start = System.nanoTime();
+        long position = mPosition;
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, count);
+        while (buffer.hasRemaining()) {
+            mPosition += mChannel.write(buffer, mPosition);
+        }
+        if (mMetrics != null) {
+            mMetrics.received(count, System.nanoTime() - start);
+        }
+        if (mDigest != null && count > 0) {
+            mDigest.written(position, b, off, count);
+        }
+        if (count < len) {
+            throw new IOException("Received more bytes than requested range");
+        }
+    }
+
+    @Override
+    public void close() {
+        // channel is shared between segments and is closed by the owner
+    }
+
+}
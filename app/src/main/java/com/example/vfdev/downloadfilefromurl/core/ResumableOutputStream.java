@@ -0,0 +1,221 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+
+/**
+ * OutputStream to a target file which is opened on the first write.
+ * Depending on the response headers, bytes are written after a partial prefix
+ * or the file is truncated and written from scratch.
+ * If the final length is known, the file is preallocated when it is opened and
+ * the written bytes are checkpointed in the resume record.
+ * Optional digest is updated with all bytes of the file, including the partial prefix
+ */
+class ResumableOutputStream extends OutputStream {
+
+    private final File mFile;
+    private RandomAccessFile mOut;
+    private volatile long mOffset = 0;
+    private volatile long mLength = -1;
+    private volatile boolean mDiscard = false;
+    private volatile int mCode = -1;
+    private volatile IOException mFailure;
+    private volatile long mPosition = -1;
+    private MessageDigest mDigest;
+    private ResumeRecord mRecord;
+    private long mCheckpoint;
+    private DownloadMetrics mMetrics;
+
+    ResumableOutputStream(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Should be called before the first write
+     * @param offset position of the first written byte : bytes before it are kept,
+     *               0 truncates the file
+     */
+    void offset(long offset) {
+        mOffset = offset;
+    }
+
+    /**
+     * Should be called before the first write
+     * @param length final length of the file, it is preallocated when the file is opened
+     * @param record its written bytes are saved every ResumeRecord.CHECKPOINT_BYTES
+     */
+    void preallocate(long length, ResumeRecord record) {
+        mLength = length;
+        mRecord = record;
+    }
+
+    /**
+     * Ignore all bytes, e.g. error body of the response
+     */
+    void discard() {
+        mDiscard = true;
+    }
+
+    /**
+     * Reject all bytes : next write throws the exception, so the transfer is stopped
+     */
+    void fail(IOException e) {
+        mFailure = e;
+    }
+
+    /**
+     * Should be called before the first write
+     * @param metrics received bytes and time of disk writes are added to it
+     */
+    void metrics(DownloadMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * @return exception passed to fail() or null
+     */
+    IOException failure() {
+        return mFailure;
+    }
+
+    /**
+     * Should be called before the first write
+     */
+    void digest(MessageDigest digest) {
+        mDigest = digest;
+    }
+
+    /**
+     * @return digest of the written file or null
+     */
+    MessageDigest digest() {
+        return mDigest;
+    }
+
+    void code(int code) {
+        mCode = code;
+    }
+
+    int code() {
+        return mCode;
+    }
+
+    /**
+     * @return true if response code is unknown or successful
+     */
+    boolean succeeded() {
+        return mCode < 0 || mCode / 100 == 2;
+    }
+
+    /**
+     * @return number of bytes of the file which are written, -1 if the file is not opened
+     */
+    long position() {
+        return mPosition;
+    }
+
+    /**
+     * Close the file of a stopped transfer, later writes are ignored
+     * @return number of written bytes, -1 if the file was not opened
+     */
+    synchronized long release() {
+        mDiscard = true;
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+            mOut = null;
+        }
+        return mPosition;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        if (mFailure != null) throw mFailure;
+        if (mDiscard) return;
+        long start = System.nanoTime();
+        open().write(b);
+        long elapsed = System.nanoTime() - start;
+        if (mDigest != null) {
+            mDigest.update((byte) b);
+        }
+        written(1, elapsed);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (mFailure != null) throw mFailure;
+        if (mDiscard) return;
+        long start = System.nanoTime();
+        open().write(b, off, len);
+        long elapsed = System.nanoTime() - start;
+        if (mDigest != null) {
+            mDigest.update(b, off, len);
+        }
+        written(len, elapsed);
+    }
+
+    /**
+     * Bytes go straight to the file, there is nothing to flush
+     */
+    @Override
+    public void flush() throws IOException {
+        if (mFailure != null) throw mFailure;
+    }
+
+    /**
+     * Complete the file, preallocated tail which is not written is cut
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mFailure != null) throw mFailure;
+        if (mDiscard) return;
+        RandomAccessFile out = open();
+        if (out.length() > mPosition) {
+            out.setLength(mPosition);
+        }
+        out.close();
+        mOut = null;
+        mDiscard = true;
+    }
+
+    private RandomAccessFile open() throws IOException {
+        if (mOut == null) {
+            long start = mFile.exists() ? Math.min(mOffset, mFile.length()) : 0;
+            if (mDigest != null) {
+                mDigest.reset();
+                if (start > 0) {
+                    Checksum.update(mDigest, mFile, start);
+                }
+            }
+            mOut = new RandomAccessFile(mFile, "rw");
+            if (start == 0) {
+                mOut.setLength(0);
+            }
+            if (mLength > mOut.length()) {
+                mOut.setLength(mLength);
+            }
+            mOut.seek(start);
+            mPosition = start;
+            mCheckpoint = start;
+        }
+        return mOut;
+    }
+
+    private void written(int count, long nanos) {
+        mPosition += count;
+        if (mMetrics != null) {
+            mMetrics.received(count, nanos);
+        }
+        if (mRecord != null && mPosition - mCheckpoint >= ResumeRecord.CHECKPOINT_BYTES) {
+            mCheckpoint = mPosition;
+            mRecord.checkpoint(mOut, mFile, mPosition);
+        }
+    }
+
+}
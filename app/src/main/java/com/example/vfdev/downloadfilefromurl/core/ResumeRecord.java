@@ -0,0 +1,224 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Sidecar record of a partial download, stored next to the target as '<target>.resume'.
+ * It keeps the validators of the remote resource (ETag, Last-Modified), so the download
+ * can be continued with Range/If-Range after a cancel, a failure or a process restart.
+ * If the resource has changed, the server answers If-Range with the full body and
+ * the download restarts from scratch.
+ * Targets are preallocated to their final length, so the record also keeps the number of
+ * written bytes : it is saved every CHECKPOINT_BYTES and when the download is stopped.
+ * Data of the target is synced before the record which counts it, and the record replaces
+ * the previous one atomically (temporary file and rename), so a kill never leaves a record
+ * ahead of the data or a torn record
+ */
+class ResumeRecord {
+
+    static final String SUFFIX = ".resume";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    // Written bytes are saved at least this often, so a killed download loses less
+    static final long CHECKPOINT_BYTES = 1024 * 1024;
+
+    String url;
+    long offset;
+    long length = -1;
+    // Bytes of the target which are downloaded, -1 if the target is not preallocated
+    long written = -1;
+    String etag;
+    String lastModified;
+
+    ResumeRecord(String url) {
+        this.url = url;
+    }
+
+    /**
+     * Load the record of a partial download of one of urls into target.
+     * Stale records (other url, missing target, no validator) are removed
+     * @param urls mirrors of the file, the record may come from any of them
+     * @return record or null if the download can not be resumed
+     */
+    static ResumeRecord load(File target, String... urls) {
+        File f = fileFor(target);
+        if (!f.exists()) return null;
+
+        ResumeRecord r = read(f);
+        // Known length means a preallocated target : its written bytes are required
+        if (r == null || !Arrays.asList(urls).contains(r.url)
+                || !target.exists()
+                || r.validator() == null
+                || (r.length > 0 && r.written < 0)) {
+            f.delete();
+            return null;
+        }
+        r.offset = target.length();
+        if (r.written >= 0 && r.written < r.offset) {
+            // Tail of the preallocated target is not downloaded yet
+            r.offset = r.written;
+        }
+        if (r.offset == 0 || (r.length > 0 && r.offset >= r.length)) {
+            f.delete();
+            return null;
+        }
+        return r;
+    }
+
+    static void delete(File target) {
+        File f = fileFor(target);
+        if (f.exists()) {
+            f.delete();
+        }
+        // Left by a save which was interrupted before the rename
+        new File(f.getAbsolutePath() + TMP_SUFFIX).delete();
+    }
+
+    static File fileFor(File target) {
+        return new File(target.getAbsolutePath() + SUFFIX);
+    }
+
+    /**
+     * Validator for If-Range header : strong ETag or Last-Modified date
+     */
+    String validator() {
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return lastModified;
+    }
+
+    /**
+     * Update validators and total length from response headers
+     * @param contentLength value of Content-Length header
+     * @param contentRange value of Content-Range header, null for full responses
+     */
+    void update(String etag, String lastModified, String contentLength, String contentRange) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        length = -1;
+        if (contentRange != null) {
+            int i = contentRange.lastIndexOf('/');
+            if (i >= 0) {
+                length = parseLong(contentRange.substring(i + 1));
+            }
+        } else if (contentLength != null) {
+            length = parseLong(contentLength);
+        }
+    }
+
+    boolean save(File target) {
+        Properties p = new Properties();
+        p.setProperty("url", url);
+        p.setProperty("offset", String.valueOf(offset));
+        p.setProperty("length", String.valueOf(length));
+        p.setProperty("written", String.valueOf(written));
+        if (etag != null) p.setProperty("etag", etag);
+        if (lastModified != null) p.setProperty("lastModified", lastModified);
+
+        File file = fileFor(target);
+        File tmp = new File(file.getAbsolutePath() + TMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            p.store(out, null);
+            out.getFD().sync();
+        } catch (IOException e) {
+            close(out);
+            tmp.delete();
+            return false;
+        }
+        close(out);
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Save the written bytes of the open target, its data is synced first
+     */
+    boolean checkpoint(RandomAccessFile file, File target, long written) {
+        try {
+            file.getFD().sync();
+        } catch (IOException e) {
+            return false;
+        }
+        this.written = written;
+        return save(target);
+    }
+
+    /**
+     * Save the point where a stopped download continues. Preallocated target is cut
+     * to the written bytes, so its tail is not taken for downloaded data
+     */
+    boolean saveStopped(File target, long written) {
+        RandomAccessFile f = null;
+        try {
+            f = new RandomAccessFile(target, "rw");
+            if (f.length() > written) {
+                f.setLength(written);
+            }
+            f.getFD().sync();
+        } catch (IOException e) {
+            return false;
+        } finally {
+            close(f);
+        }
+        offset = written;
+        this.written = written;
+        return save(target);
+    }
+
+    // ----- Private methods
+
+    private static ResumeRecord read(File f) {
+        Properties p = new Properties();
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(f);
+            p.load(in);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            close(in);
+        }
+        String url = p.getProperty("url");
+        if (url == null) return null;
+
+        ResumeRecord r = new ResumeRecord(url);
+        r.offset = parseLong(p.getProperty("offset"));
+        r.length = parseLong(p.getProperty("length"));
+        r.written = parseLong(p.getProperty("written"));
+        r.etag = p.getProperty("etag");
+        r.lastModified = p.getProperty("lastModified");
+        return r;
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void close(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+}
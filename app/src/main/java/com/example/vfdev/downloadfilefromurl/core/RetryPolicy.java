@@ -0,0 +1,152 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import com.koushikdutta.async.HostnameResolutionException;
+import com.koushikdutta.async.http.ConnectionClosedException;
+import com.koushikdutta.async.http.ConnectionFailedException;
+import com.koushikdutta.async.http.filter.ChunkedDataException;
+import com.koushikdutta.async.http.filter.PrematureDataEndException;
+
+import java.io.EOFException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Retry policy of failed downloads :
+ * 1) Errors are classified : timeouts, refused or reset connections, failed DNS lookups,
+ *    truncated bodies and HTTP 408, 429, 5xx are transient. Other errors are permanent
+ * 2) Attempt n waits a random delay in [0, min(maxDelay, baseDelay * 2^n)] (full jitter),
+ *    so clients failed by the same outage do not come back together
+ * 3) Retry-After of the server is honored, the download fails if it is longer than maxDelay
+ * Engines resume the next attempt from the bytes already received
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_RETRIES = 5;
+    public static final long DEFAULT_BASE_DELAY = 1000;
+    public static final long DEFAULT_MAX_DELAY = 60 * 1000;
+
+    public static final RetryPolicy DEFAULT = new RetryPolicy(DEFAULT_MAX_RETRIES,
+            DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+    public static final RetryPolicy NONE = new RetryPolicy(0, 0, 0);
+
+    private static final Random mRandom = new Random();
+
+    private final int mMaxRetries;
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+
+    /**
+     * @param maxRetries number of attempts after the first one, 0 disables retries
+     * @param baseDelayMillis upper bound of the delay before the first retry
+     * @param maxDelayMillis upper bound of all delays
+     */
+    public RetryPolicy(int maxRetries, long baseDelayMillis, long maxDelayMillis) {
+        mMaxRetries = Math.max(0, maxRetries);
+        mBaseDelay = Math.max(0, baseDelayMillis);
+        mMaxDelay = Math.max(mBaseDelay, maxDelayMillis);
+    }
+
+    // ----- Public methods
+
+    public int getMaxRetries() {
+        return mMaxRetries;
+    }
+
+    public long getBaseDelay() {
+        return mBaseDelay;
+    }
+
+    public long getMaxDelay() {
+        return mMaxDelay;
+    }
+
+    /**
+     * @param code HTTP code of the response, -1 if no response was received
+     * @param e exception of the transfer, may be null
+     * @return true if the same request may succeed later
+     */
+    public boolean isTransient(int code, Throwable e) {
+        if (code >= 400) {
+            return code == 408 || code == 429 || code / 100 == 5;
+        }
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof InterruptedIOException       // socket timeouts
+                    || t instanceof TimeoutException
+                    || t instanceof ConnectException
+                    || t instanceof NoRouteToHostException
+                    || t instanceof UnknownHostException
+                    || t instanceof SocketException        // connection reset
+                    || t instanceof EOFException
+                    || t instanceof HostnameResolutionException
+                    || t instanceof ConnectionClosedException
+                    || t instanceof ConnectionFailedException
+                    || t instanceof PrematureDataEndException
+                    || t instanceof ChunkedDataException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param retries number of retries already made
+     * @param retryAfterMillis delay asked by the server, -1 if none
+     * @return delay before the next attempt, -1 if the download should fail
+     */
+    public long delay(int retries, long retryAfterMillis) {
+        if (retries >= mMaxRetries) return -1;
+        if (retryAfterMillis > mMaxDelay) return -1;
+        long bound = mBaseDelay << Math.min(retries, 30);
+        if (bound <= 0 || bound > mMaxDelay) {
+            bound = mMaxDelay;
+        }
+        long delay;
+        synchronized (mRandom) {
+            delay = (long) (mRandom.nextDouble() * bound);
+        }
+        return Math.max(delay, retryAfterMillis);
+    }
+
+    /**
+     * @return delay before the next attempt if the error is transient, -1 if the download should fail
+     */
+    public long delay(int retries, int code, Throwable e, long retryAfterMillis) {
+        return isTransient(code, e) ? delay(retries, retryAfterMillis) : -1;
+    }
+
+    /**
+     * @param value Retry-After header : delay in seconds or HTTP date
+     * @return delay in milliseconds, -1 if the header is missing or malformed
+     */
+    public static long parseRetryAfter(String value) {
+        if (value == null) return -1;
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            // HTTP date
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return Math.max(0, format.parse(value).getTime() - System.currentTimeMillis());
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{" + mMaxRetries + " retries, " + mBaseDelay + "-" + mMaxDelay + " ms}";
+    }
+
+}
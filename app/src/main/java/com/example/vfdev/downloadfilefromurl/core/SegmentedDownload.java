@@ -0,0 +1,827 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.koushikdutta.async.future.Future;
+import com.koushikdutta.async.future.FutureCallback;
+import com.koushikdutta.async.http.Headers;
+import com.koushikdutta.ion.HeadersCallback;
+import com.koushikdutta.ion.HeadersResponse;
+import com.koushikdutta.ion.Ion;
+import com.koushikdutta.ion.ProgressCallback;
+import com.koushikdutta.ion.Response;
+import com.koushikdutta.ion.builder.Builders;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Segmented download with Ion :
+ * 1) Probe the resource with HEAD request : Content-Length and Accept-Ranges
+ * 2) Target file is preallocated to Content-Length, the listener may reject the length first
+ * 3) Fetch N byte ranges in parallel, each one is written at its offset in the target file
+ * 4) Segment failed with a transient error is requested again from its last written byte,
+ *    after the delay of the retry policy. Other segments are not interrupted
+ * 5) With a ConnectionController the number of connections follows the throughput :
+ *    a running segment is split to open one more connection, a connection is parked
+ *    to close one. Rest of a parked segment is requested when a connection is free
+ * 6) With several mirrors, all of them are probed. Mirrors whose length or ETag differ from
+ *    the first usable mirror are not used. Segments are spread over the mirrors by their
+ *    throughput, segments of a failed or slow mirror continue on the best other mirror
+ * If the server does not support ranges, Listener.onFallback() is called and the caller
+ * should download the file with a single stream
+ */
+class SegmentedDownload {
+
+    // Segments smaller than this are not worth an extra connection
+    static final long MIN_SEGMENT_SIZE = 256 * 1024;
+    // Mirrors which do not answer the probe in time are not used
+    static final int PROBE_TIMEOUT = 10 * 1000;
+    // Mirror is not used after this number of failed requests
+    static final int MAX_MIRROR_FAILURES = 3;
+    // Mirror is slow if its throughput per connection is below this share of the best mirror
+    static final double SLOW_MIRROR_RATIO = 0.25;
+    // Sampling interval of the throughput of mirrors without a controller
+    static final long SAMPLE_INTERVAL = 2000;
+
+    private final Ion ion;
+    private final Context mContext;
+    private final _Mirror[] mMirrors;
+    private final File mTarget;
+    private final int mSegments;
+    private final ConnectionController mController;
+    private final RetryPolicy mRetryPolicy;
+    private final DownloadMetrics mMetrics;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final ArrayList<Future<Response<String>>> mProbes = new ArrayList<Future<Response<String>>>();
+    private int mPendingProbes;
+    // Segments are added by splits on the main thread and read by the transfer threads
+    private final ArrayList<_Segment> mParts = new ArrayList<_Segment>();
+    private int mRemaining;
+    private int mRetries;
+    private long mLength;
+    private long mStartTime;
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    private String mEtag;
+    private String mLastModified;
+    private Checksum.Prefix mDigest;
+
+    // Throughput sample of the controller and of the mirrors
+    private long mSampleBytes;
+    private long mSampleTime;
+    private int mSampleErrors;
+    private int mReportedLevel = -1;
+    private int mReportedReason = -1;
+
+    private volatile boolean mFinished = false;
+
+    /**
+     * @param urls mirrors of the same file, in order of preference
+     * @param segments number of segments, it is the maximum of the controller if there is one
+     * @param controller chooses the number of connections at runtime, null for fixed segments
+     */
+    SegmentedDownload(Ion ion, Context context, String[] urls, File target, int segments,
+                      ConnectionController controller, RetryPolicy retryPolicy,
+                      DownloadMetrics metrics, Listener listener) {
+        this.ion = ion;
+        mContext = context;
+        mMirrors = new _Mirror[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            mMirrors[i] = new _Mirror(urls[i]);
+        }
+        mTarget = target;
+        mSegments = segments;
+        mController = controller;
+        mRetryPolicy = retryPolicy;
+        mMetrics = metrics;
+        mListener = listener;
+    }
+
+    /**
+     * Hash the file while the segments are written, called before start()
+     * @return digest to verify when the download is completed
+     */
+    Checksum.Prefix digest(Checksum checksum) {
+        mDigest = checksum.prefix(mTarget, new Checksum.Source() {
+            @Override
+            public long writtenFrom(long position) {
+                return SegmentedDownload.this.writtenFrom(position);
+            }
+        });
+        return mDigest;
+    }
+
+    void start() {
+        mStartTime = SystemClock.elapsedRealtime();
+        mPendingProbes = mMirrors.length;
+        for (final _Mirror mirror : mMirrors) {
+            mProbes.add(ion.build(mContext)
+                    .load("HEAD", mirror.url)
+                    .setTimeout(PROBE_TIMEOUT)
+                    .asString()
+                    .withResponse()
+                    .setCallback(new FutureCallback<Response<String>>() {
+                        @Override
+                        public void onCompleted(Exception e, Response<String> response) {
+                            onProbed(mirror, e, response);
+                        }
+                    }));
+        }
+    }
+
+    boolean cancel() {
+        if (mFinished) return false;
+        for (Future<Response<String>> probe : mProbes) {
+            probe.cancel();
+        }
+        cancelSegments();
+        finish();
+        mListener.onCanceled();
+        return true;
+    }
+
+    /**
+     * @return number of segments, including the segments created by splits
+     */
+    synchronized int segments() {
+        return mParts.size();
+    }
+
+    /**
+     * @return number of mirrors which served the file
+     */
+    int mirrors() {
+        int count = 0;
+        for (_Mirror mirror : mMirrors) {
+            if (mirror.used) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return suffix of report messages with the number of segment retries
+     */
+    String retries() {
+        return mRetries > 0 ? ", " + mRetries + " retries" : "";
+    }
+
+    /**
+     * @return validators of the resource from the probe request
+     */
+    String etag() {
+        return mEtag;
+    }
+
+    String lastModified() {
+        return mLastModified;
+    }
+
+    // ----- Private methods
+
+    private void onProbed(_Mirror mirror, Exception e, Response<String> response) {
+        if (mFinished) return;
+        mPendingProbes--;
+
+        if (e != null || response == null || response.getHeaders() == null) {
+            mirror.problem = "Probe request failed";
+        } else if (response.getHeaders().code() != 200) {
+            mirror.problem = "Probe request returned code " + response.getHeaders().code();
+        } else {
+            mirror.available = true;
+            Headers headers = response.getHeaders().getHeaders();
+            String acceptRanges = headers.get("Accept-Ranges");
+            mirror.etag = headers.get("ETag");
+            mirror.lastModified = headers.get("Last-Modified");
+            mirror.length = parseLength(headers.get("Content-Length"));
+            if (acceptRanges == null || !acceptRanges.trim().equalsIgnoreCase("bytes")) {
+                mirror.problem = "Server does not accept byte ranges";
+            } else if (mirror.length <= 0) {
+                mirror.problem = "Content length is unknown";
+            } else {
+                mirror.usable = true;
+            }
+        }
+        if (mPendingProbes == 0) {
+            onProbesCompleted();
+        }
+    }
+
+    /**
+     * Choose the mirrors which serve the same content as the first usable one and start
+     */
+    private void onProbesCompleted() {
+        _Mirror reference = null;
+        for (_Mirror mirror : mMirrors) {
+            if (mirror.usable) {
+                reference = mirror;
+                break;
+            }
+        }
+        if (reference == null) {
+            fallback(fallbackUrl(), mMirrors[0].problem);
+            return;
+        }
+        for (_Mirror mirror : mMirrors) {
+            if (!mirror.usable || mirror == reference) continue;
+            if (mirror.length != reference.length) {
+                disable(mirror, "Length " + mirror.length + " differs from " + reference.length);
+            } else if (mirror.etag != null && reference.etag != null
+                    && !mirror.etag.equals(reference.etag)) {
+                disable(mirror, "ETag " + mirror.etag + " differs from " + reference.etag);
+            }
+        }
+        mEtag = reference.etag;
+        mLastModified = reference.lastModified;
+        long length = reference.length;
+        int segments = mController != null ? mController.level() : mSegments;
+        int count = (int) Math.min(Math.max(segments, usableMirrors()), length / MIN_SEGMENT_SIZE);
+        if (count < 2) {
+            fallback(reference.url, "File is too small to be segmented");
+            return;
+        }
+        try {
+            mListener.onLength(length);
+            startSegments(length, count);
+        } catch (IOException ex) {
+            cancelSegments();
+            finish();
+            mListener.onFailed(ex);
+        }
+    }
+
+    /**
+     * @return first mirror which answered the probe, the first mirror if none did
+     */
+    private String fallbackUrl() {
+        for (_Mirror mirror : mMirrors) {
+            if (mirror.available) return mirror.url;
+        }
+        return mMirrors[0].url;
+    }
+
+    private void startSegments(long length, int count) throws IOException {
+        mLength = length;
+        mFile = new RandomAccessFile(mTarget, "rw");
+        mFile.setLength(length);
+        mChannel = mFile.getChannel();
+
+        mRemaining = count;
+        long size = length / count;
+        for (int i = 0; i < count; i++) {
+            long start = i * size;
+            long end = (i == count - 1) ? length - 1 : start + size - 1;
+            _Segment part = new _Segment(start, end);
+            synchronized (this) {
+                mParts.add(part);
+            }
+            part.mirror = bestMirror(null);
+            startSegment(part);
+        }
+        if (mController != null) {
+            reportConnections(count);
+        }
+        if (mController != null || mMirrors.length > 1) {
+            mSampleTime = SystemClock.elapsedRealtime();
+            mHandler.postDelayed(mControl, interval());
+        }
+    }
+
+    /**
+     * Request the rest of the segment from its mirror, from its first byte which is not written
+     */
+    private void startSegment(final _Segment part) {
+        final int request = ++part.request;
+        final long from = part.position();
+        final RangeOutputStream out = new RangeOutputStream(mChannel, from,
+                part.end - from + 1, mMetrics, mDigest);
+        final _Mirror mirror = part.mirror;
+        mirror.used = true;
+        part.out = out;
+        part.sampled = from;
+        part.code = -1;
+        part.retryAfter = -1;
+        part.mismatch = false;
+        Builders.Any.B lb = ion.build(mContext)
+                .load(mirror.url)
+                .setHeader("Range", "bytes=" + from + "-" + part.end);
+        // Ranges must belong to the same version of the resource as the probe
+        String validator = mirror.etag != null ? mirror.etag : mirror.lastModified;
+        if (validator != null) {
+            lb = lb.setHeader("If-Range", validator);
+        }
+        part.future = lb.onHeaders(new HeadersCallback() {
+                    @Override
+                    public void onHeaders(HeadersResponse headers) {
+                        part.code = headers.code();
+                        if (part.code == 206) {
+                            long total = parseTotal(headers.getHeaders().get("Content-Range"));
+                            if (total < 0 || total == mLength) return;
+                            part.mismatch = true;
+                        } else if (part.code / 100 != 2) {
+                            part.retryAfter = RetryPolicy.parseRetryAfter(
+                                    headers.getHeaders().get("Retry-After"));
+                        }
+                        // Full body, error body or other content must not be written into the range
+                        out.discard();
+                    }
+                })
+                .progress(new ProgressCallback() {
+                    @Override
+                    public void onProgress(long downloaded, long total) {
+                        onSegmentProgress();
+                    }
+                })
+                .write(out, true)
+                .setCallback(new FutureCallback<RangeOutputStream>() {
+                    @Override
+                    public void onCompleted(Exception e, RangeOutputStream result) {
+                        // Callbacks of parked, moved or restarted requests are ignored
+                        if (part.request == request) {
+                            onSegmentCompleted(part, e);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Called on the transfer threads
+     */
+    private synchronized void onSegmentProgress() {
+        if (mFinished) return;
+        mListener.onProgress(written(), mLength);
+    }
+
+    /**
+     * @return number of bytes written by all segments
+     */
+    private synchronized long written() {
+        long sum = 0;
+        for (_Segment part : mParts) {
+            sum += part.position() - part.start;
+        }
+        return sum;
+    }
+
+    /**
+     * Called by the digest on the transfer threads and its background thread
+     * @return end (exclusive) of the bytes written without a gap from the position
+     */
+    private synchronized long writtenFrom(long position) {
+        boolean advanced = true;
+        while (advanced) {
+            advanced = false;
+            for (_Segment part : mParts) {
+                long written = part.position();
+                if (part.start <= position && position <= part.end && written > position) {
+                    position = Math.min(written, part.end + 1);
+                    advanced = true;
+                }
+            }
+        }
+        return position;
+    }
+
+    private void onSegmentCompleted(final _Segment part, Exception e) {
+        if (mFinished) return;
+
+        if (e != null && part.code == 206 && !part.mismatch && part.position() > part.end) {
+            // Connection failed after the last byte of the range, or the range was split
+            e = null;
+        }
+        if (e == null && part.mismatch) {
+            e = new IOException("Mirror serves a file of another length");
+        } else if (e == null && part.code != 206) {
+            e = new IOException("Server returned code " + part.code + " for a range");
+        }
+        if (e != null) {
+            onSegmentFailed(part, e);
+            return;
+        }
+        complete(part);
+        rebalance();
+    }
+
+    /**
+     * Continue the segment on another mirror, or on the same one after the retry delay
+     */
+    private void onSegmentFailed(final _Segment part, Exception e) {
+        _Mirror mirror = part.mirror;
+        boolean rangeIgnored = part.code / 100 == 2 && part.code != 206;
+        if (rangeIgnored && bestMirror(mirror) == null) {
+            cancelSegments();
+            fallback(mirror.url, "Server ignored range request");
+            return;
+        }
+        mSampleErrors++;
+        mirror.failures++;
+        if (rangeIgnored || part.mismatch || !mRetryPolicy.isTransient(part.code, e)) {
+            disable(mirror, e.getMessage());
+        } else if (mMirrors.length > 1 && mirror.failures >= MAX_MIRROR_FAILURES) {
+            disable(mirror, mirror.failures + " failed requests, last : " + e.getMessage());
+        }
+        _Mirror other = bestMirror(mirror);
+        if (other != null) {
+            mRetries++;
+            mMetrics.retried();
+            Log.i("SegmentedDownload", "Segment from " + part.position() + " continues on "
+                    + other.url + " : " + e.getMessage());
+            part.mirror = other;
+            startSegment(part);
+            return;
+        }
+        long delay = mirror.usable
+                ? mRetryPolicy.delay(part.attempts, part.code, e, part.retryAfter) : -1;
+        if (delay >= 0) {
+            part.attempts++;
+            mRetries++;
+            mMetrics.retried();
+            Log.i("SegmentedDownload", "Retry segment from " + part.position() + " in "
+                    + delay + " ms : " + e.getMessage());
+            final int request = part.request;
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    // Segment may have been parked or moved while it was waiting
+                    if (!mFinished && part.request == request) {
+                        startSegment(part);
+                    }
+                }
+            }, delay);
+            return;
+        }
+        cancelSegments();
+        finish();
+        mListener.onFailed(e);
+    }
+
+    private void complete(_Segment part) {
+        part.done = true;
+        mRemaining--;
+        if (mRemaining == 0) {
+            finish();
+            mListener.onCompleted(mLength, SystemClock.elapsedRealtime() - mStartTime);
+        }
+    }
+
+    /**
+     * Sample the throughput, move work away from slow mirrors and apply the level of the controller
+     */
+    private final Runnable mControl = new Runnable() {
+        @Override
+        public void run() {
+            if (mFinished) return;
+            long now = SystemClock.elapsedRealtime();
+            long millis = now - mSampleTime;
+            long written = written();
+            sampleMirrors(millis);
+            if (mController != null) {
+                mController.onSample(written - mSampleBytes, millis, mSampleErrors);
+            }
+            mSampleBytes = written;
+            mSampleTime = now;
+            mSampleErrors = 0;
+            balanceMirrors();
+            rebalance();
+            mHandler.postDelayed(this, interval());
+        }
+    };
+
+    private long interval() {
+        return mController != null ? ConnectionController.INTERVAL : SAMPLE_INTERVAL;
+    }
+
+    /**
+     * Update the throughput per connection of the mirrors, smoothed over the samples
+     */
+    private void sampleMirrors(long millis) {
+        if (millis <= 0) return;
+        for (_Mirror mirror : mMirrors) {
+            mirror.sampleBytes = 0;
+        }
+        for (_Segment part : mParts) {
+            if (part.done || part.parked) continue;
+            long position = part.position();
+            part.mirror.sampleBytes += position - part.sampled;
+            part.sampled = position;
+        }
+        for (_Mirror mirror : mMirrors) {
+            int connections = connections(mirror);
+            if (!mirror.usable || connections == 0) continue;
+            long rate = mirror.sampleBytes * 1000 / millis / connections;
+            mirror.rate = mirror.rate < 0 ? rate : (mirror.rate + rate) / 2;
+        }
+    }
+
+    /**
+     * Move the largest segment of each slow mirror to the fastest mirror
+     */
+    private void balanceMirrors() {
+        _Mirror best = null;
+        for (_Mirror mirror : mMirrors) {
+            if (mirror.usable && mirror.rate >= 0 && (best == null || mirror.rate > best.rate)) {
+                best = mirror;
+            }
+        }
+        if (best == null || best.rate == 0) return;
+        for (_Mirror mirror : mMirrors) {
+            if (!mirror.usable || mirror == best || mirror.rate < 0
+                    || mirror.rate >= best.rate * SLOW_MIRROR_RATIO) continue;
+            _Segment largest = null;
+            for (_Segment part : mParts) {
+                if (part.done || part.parked || part.mirror != mirror) continue;
+                if (largest == null || part.end - part.position() > largest.end - largest.position()) {
+                    largest = part;
+                }
+            }
+            if (largest == null || largest.end - largest.position() < MIN_SEGMENT_SIZE) continue;
+            Log.i("SegmentedDownload", "Mirror " + mirror.url + " is slow (" + mirror.rate
+                    + " B/s), segment from " + largest.position() + " moves to " + best.url);
+            park(largest);
+            largest.parked = false;
+            largest.mirror = best;
+            startSegment(largest);
+        }
+    }
+
+    /**
+     * Open or close connections until their number is the level of the controller.
+     * Parked segments are resumed first, then the largest running segment is split
+     */
+    private void rebalance() {
+        if (mController == null || mFinished) return;
+        int level = mController.level();
+        int active = 0;
+        for (_Segment part : mParts) {
+            if (!part.done && !part.parked) active++;
+        }
+        while (active < level) {
+            _Segment next = parked();
+            if (next != null) {
+                next.parked = false;
+                if (next.position() > next.end) {
+                    complete(next);
+                    if (mFinished) return;
+                    continue;
+                }
+                if (!next.mirror.usable) {
+                    next.mirror = bestMirror(null);
+                }
+                startSegment(next);
+            } else if (!split()) {
+                break;
+            }
+            active++;
+        }
+        while (active > level && active > ConnectionController.MIN_LEVEL) {
+            park(smallest());
+            active--;
+        }
+        reportConnections(active);
+    }
+
+    private _Segment parked() {
+        for (_Segment part : mParts) {
+            if (part.parked && !part.done) return part;
+        }
+        return null;
+    }
+
+    /**
+     * @return running segment with the least bytes to download
+     */
+    private _Segment smallest() {
+        _Segment smallest = null;
+        for (_Segment part : mParts) {
+            if (part.done || part.parked) continue;
+            if (smallest == null || part.end - part.position() < smallest.end - smallest.position()) {
+                smallest = part;
+            }
+        }
+        return smallest;
+    }
+
+    /**
+     * Give the second half of the largest running segment to a new connection
+     * @return false if no segment is large enough
+     */
+    private boolean split() {
+        _Segment largest = null;
+        for (_Segment part : mParts) {
+            if (part.done || part.parked || part.out == null) continue;
+            if (largest == null || part.end - part.position() > largest.end - largest.position()) {
+                largest = part;
+            }
+        }
+        if (largest == null) return false;
+        long position = largest.position();
+        long rest = largest.end - position + 1;
+        if (rest < 2 * MIN_SEGMENT_SIZE) return false;
+        long middle = position + rest / 2;
+        if (!largest.out.limit(middle)) return false;
+        _Segment tail = new _Segment(middle, largest.end);
+        largest.end = middle - 1;
+        synchronized (this) {
+            mParts.add(tail);
+        }
+        mRemaining++;
+        tail.mirror = bestMirror(null);
+        startSegment(tail);
+        return true;
+    }
+
+    /**
+     * Close the connection of the segment, the rest of the segment is requested later
+     */
+    private void park(_Segment part) {
+        part.parked = true;
+        part.request++;
+        if (part.future != null && !part.future.isDone()) {
+            part.future.cancel();
+        }
+    }
+
+    /**
+     * @param avoid mirror which should not be chosen, may be null
+     * @return usable mirror with the best throughput per connection if one more connection
+     *         is opened, mirrors which were not measured yet first. Null if there is none
+     */
+    private _Mirror bestMirror(_Mirror avoid) {
+        _Mirror best = null;
+        long bestScore = -1;
+        for (_Mirror mirror : mMirrors) {
+            if (!mirror.usable || mirror == avoid) continue;
+            long rate = mirror.rate < 0 ? Long.MAX_VALUE / 2 : mirror.rate;
+            long score = rate / (connections(mirror) + 1);
+            if (score > bestScore) {
+                best = mirror;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private int usableMirrors() {
+        int count = 0;
+        for (_Mirror mirror : mMirrors) {
+            if (mirror.usable) count++;
+        }
+        return count;
+    }
+
+    private int connections(_Mirror mirror) {
+        int count = 0;
+        for (_Segment part : mParts) {
+            if (!part.done && !part.parked && part.mirror == mirror) count++;
+        }
+        return count;
+    }
+
+    private void disable(_Mirror mirror, String reason) {
+        if (!mirror.usable) return;
+        mirror.usable = false;
+        mirror.problem = reason;
+        Log.w("SegmentedDownload", "Mirror " + mirror.url + " is not used : " + reason);
+    }
+
+    private void reportConnections(int connections) {
+        int reason = mController.reason();
+        if (connections == mReportedLevel && reason == mReportedReason) return;
+        mReportedLevel = connections;
+        mReportedReason = reason;
+        mListener.onConnections(connections, reason);
+    }
+
+    private void fallback(String url, String reason) {
+        finish();
+        mListener.onFallback(url, reason);
+    }
+
+    private void cancelSegments() {
+        for (_Segment part : mParts) {
+            if (part.future != null && !part.future.isDone()) {
+                part.future.cancel();
+            }
+        }
+    }
+
+    private void finish() {
+        mFinished = true;
+        mHandler.removeCallbacks(mControl);
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+            mFile = null;
+        }
+    }
+
+    private static long parseLength(String value) {
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param value Content-Range header : 'bytes first-last/total'
+     * @return total length, -1 if it is unknown
+     */
+    private static long parseTotal(String value) {
+        if (value == null) return -1;
+        int slash = value.lastIndexOf('/');
+        return slash >= 0 ? parseLength(value.substring(slash + 1)) : -1;
+    }
+
+    // ------ Mirror of the file
+
+    private static class _Mirror {
+        final String url;
+        String etag;
+        String lastModified;
+        long length = -1;
+        // Probe was answered
+        boolean available = false;
+        boolean usable = false;
+        boolean used = false;
+        String problem;
+        int failures = 0;
+        long sampleBytes;
+        // Throughput per connection, -1 until it is measured
+        long rate = -1;
+
+        _Mirror(String url) {
+            this.url = url;
+        }
+    }
+
+    // ------ Byte range of the file, requested again after transient errors or parking
+
+    private static class _Segment {
+        final long start;
+        // Moved back when the segment is split
+        volatile long end;
+        volatile RangeOutputStream out;
+        volatile int code = -1;
+        volatile long retryAfter = -1;
+        volatile boolean mismatch = false;
+        _Mirror mirror;
+        Future<?> future;
+        int attempts = 0;
+        // Incremented for every request, callbacks of older requests are ignored
+        volatile int request = 0;
+        boolean parked = false;
+        boolean done = false;
+        // Position at the last throughput sample
+        long sampled;
+
+        _Segment(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * @return first byte of the segment which is not written
+         */
+        long position() {
+            return out != null ? out.position() : start;
+        }
+    }
+
+    // ------ Listener
+
+    interface Listener {
+        /**
+         * Segmented download is not possible, the file should be downloaded from the url
+         */
+        void onFallback(String url, String reason);
+        void onProgress(long downloaded, long total);
+        /**
+         * Called when the number of connections or its reason changes, with a controller only
+         * @param reason ConnectionController.REASON_*
+         */
+        void onConnections(int connections, int reason);
+        /**
+         * Called with the size of the file before it is allocated
+         * @throws IOException to fail the download, e.g. if there is not enough space
+         */
+        void onLength(long length) throws IOException;
+        void onCompleted(long length, long elapsedMillis);
+        void onCanceled();
+        void onFailed(Exception e);
+    }
+
+}
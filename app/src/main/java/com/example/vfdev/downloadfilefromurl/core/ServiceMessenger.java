@@ -0,0 +1,243 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Messenger interface of FileDownloadService, returned by onBind() :
+ * 1) MSG_ENQUEUE and MSG_CANCEL take lists of urls, a batch is one message
+ * 2) MSG_QUERY is answered with MSG_SNAPSHOT of the tasks of the queue (queued, running and
+ *    recently finished) to msg.replyTo
+ * 3) MSG_SUBSCRIBE registers msg.replyTo, it receives a snapshot and then MSG_PROGRESS
+ *    with the tasks changed since the last message, at most every PROGRESS_INTERVAL
+ * Task lists are parallel arrays of the bundle : KEY_URLS, KEY_STATES, KEY_DOWNLOADED,
+ * KEY_TOTALS, KEY_MESSAGES. Lists are sent in pages of at most PAGE_SIZE tasks, so a message
+ * fits in a binder transaction : KEY_PAGE is the index of the page, KEY_PAGES their number.
+ * Subscribers whose process is dead are removed
+ */
+public class ServiceMessenger {
+
+    private static final String TAG = "ServiceMessenger";
+
+    // Requests of the clients
+    public static final int MSG_ENQUEUE = 1;
+    public static final int MSG_CANCEL = 2;
+    public static final int MSG_QUERY = 3;
+    public static final int MSG_SUBSCRIBE = 4;
+    public static final int MSG_UNSUBSCRIBE = 5;
+    // Messages to the clients
+    public static final int MSG_SNAPSHOT = 101;
+    public static final int MSG_PROGRESS = 102;
+
+    // Keys of the message data
+    public static final String KEY_URLS = "Urls";
+    public static final String KEY_FILENAMES = "Filenames";
+    public static final String KEY_WHERE = "Where";
+    public static final String KEY_PRIORITY = "Priority";
+    public static final String KEY_STATES = "States";
+    public static final String KEY_DOWNLOADED = "Downloaded";
+    public static final String KEY_TOTALS = "Totals";
+    public static final String KEY_MESSAGES = "Messages";
+    public static final String KEY_QUEUED = "Queued";
+    public static final String KEY_ACTIVE = "Active";
+    public static final String KEY_DEFERRED = "Deferred";
+    public static final String KEY_PAGE = "Page";
+    public static final String KEY_PAGES = "Pages";
+
+    public static final long PROGRESS_INTERVAL = 500;
+    public static final int PAGE_SIZE = 500;
+
+    private final DownloadQueue mQueue;
+    private final Commands mCommands;
+    private final Handler mHandler = new Handler(Looper.getMainLooper(), new _IncomingCallback());
+    private final Messenger mMessenger = new Messenger(mHandler);
+    private final ArrayList<Messenger> mSubscribers = new ArrayList<Messenger>();
+    // Tasks changed since the last progress message
+    private final LinkedHashSet<DownloadTask> mChanged = new LinkedHashSet<DownloadTask>();
+
+    ServiceMessenger(DownloadQueue queue, Commands commands) {
+        mQueue = queue;
+        mCommands = commands;
+    }
+
+    // ----- Package methods
+
+    IBinder getBinder() {
+        return mMessenger.getBinder();
+    }
+
+    /**
+     * Called on the main thread when a task is started, progresses or is finished
+     */
+    void onTaskChanged(DownloadTask task) {
+        if (mSubscribers.isEmpty()) return;
+        if (mChanged.isEmpty()) {
+            mHandler.postDelayed(mFlush, PROGRESS_INTERVAL);
+        }
+        mChanged.add(task);
+    }
+
+    void close() {
+        mHandler.removeCallbacks(mFlush);
+        mChanged.clear();
+        mSubscribers.clear();
+    }
+
+    // ----- Private methods
+
+    private void handle(Message msg) {
+        Bundle data = msg.peekData();
+        switch (msg.what) {
+            case MSG_ENQUEUE:
+                String[] urls = data != null ? data.getStringArray(KEY_URLS) : null;
+                if (urls == null) break;
+                String[] names = data.getStringArray(KEY_FILENAMES);
+                ArrayList<String> filenames = new ArrayList<String>();
+                for (int i = 0; i < urls.length; i++) {
+                    filenames.add(names != null && i < names.length ? names[i] : null);
+                }
+                mCommands.enqueue(Arrays.asList(urls), filenames, data.getInt(KEY_WHERE, -1),
+                        data.getInt(KEY_PRIORITY, DownloadScheduler.PRIORITY_NORMAL));
+                break;
+            case MSG_CANCEL:
+                String[] canceled = data != null ? data.getStringArray(KEY_URLS) : null;
+                if (canceled == null) break;
+                for (String url : canceled) {
+                    mCommands.cancel(url);
+                }
+                break;
+            case MSG_QUERY:
+                if (msg.replyTo != null) {
+                    sendTasks(msg.replyTo, MSG_SNAPSHOT, mQueue.getTasks());
+                }
+                break;
+            case MSG_SUBSCRIBE:
+                if (msg.replyTo != null && !mSubscribers.contains(msg.replyTo)) {
+                    mSubscribers.add(msg.replyTo);
+                    // Deltas apply to the state of the snapshot
+                    sendTasks(msg.replyTo, MSG_SNAPSHOT, mQueue.getTasks());
+                }
+                break;
+            case MSG_UNSUBSCRIBE:
+                mSubscribers.remove(msg.replyTo);
+                break;
+            default:
+                Log.w(TAG, "Unknown message : " + msg.what);
+        }
+    }
+
+    /**
+     * Send the tasks in pages, snapshot pages also carry the counters of the queue
+     */
+    private void sendTasks(Messenger client, int what, List<DownloadTask> tasks) {
+        int pages = Math.max(1, (tasks.size() + PAGE_SIZE - 1) / PAGE_SIZE);
+        for (int page = 0; page < pages; page++) {
+            Message m = tasksMessage(what, tasks.subList(page * PAGE_SIZE,
+                    Math.min(tasks.size(), (page + 1) * PAGE_SIZE)));
+            Bundle data = m.getData();
+            data.putInt(KEY_PAGE, page);
+            data.putInt(KEY_PAGES, pages);
+            if (what == MSG_SNAPSHOT) {
+                data.putInt(KEY_QUEUED, mQueue.queued());
+                data.putInt(KEY_ACTIVE, mQueue.active());
+                data.putInt(KEY_DEFERRED, mCommands.deferred());
+            }
+            if (!send(client, m)) return;
+        }
+    }
+
+    private static Message tasksMessage(int what, Collection<DownloadTask> tasks) {
+        int n = tasks.size();
+        String[] urls = new String[n];
+        int[] states = new int[n];
+        long[] downloaded = new long[n];
+        long[] totals = new long[n];
+        String[] messages = new String[n];
+        int i = 0;
+        for (DownloadTask t : tasks) {
+            urls[i] = t.getUrl();
+            states[i] = t.getState();
+            downloaded[i] = t.getDownloaded();
+            totals[i] = t.getTotal();
+            messages[i] = t.getMessage();
+            i++;
+        }
+        Bundle data = new Bundle();
+        data.putStringArray(KEY_URLS, urls);
+        data.putIntArray(KEY_STATES, states);
+        data.putLongArray(KEY_DOWNLOADED, downloaded);
+        data.putLongArray(KEY_TOTALS, totals);
+        data.putStringArray(KEY_MESSAGES, messages);
+        Message m = Message.obtain(null, what);
+        m.setData(data);
+        return m;
+    }
+
+    /**
+     * Send the changed tasks to all subscribers
+     */
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            if (mChanged.isEmpty()) return;
+            ArrayList<DownloadTask> changed = new ArrayList<DownloadTask>(mChanged);
+            mChanged.clear();
+            for (Messenger subscriber : new ArrayList<Messenger>(mSubscribers)) {
+                // Every send needs its own message, a message is recycled after delivery
+                sendTasks(subscriber, MSG_PROGRESS, changed);
+            }
+        }
+    };
+
+    /**
+     * @return false if the client is gone and its subscription is removed
+     */
+    private boolean send(Messenger client, Message m) {
+        try {
+            client.send(m);
+        } catch (TransactionTooLargeException e) {
+            // Client is alive, only this message is lost
+            Log.w(TAG, "Message " + m.what + " is too large for the binder, it is dropped");
+        } catch (RemoteException e) {
+            Log.d(TAG, "Client is gone, remove its subscription");
+            mSubscribers.remove(client);
+            return false;
+        }
+        return true;
+    }
+
+    // ------ Incoming messages
+
+    private class _IncomingCallback implements Handler.Callback {
+        @Override
+        public boolean handleMessage(Message msg) {
+            handle(msg);
+            return true;
+        }
+    }
+
+    // ------ Commands of the service
+
+    interface Commands {
+        void enqueue(List<String> urls, List<String> filenames, int where, int priority);
+        void cancel(String url);
+        /**
+         * @return number of downloads waiting for their constraints
+         */
+        int deferred();
+    }
+
+}
@@ -0,0 +1,82 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Disk space promised to running downloads. A download reserves the bytes it still has to write
+ * as soon as the expected size is known, and it is rejected if the storage can not hold them
+ * together with the reservations of other downloads. Reservations are released when
+ * downloads are finished
+ */
+class SpaceReservations {
+
+    private static SpaceReservations mInstance;
+
+    private final HashMap<Object, _Reservation> mReservations = new HashMap<Object, _Reservation>();
+
+    static synchronized SpaceReservations getInstance() {
+        if (mInstance == null) {
+            mInstance = new SpaceReservations();
+        }
+        return mInstance;
+    }
+
+    /**
+     * Reserve space for a download, previous reservation of the owner is replaced
+     * @param owner download which reserves the space
+     * @param storage directory of the target file
+     * @param bytes number of bytes to write
+     * @param minFree space which should stay free on the storage
+     * @throws InsufficientSpaceException if the bytes do not fit
+     */
+    synchronized void reserve(Object owner, File storage, long bytes, long minFree)
+            throws InsufficientSpaceException {
+        mReservations.remove(owner);
+        if (bytes <= 0 || storage == null) return;
+        long available = storage.getUsableSpace() - reserved(storage);
+        if (available - bytes < minFree) {
+            throw new InsufficientSpaceException("Not enough free space on '"
+                    + storage.getAbsolutePath() + "' : " + bytes + " bytes are needed, "
+                    + Math.max(0, available - minFree) + " are available");
+        }
+        mReservations.put(owner, new _Reservation(storage, bytes));
+    }
+
+    synchronized void release(Object owner) {
+        mReservations.remove(owner);
+    }
+
+    /**
+     * @return bytes reserved on the storage by running downloads
+     */
+    synchronized long reserved(File storage) {
+        long sum = 0;
+        for (_Reservation r : mReservations.values()) {
+            if (r.storage.equals(storage)) {
+                sum += r.bytes;
+            }
+        }
+        return sum;
+    }
+
+    private static class _Reservation {
+        final File storage;
+        final long bytes;
+
+        _Reservation(File storage, long bytes) {
+            this.storage = storage;
+            this.bytes = bytes;
+        }
+    }
+
+    // ------ Exception
+
+    static class InsufficientSpaceException extends IOException {
+        InsufficientSpaceException(String message) {
+            super(message);
+        }
+    }
+
+}
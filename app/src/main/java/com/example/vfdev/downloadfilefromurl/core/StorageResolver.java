@@ -0,0 +1,252 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Environment;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Cached state of download storages, so engines do not probe the file system on every call :
+ * 1) Directory, availability (exists and writable) and usable space of each storage are cached
+ * 2) State is refreshed on a background thread on media mount events and when it is older
+ *    than REFRESH_INTERVAL, callers get the cached state meanwhile
+ * 3) Space reserved by running downloads (SpaceReservations) is subtracted from the cached space
+ * Only the first query of an unknown storage probes it on the calling thread
+ */
+public class StorageResolver {
+
+    private static final String TAG = "StorageResolver";
+
+    public static final int EXTERNAL_PUBLIC = 0;
+    public static final int EXTERNAL_APP = 1;
+    public static final int INTERNAL_APP = 2;
+
+    static final long REFRESH_INTERVAL = 30 * 1000;
+
+    private static StorageResolver mInstance;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "StorageResolver");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final Context mContext;
+    private final File[] mDirs = new File[3];
+    private boolean mResolved = false;
+    private final HashMap<String, _Volume> mVolumes = new HashMap<String, _Volume>();
+    private long mRefreshed;
+    private boolean mRefreshing = false;
+
+    private long mProbes = 0;
+    private long mRefreshes = 0;
+
+    // ----- Public methods
+
+    static public synchronized StorageResolver getInstance(Context context) {
+        if (mInstance == null) {
+            mInstance = new StorageResolver(context.getApplicationContext());
+        }
+        return mInstance;
+    }
+
+    /**
+     * @param where EXTERNAL_PUBLIC, EXTERNAL_APP or INTERNAL_APP
+     * @return directory of the storage or null if it is not mounted
+     */
+    public synchronized File getStorage(int where) {
+        if (where < 0 || where >= mDirs.length) return null;
+        checkRefresh();
+        if (!mResolved) {
+            resolveDirs();
+        }
+        return mDirs[where];
+    }
+
+    /**
+     * @return true if the directory exists and is writable
+     */
+    public synchronized boolean isAvailable(File storage) {
+        if (storage == null) return false;
+        checkRefresh();
+        return volume(storage).available;
+    }
+
+    /**
+     * @return usable space of the storage minus bytes reserved by running downloads
+     */
+    public synchronized long getUsableSpace(File storage) {
+        if (storage == null) return 0;
+        checkRefresh();
+        long reserved = SpaceReservations.getInstance().reserved(storage);
+        return Math.max(0, volume(storage).usable - reserved);
+    }
+
+    /**
+     * @return first storage in order of preference which is available and has minFree bytes,
+     *         null if there is none
+     */
+    public synchronized File getAvailableStorage(int[] order, long minFree) {
+        for (int where : order) {
+            File storage = getStorage(where);
+            if (isAvailable(storage) && getUsableSpace(storage) >= minFree) {
+                return storage;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Probe all known storages again on the background thread
+     */
+    public void refresh() {
+        synchronized (this) {
+            if (mRefreshing) return;
+            mRefreshing = true;
+        }
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File[] dirs = new File[mDirs.length];
+                for (int i = 0; i < dirs.length; i++) {
+                    dirs[i] = resolveDir(i);
+                }
+                ArrayList<File> storages = new ArrayList<File>();
+                synchronized (StorageResolver.this) {
+                    for (_Volume v : mVolumes.values()) {
+                        storages.add(v.dir);
+                    }
+                }
+                for (File dir : dirs) {
+                    if (dir != null) storages.add(dir);
+                }
+                // File system is probed without the lock, queries are not blocked
+                HashMap<String, _Volume> volumes = new HashMap<String, _Volume>();
+                for (File dir : storages) {
+                    volumes.put(dir.getAbsolutePath(), probe(dir));
+                }
+                synchronized (StorageResolver.this) {
+                    System.arraycopy(dirs, 0, mDirs, 0, dirs.length);
+                    mResolved = true;
+                    mVolumes.clear();
+                    mVolumes.putAll(volumes);
+                    mRefreshed = SystemClock.elapsedRealtime();
+                    mRefreshing = false;
+                    mRefreshes++;
+                }
+            }
+        });
+    }
+
+    /**
+     * @return number of storages probed on the calling thread because they were not cached
+     */
+    public synchronized long getProbes() {
+        return mProbes;
+    }
+
+    /**
+     * @return number of background refreshes
+     */
+    public synchronized long getRefreshes() {
+        return mRefreshes;
+    }
+
+    // ----- Private methods
+
+    private StorageResolver(Context context) {
+        mContext = context;
+        mRefreshed = SystemClock.elapsedRealtime();
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_MEDIA_MOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_UNMOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_REMOVED);
+        filter.addAction(Intent.ACTION_MEDIA_BAD_REMOVAL);
+        filter.addAction(Intent.ACTION_MEDIA_EJECT);
+        filter.addDataScheme("file");
+        mContext.registerReceiver(new _MediaReceiver(), filter);
+    }
+
+    /**
+     * Start background refresh if the cached state is too old
+     */
+    private void checkRefresh() {
+        if (SystemClock.elapsedRealtime() - mRefreshed > REFRESH_INTERVAL) {
+            refresh();
+        }
+    }
+
+    private void resolveDirs() {
+        for (int i = 0; i < mDirs.length; i++) {
+            mDirs[i] = resolveDir(i);
+        }
+        mResolved = true;
+    }
+
+    private File resolveDir(int where) {
+        if (where == EXTERNAL_PUBLIC) {
+            return Environment.getExternalStoragePublicDirectory(
+                    Environment.DIRECTORY_DOWNLOADS);
+        } else if (where == EXTERNAL_APP) {
+            return mContext.getExternalFilesDir(null);
+        } else if (where == INTERNAL_APP) {
+            return mContext.getFilesDir();
+        }
+        return null;
+    }
+
+    private _Volume volume(File storage) {
+        String key = storage.getAbsolutePath();
+        _Volume v = mVolumes.get(key);
+        if (v == null) {
+            v = probe(storage);
+            mVolumes.put(key, v);
+            mProbes++;
+        }
+        return v;
+    }
+
+    private static _Volume probe(File dir) {
+        _Volume v = new _Volume(dir);
+        v.available = dir.exists() && dir.canWrite();
+        v.usable = v.available ? dir.getUsableSpace() : 0;
+        return v;
+    }
+
+    // ------ Cached state of a storage
+
+    private static class _Volume {
+        final File dir;
+        boolean available;
+        long usable;
+
+        _Volume(File dir) {
+            this.dir = dir;
+        }
+    }
+
+    // ------ Media events
+
+    private class _MediaReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.d(TAG, "Media event : " + intent.getAction());
+            refresh();
+        }
+    }
+
+}
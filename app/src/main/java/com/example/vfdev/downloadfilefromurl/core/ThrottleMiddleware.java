@@ -0,0 +1,127 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import android.net.Uri;
+
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.FilteredDataEmitter;
+import com.koushikdutta.async.http.AsyncHttpClientMiddleware;
+import com.koushikdutta.async.http.SimpleMiddleware;
+import com.koushikdutta.ion.Ion;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ion middleware which applies BandwidthLimiter throttles to response bodies.
+ * Ion reads all sockets on one server thread, so the body is not delayed by sleeping :
+ * the emitter is paused when the throttle is in debt and resumed later on the server thread.
+ * Throttles are matched by request url, all segments of a download share one throttle.
+ * AndroidAsync follows redirects with a new request, so the throttle is also registered
+ * under the Location of a redirect response before the next request is sent
+ */
+class ThrottleMiddleware extends SimpleMiddleware {
+
+    private final ConcurrentHashMap<String, BandwidthLimiter.Throttle> mThrottles =
+            new ConcurrentHashMap<String, BandwidthLimiter.Throttle>();
+
+    /**
+     * @return middleware of the Ion instance, it is inserted on the first call
+     */
+    static synchronized ThrottleMiddleware install(Ion ion) {
+        for (AsyncHttpClientMiddleware m : ion.getHttpClient().getMiddleware()) {
+            if (m instanceof ThrottleMiddleware) {
+                return (ThrottleMiddleware) m;
+            }
+        }
+        ThrottleMiddleware m = new ThrottleMiddleware();
+        ion.getHttpClient().insertMiddleware(m);
+        return m;
+    }
+
+    void register(String url, BandwidthLimiter.Throttle throttle) {
+        mThrottles.put(url, throttle);
+    }
+
+    /**
+     * Remove the throttle with the urls it was redirected to
+     */
+    void unregister(String url, BandwidthLimiter.Throttle throttle) {
+        mThrottles.remove(url, throttle);
+        mThrottles.values().removeAll(Collections.singleton(throttle));
+    }
+
+    @Override
+    public void onHeadersReceived(OnHeadersReceivedDataOnRequestSentData data) {
+        String location = redirectUrl(data);
+        if (location == null) return;
+        BandwidthLimiter.Throttle throttle = mThrottles.get(data.request.getUri().toString());
+        if (throttle != null) {
+            // Do not take the url of another download
+            mThrottles.putIfAbsent(location, throttle);
+        }
+    }
+
+    @Override
+    public void onBodyDecoder(OnBodyDataOnRequestSentData data) {
+        BandwidthLimiter.Throttle throttle = mThrottles.get(data.request.getUri().toString());
+        if (throttle == null) return;
+        _ThrottledEmitter emitter = new _ThrottledEmitter(throttle);
+        emitter.setDataEmitter(data.bodyEmitter);
+        data.bodyEmitter = emitter;
+    }
+
+    /**
+     * @return url of the request which AndroidAsync sends to follow the redirect, null if
+     * the response is not a redirect
+     */
+    static String redirectUrl(OnHeadersReceivedDataOnRequestSentData data) {
+        int code = data.response.code();
+        if (code != 301 && code != 302 && code != 307) return null;
+        if (!data.request.getFollowRedirect()) return null;
+        String location = data.response.headers().get("Location");
+        if (location == null) return null;
+        if (Uri.parse(location).getScheme() != null) return location;
+        // Relative location is resolved as AndroidAsync does
+        try {
+            return new URL(new URL(data.request.getUri().toString()), location).toString();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    // ------ Throttled body
+
+    private static class _ThrottledEmitter extends FilteredDataEmitter {
+
+        private final BandwidthLimiter.Throttle mThrottle;
+        private boolean mWaiting = false;
+
+        private final Runnable mResume = new Runnable() {
+            @Override
+            public void run() {
+                mWaiting = false;
+                resume();
+            }
+        };
+
+        _ThrottledEmitter(BandwidthLimiter.Throttle throttle) {
+            mThrottle = throttle;
+        }
+
+        @Override
+        public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+            int received = bb.remaining();
+            super.onDataAvailable(emitter, bb);
+            long delay = mThrottle.consume(received);
+            if (delay > 0 && !mWaiting) {
+                mWaiting = true;
+                pause();
+                getServer().postDelayed(mResume, delay);
+            }
+        }
+    }
+
+}
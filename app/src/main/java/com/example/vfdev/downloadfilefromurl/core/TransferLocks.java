@@ -0,0 +1,100 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Wi-Fi and wake locks held while at least one transfer is active.
+ * Transfers are counted with acquire() and release(), locks are released RELEASE_DELAY
+ * after the last transfer, so they are not dropped between two tasks of a queue
+ */
+public class TransferLocks {
+
+    private static final String TAG = "TransferLocks";
+
+    // Delay before the locks are released when no transfer is active
+    static final long RELEASE_DELAY = 1000;
+
+    private final WifiManager.WifiLock mWifiLock;
+    private final PowerManager.WakeLock mWakeLock;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private int mCount = 0;
+
+    public TransferLocks(Context context, String tag) {
+        mWifiLock = ((WifiManager) context.getSystemService(Context.WIFI_SERVICE))
+                .createWifiLock(WifiManager.WIFI_MODE_FULL, tag);
+        mWifiLock.setReferenceCounted(false);
+        mWakeLock = ((PowerManager) context.getSystemService(Context.POWER_SERVICE))
+                .newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, tag);
+        mWakeLock.setReferenceCounted(false);
+    }
+
+    // ----- Public methods
+
+    /**
+     * @return number of active transfers
+     */
+    public synchronized int count() {
+        return mCount;
+    }
+
+    public synchronized boolean isHeld() {
+        return mWakeLock.isHeld();
+    }
+
+    /**
+     * Release the locks at once, whatever the number of active transfers
+     */
+    public synchronized void close() {
+        mCount = 0;
+        mHandler.removeCallbacks(mRelease);
+        releaseLocks();
+    }
+
+    // ----- Package methods
+
+    synchronized void acquire() {
+        if (mCount++ > 0) return;
+        mHandler.removeCallbacks(mRelease);
+        if (!mWakeLock.isHeld()) {
+            Log.d(TAG, "Acquire locks");
+            mWakeLock.acquire();
+            mWifiLock.acquire();
+        }
+    }
+
+    synchronized void release() {
+        if (mCount == 0) return;
+        if (--mCount == 0) {
+            mHandler.postDelayed(mRelease, RELEASE_DELAY);
+        }
+    }
+
+    // ----- Private methods
+
+    private final Runnable mRelease = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (TransferLocks.this) {
+                if (mCount == 0) {
+                    releaseLocks();
+                }
+            }
+        }
+    };
+
+    private void releaseLocks() {
+        if (mWakeLock.isHeld()) {
+            Log.d(TAG, "Release locks");
+            mWakeLock.release();
+        }
+        if (mWifiLock.isHeld()) {
+            mWifiLock.release();
+        }
+    }
+
+}
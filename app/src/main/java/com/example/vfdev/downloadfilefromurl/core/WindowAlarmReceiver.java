@@ -0,0 +1,25 @@
+package com.example.vfdev.downloadfilefromurl.core;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * Receiver of the time window alarm of ConstraintScheduler. It is registered in the manifest,
+ * so the alarm reaches FileDownloadService even if its process was killed : the service
+ * restores the deferred downloads from its journal and runs those whose window is open
+ */
+public class WindowAlarmReceiver extends BroadcastReceiver {
+
+    private static final String TAG = "WindowAlarmReceiver";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Log.d(TAG, "Time window alarm");
+        Intent service = new Intent(ConstraintScheduler.ACTION_WINDOW);
+        service.setClass(context, FileDownloadService.class);
+        context.startService(service);
+    }
+
+}